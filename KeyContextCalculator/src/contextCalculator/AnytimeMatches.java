@@ -0,0 +1,81 @@
+package contextCalculator;
+
+import java.util.ArrayList;
+
+/** The best keys an anytime match found before it finished or stopped, and how much of the
+ * database it had matched by then.
+ */
+public class AnytimeMatches {
+
+
+	/** Why the match ended.
+	 */
+	public enum Outcome {
+		/** Every key was matched, so the matches are the exact best keys. */
+		COMPLETE,
+		/** The budget's deadline passed first. */
+		DEADLINE,
+		/** The budget was cancelled, or the matching thread interrupted, first. */
+		CANCELLED
+	}
+
+	private final ArrayList<KeyMatch> matches;
+	private final int numKeysMatched;
+	private final int numKeys;
+	private final Outcome outcome;
+
+
+
+	public AnytimeMatches(ArrayList<KeyMatch> matches, int numKeysMatched, int numKeys, Outcome outcome){
+		this.matches = matches;
+		this.numKeysMatched = numKeysMatched;
+		this.numKeys = numKeys;
+		this.outcome = outcome;
+	}
+
+
+
+	/** The best keys among those matched, best first.
+	 */
+	public ArrayList<KeyMatch> getMatches(){
+		return matches;
+	}
+
+
+
+	/** Number of keys matched, whether solved or rejected by the bound, before the match ended.
+	 */
+	public int getNumKeysMatched(){
+		return numKeysMatched;
+	}
+
+
+
+	/** Number of keys in the database which could be matched.
+	 */
+	public int getNumKeys(){
+		return numKeys;
+	}
+
+
+
+	/** Fraction of the keys matched, from 0 to 1.
+	 */
+	public double getCoverage(){
+		return (numKeys == 0) ? 1 : (double)numKeysMatched / numKeys;
+	}
+
+
+
+	public Outcome getOutcome(){
+		return outcome;
+	}
+
+
+
+	public boolean isComplete(){
+		return outcome == Outcome.COMPLETE;
+	}
+
+
+}
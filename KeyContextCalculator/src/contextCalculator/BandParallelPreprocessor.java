@@ -0,0 +1,188 @@
+package contextCalculator;
+
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/** Row band parallel versions of the per-pixel stages of ImageProcessor. The image is split in
+ * half by rows until the bands are at most MAX_BAND_ROWS high, and the bands run on a ForkJoinPool.
+ * Every stage produces exactly what its sequential version in ImageProcessor produces.
+ */
+class BandParallelPreprocessor {
+
+
+	private static final int MAX_BAND_ROWS = 64;
+
+
+
+	/** Parallel version of ImageProcessor.convertToGrayscale. Each band draws its own rows of
+	 * the RGB image into the shared grayscale image, and then copies them out of the raster.
+	 */
+	static int[] convertToGrayscale(final BufferedImage image, ForkJoinPool pool){
+		final int width = image.getWidth();
+		final BufferedImage grayImage = new BufferedImage(width, image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+		//A newly created TYPE_BYTE_GRAY image has one byte per pixel, row after row, with no padding.
+		final byte[] grayBytes = ((DataBufferByte)grayImage.getRaster().getDataBuffer()).getData();
+		final int[] pixels = new int[width*image.getHeight()];
+
+		pool.invoke(new BandAction(new RowBand(){
+			public void compute(int firstRow, int lastRow){
+				int bandHeight = lastRow-firstRow;
+				Graphics g = grayImage.getSubimage(0, firstRow, width, bandHeight).getGraphics();
+				g.drawImage(image.getSubimage(0, firstRow, width, bandHeight), 0, 0, null);
+				g.dispose();
+
+				for(int i=firstRow*width; i<lastRow*width; i++){
+					pixels[i] = grayBytes[i] & 0xFF;
+				}
+			}
+		}, 0, image.getHeight()));
+
+		return pixels;
+	}
+
+
+
+	/** Parallel version of ImageProcessor.convertToBinary. Each band fills its own histogram,
+	 * the histograms are summed for Otsu's Method, and then each band applies the threshold.
+	 */
+	static int[] convertToBinary(final int[] grayscalePixels, final int width, ForkJoinPool pool){
+		int height = grayscalePixels.length/width;
+
+		int[] histogram = pool.invoke(new HistogramTask(grayscalePixels, width, 0, height));
+		final int thresholdValue = ImageProcessor.otsusMethod(histogram);
+
+		final int[] binaryPixels = new int[grayscalePixels.length];
+		pool.invoke(new BandAction(new RowBand(){
+			public void compute(int firstRow, int lastRow){
+				ImageProcessor.applyThreshold(grayscalePixels, thresholdValue, firstRow*width, lastRow*width, binaryPixels);
+			}
+		}, 0, height));
+
+		return binaryPixels;
+	}
+
+
+
+	/** Parallel version of ImageProcessor.findEdges. Each band looks at the rows just above
+	 * and below it in the shared pixel array, and the bands' edges are joined back in order.
+	 */
+	static ArrayList<Point> findEdges(int width, int[] pixels, ForkJoinPool pool){
+		return pool.invoke(new EdgeTask(pixels, width, 0, pixels.length/width));
+	}
+
+
+
+	/** Work done on one band of rows, [firstRow, lastRow).
+	 */
+	private interface RowBand {
+		void compute(int firstRow, int lastRow);
+	}
+
+
+
+	/** Splits the rows [firstRow, lastRow) into bands and runs the given work on each of them.
+	 */
+	private static class BandAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final RowBand band;
+		private final int firstRow;
+		private final int lastRow;
+
+		BandAction(RowBand band, int firstRow, int lastRow){
+			this.band = band;
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+		}
+
+		protected void compute(){
+			if(lastRow-firstRow <= MAX_BAND_ROWS){
+				band.compute(firstRow, lastRow);
+				return;
+			}
+
+			int middleRow = (firstRow+lastRow) >>> 1;
+			invokeAll(new BandAction(band, firstRow, middleRow), new BandAction(band, middleRow, lastRow));
+		}
+	}
+
+
+
+	/** Fills a histogram for the rows in [firstRow, lastRow), summing the halves' histograms.
+	 */
+	private static class HistogramTask extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+		private final int[] grayscalePixels;
+		private final int width;
+		private final int firstRow;
+		private final int lastRow;
+
+		HistogramTask(int[] grayscalePixels, int width, int firstRow, int lastRow){
+			this.grayscalePixels = grayscalePixels;
+			this.width = width;
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+		}
+
+		protected int[] compute(){
+			if(lastRow-firstRow <= MAX_BAND_ROWS){
+				int[] histogram = ImageProcessor.newHistogram();
+				ImageProcessor.fillHistogram(grayscalePixels, firstRow*width, lastRow*width, histogram);
+				return histogram;
+			}
+
+			int middleRow = (firstRow+lastRow) >>> 1;
+			HistogramTask bottom = new HistogramTask(grayscalePixels, width, middleRow, lastRow);
+			bottom.fork();
+			int[] histogram = new HistogramTask(grayscalePixels, width, firstRow, middleRow).compute();
+			int[] bottomHistogram = bottom.join();
+
+			for(int i=0; i<histogram.length; i++){
+				histogram[i] += bottomHistogram[i];
+			}
+			return histogram;
+		}
+	}
+
+
+
+	/** Finds the edges in the rows [firstRow, lastRow), with the top half's edges before the
+	 * bottom half's, the same order as the sequential scan.
+	 */
+	private static class EdgeTask extends RecursiveTask<ArrayList<Point>> {
+		private static final long serialVersionUID = 1L;
+		private final int[] pixels;
+		private final int width;
+		private final int firstRow;
+		private final int lastRow;
+
+		EdgeTask(int[] pixels, int width, int firstRow, int lastRow){
+			this.pixels = pixels;
+			this.width = width;
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+		}
+
+		protected ArrayList<Point> compute(){
+			if(lastRow-firstRow <= MAX_BAND_ROWS){
+				ArrayList<Point> edges = new ArrayList<Point>();
+				ImageProcessor.findEdges(width, pixels, firstRow*width, lastRow*width, edges);
+				return edges;
+			}
+
+			int middleRow = (firstRow+lastRow) >>> 1;
+			EdgeTask bottom = new EdgeTask(pixels, width, middleRow, lastRow);
+			bottom.fork();
+			ArrayList<Point> edges = new EdgeTask(pixels, width, firstRow, middleRow).compute();
+			edges.addAll(bottom.join());
+			return edges;
+		}
+	}
+
+
+}
@@ -0,0 +1,285 @@
+package contextCalculator;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Random;
+
+/** Finds the beginning of the blade on the right edge of the key, as an alternative to
+ * ImageProcessor.findBladeBeginning. Instead of projecting a line through every pair of neighbouring
+ * points, a line is fitted to a whole window of windowSize points, and the first window (from the top
+ * down) which is straight enough is the start of the blade.
+ *
+ * LEAST_SQUARES slides the window down the edge keeping running sums of the coordinates, so each
+ * window's least squares fit and residual are found in constant time. RANSAC instead fits one line to
+ * the whole edge with a bounded number of random trials, and then slides the window down the edge
+ * counting the points close to that line.
+ *
+ * Lines are fitted as x = slope*y + intercept, as the blade is roughly vertical.
+ */
+public class BladeDetector {
+
+
+	public enum Mode {
+		LEAST_SQUARES,
+		RANSAC
+	}
+
+	public static final int DEFAULT_WINDOW_SIZE = 100;
+	public static final double DEFAULT_MAX_RESIDUAL = 1.5;
+	public static final double DEFAULT_MAX_ANGLE_DIFFERENCE = 0.2;
+	public static final int DEFAULT_RANSAC_ITERATIONS = 64;
+	private static final double RANSAC_INLIER_FRACTION = 0.95;
+	private static final long RANSAC_SEED = 1;
+
+	private final Mode mode;
+	private final int windowSize;
+	private final double maxResidual;
+	private final double maxAngleDifference;
+	private final int ransacIterations;
+
+
+
+	public BladeDetector(Mode mode){
+		this(mode, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_RESIDUAL, DEFAULT_MAX_ANGLE_DIFFERENCE, DEFAULT_RANSAC_ITERATIONS);
+	}
+
+
+
+	/** @param windowSize number of edge points the blade's line is fitted to.
+	 * @param maxResidual largest root mean square distance (in pixels) of the window's points from
+	 * the fitted line for the window to count as straight. In RANSAC mode this is also the largest
+	 * distance of an inlier from the line.
+	 * @param maxAngleDifference largest difference (in radians) between the line and the key's
+	 * overall angle.
+	 * @param ransacIterations number of random trials in RANSAC mode.
+	 */
+	public BladeDetector(Mode mode, int windowSize, double maxResidual, double maxAngleDifference, int ransacIterations){
+		if(windowSize < 2){
+			throw new IllegalArgumentException("windowSize must be at least 2");
+		}
+
+		this.mode = mode;
+		this.windowSize = windowSize;
+		this.maxResidual = maxResidual;
+		this.maxAngleDifference = maxAngleDifference;
+		this.ransacIterations = ransacIterations;
+	}
+
+
+
+	/** The blade found by the detector.
+	 */
+	public static class Result {
+		/** True if a straight enough window was found. If not, the other values describe the
+		 * straightest window that was seen.
+		 */
+		public final boolean found;
+		public final Point bladeBeginning;
+		public final int index;
+		public final double residual;
+		public final double slope;
+		public final double intercept;
+
+		Result(boolean found, Point bladeBeginning, int index, double residual, double slope, double intercept){
+			this.found = found;
+			this.bladeBeginning = bladeBeginning;
+			this.index = index;
+			this.residual = residual;
+			this.slope = slope;
+			this.intercept = intercept;
+		}
+
+		public String toString(){
+			return "blade at "+bladeBeginning+" (index "+index+", residual "+residual+", found "+found+")";
+		}
+	}
+
+
+
+	/** Finds the beginning of the blade on the right edge, which must be ordered from the top down
+	 * as ImageProcessor.selectRightEdge returns it. angleOffset is the key's overall angle from the
+	 * horizontal, as found by ImageProcessor.findKeyAngleOffset.
+	 */
+	public Result detect(ArrayList<Point> edges, double angleOffset){
+		if(edges.size() < windowSize){
+			return new Result(false, edges.get(0), 0, Double.NaN, Double.NaN, Double.NaN);
+		}
+
+		if(mode == Mode.RANSAC){
+			return detectRansac(edges, angleOffset);
+		}else{
+			return detectLeastSquares(edges, angleOffset);
+		}
+	}
+
+
+
+	/** Slides the window down the edge, adding the point entering the window to the sums and
+	 * subtracting the point leaving it. The sums are of integer coordinates, so they are kept exactly
+	 * in longs however far the window slides.
+	 */
+	private Result detectLeastSquares(ArrayList<Point> edges, double angleOffset){
+		long n = windowSize;
+		long sumX = 0, sumY = 0, sumXX = 0, sumXY = 0, sumYY = 0;
+		for(int j=0; j<windowSize; j++){
+			Point p = edges.get(j);
+			sumX += p.x;
+			sumY += p.y;
+			sumXX += (long)p.x*p.x;
+			sumXY += (long)p.x*p.y;
+			sumYY += (long)p.y*p.y;
+		}
+
+		Result best = null;
+
+		for(int i=0; i+windowSize <= edges.size(); i++){
+			if(i > 0){
+				Point leaving = edges.get(i-1);
+				Point entering = edges.get(i+windowSize-1);
+				sumX += entering.x - leaving.x;
+				sumY += entering.y - leaving.y;
+				sumXX += (long)entering.x*entering.x - (long)leaving.x*leaving.x;
+				sumXY += (long)entering.x*entering.y - (long)leaving.x*leaving.y;
+				sumYY += (long)entering.y*entering.y - (long)leaving.y*leaving.y;
+			}
+
+			//Least squares fit of x = slope*y + intercept. The denominator is only zero if every
+			//point is on the same row, which cannot happen on the right edge.
+			double denominator = (double)(n*sumYY - sumY*sumY);
+			if(denominator == 0){
+				continue;
+			}
+			double slope = (n*sumXY - sumX*sumY) / denominator;
+			double intercept = (sumX - slope*sumY) / n;
+
+			//Sum of squared horizontal residuals, expanded in terms of the sums. Dividing by
+			//(1 + slope^2) turns horizontal distances into distances perpendicular to the line.
+			double horizontalSquares = sumXX - 2*slope*sumXY - 2*intercept*sumX
+					+ slope*slope*sumYY + 2*slope*intercept*sumY + n*intercept*intercept;
+			double residual = Math.sqrt(Math.max(0, horizontalSquares) / (n*(1+slope*slope)));
+
+			if(best == null || residual < best.residual){
+				best = new Result(false, edges.get(i), i, residual, slope, intercept);
+			}
+
+			if(residual <= maxResidual && isAlignedWithKey(slope, angleOffset)){
+				return new Result(true, edges.get(i), i, residual, slope, intercept);
+			}
+		}
+
+		return best;
+	}
+
+
+
+	/** Fits a single line to the whole edge by RANSAC, and then finds the first window in which
+	 * nearly every point is an inlier of that line.
+	 */
+	private Result detectRansac(ArrayList<Point> edges, double angleOffset){
+		Random random = new Random(RANSAC_SEED);
+		double bestSlope = 0;
+		double bestIntercept = 0;
+		int bestInliers = -1;
+
+		//1. Each trial draws two points at least half a window apart, which gives a far steadier line
+		//than neighbouring points do.
+		for(int iteration=0; iteration<ransacIterations; iteration++){
+			int a = random.nextInt(edges.size() - windowSize/2);
+			int b = a + windowSize/2 + random.nextInt(edges.size() - a - windowSize/2);
+			Point p0 = edges.get(a);
+			Point p1 = edges.get(b);
+			if(p1.y == p0.y){
+				continue;
+			}
+			double slope = (double)(p1.x-p0.x) / (p1.y-p0.y);
+			double intercept = p0.x - slope*p0.y;
+			if(!isAlignedWithKey(slope, angleOffset)){
+				continue;
+			}
+
+			int inliers = 0;
+			for(Point p : edges){
+				if(distance(p, slope, intercept) <= maxResidual){
+					inliers++;
+				}
+			}
+			if(inliers > bestInliers){
+				bestInliers = inliers;
+				bestSlope = slope;
+				bestIntercept = intercept;
+			}
+		}
+
+		if(bestInliers < 0){
+			return new Result(false, edges.get(0), 0, Double.NaN, Double.NaN, Double.NaN);
+		}
+
+		//2. Slide the window down the edge, counting its inliers and summing their squared distances.
+		boolean[] isInlier = new boolean[edges.size()];
+		double[] squares = new double[edges.size()];
+		for(int j=0; j<edges.size(); j++){
+			double d = distance(edges.get(j), bestSlope, bestIntercept);
+			isInlier[j] = d <= maxResidual;
+			squares[j] = isInlier[j] ? d*d : 0;
+		}
+
+		int windowInliers = 0;
+		double windowSquares = 0;
+		for(int j=0; j<windowSize; j++){
+			windowInliers += isInlier[j] ? 1 : 0;
+			windowSquares += squares[j];
+		}
+
+		int required = (int)Math.ceil(RANSAC_INLIER_FRACTION*windowSize);
+		int bestIndex = 0;
+		int bestWindowInliers = -1;
+		double bestWindowSquares = 0;
+
+		for(int i=0; i+windowSize <= edges.size(); i++){
+			if(i > 0){
+				windowInliers += (isInlier[i+windowSize-1] ? 1 : 0) - (isInlier[i-1] ? 1 : 0);
+				windowSquares += squares[i+windowSize-1] - squares[i-1];
+			}
+
+			if(windowInliers > bestWindowInliers){
+				bestWindowInliers = windowInliers;
+				bestWindowSquares = windowSquares;
+				bestIndex = i;
+			}
+
+			//The blade begins at an inlier, not at a stray point which the window happens to tolerate.
+			if(isInlier[i] && windowInliers >= required){
+				double residual = Math.sqrt(Math.max(0, windowSquares) / windowInliers);
+				return new Result(true, edges.get(i), i, residual, bestSlope, bestIntercept);
+			}
+		}
+
+		double residual = Math.sqrt(Math.max(0, bestWindowSquares) / Math.max(1, bestWindowInliers));
+		return new Result(false, edges.get(bestIndex), bestIndex, residual, bestSlope, bestIntercept);
+	}
+
+
+
+	/** Perpendicular distance of the point from the line x = slope*y + intercept.
+	 */
+	private static double distance(Point p, double slope, double intercept){
+		return Math.abs(p.x - slope*p.y - intercept) / Math.sqrt(1+slope*slope);
+	}
+
+
+
+	/** Checks that the line x = slope*y + intercept has the same direction as the key, within
+	 * maxAngleDifference. Both angles are from the horizontal, and are compared as directions
+	 * (modulo PI), as the key's angle may be reported either way up.
+	 */
+	private boolean isAlignedWithKey(double slope, double angleOffset){
+		//The line's direction is (slope, 1).
+		double lineAngle = Math.atan2(1, slope);
+		double difference = Math.abs(lineAngle-angleOffset) % Math.PI;
+		difference = Math.min(difference, Math.PI-difference);
+
+		return difference <= maxAngleDifference;
+	}
+
+
+}
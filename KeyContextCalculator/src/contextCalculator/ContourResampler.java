@@ -0,0 +1,211 @@
+package contextCalculator;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** Selects points along the outline of the key by distance along the outline rather than by
+ * position in the edge list. The edge points come out of ImageProcessor in raster order, so taking
+ * every n-th of them bunches the points wherever the outline runs close to horizontal or the pixel
+ * boundary is jagged. Here the edge points are first chained into contour order, neighbour to
+ * neighbour, and the points are then spread evenly by arc length, or by arc length weighted towards
+ * the outline's bends.
+ *
+ * The selected points are always edge points, in contour order, so each point's previous point (used
+ * by ShapeContextCalculator for the tangent) is its neighbour along the outline.
+ */
+public class ContourResampler {
+
+
+	public static final double DEFAULT_CURVATURE_WEIGHT = 4;
+
+	//Edge points further apart than this are not treated as neighbours along the outline, and the
+	//gap between them counts as no arc length.
+	private static final double MAX_LINK_DISTANCE = 3;
+	//Furthest (in pixels, in each direction) the chain looks for the next point before jumping to
+	//the nearest unvisited point anywhere.
+	private static final int MAX_SEARCH_RADIUS = 3;
+	//Points this far either side along the contour are used to measure the bend at each point, so
+	//the one pixel steps of the boundary do not count as bends.
+	private static final int CURVATURE_SPAN = 4;
+
+
+
+	/** Returns the edge points chained into contour order. Starting from the first point, each step
+	 * moves to the nearest unvisited point within MAX_SEARCH_RADIUS, preferring the four direct
+	 * neighbours. When there is none, as at the end of a separate outline (such as the key's hole),
+	 * the chain jumps to the nearest unvisited point.
+	 */
+	public static ArrayList<Point> orderContour(ArrayList<Point> edges){
+		ArrayList<Point> ordered = new ArrayList<Point>(edges.size());
+		if(edges.isEmpty()){
+			return ordered;
+		}
+
+		//1. Index the points by position.
+		HashMap<Long, Integer> index = new HashMap<Long, Integer>(edges.size()*2);
+		for(int i=0; i<edges.size(); i++){
+			index.put(key(edges.get(i).x, edges.get(i).y), i);
+		}
+		boolean[] visited = new boolean[edges.size()];
+
+		//2. Follow the chain until every point has been visited.
+		int current = 0;
+		while(current >= 0){
+			Point p = edges.get(current);
+			visited[current] = true;
+			index.remove(key(p.x, p.y));
+			ordered.add(p);
+
+			int next = findNearbyUnvisited(p, index);
+			if(next < 0 && ordered.size() < edges.size()){
+				next = findNearestUnvisited(p, edges, visited);
+			}
+			current = next;
+		}
+
+		return ordered;
+	}
+
+
+
+	/** Selects numPoints points spaced evenly by arc length along the contour, which must be in
+	 * contour order, as orderContour returns it.
+	 */
+	public static Point[] resampleByArcLength(ArrayList<Point> contour, int numPoints){
+		return resample(contour, numPoints, 0);
+	}
+
+
+
+	/** Selects numPoints points along the contour, which must be in contour order, spending more
+	 * of them where the outline bends. Each length of outline counts as its arc length multiplied by
+	 * (1 + curvatureWeight*bend), where bend is the angle (in radians) the outline turns through
+	 * around it, so a curvatureWeight of 0 spaces the points evenly by arc length.
+	 */
+	public static Point[] resampleByCurvature(ArrayList<Point> contour, int numPoints, double curvatureWeight){
+		return resample(contour, numPoints, curvatureWeight);
+	}
+
+
+
+	private static Point[] resample(ArrayList<Point> contour, int numPoints, double curvatureWeight){
+		int n = contour.size();
+
+		//1. Weight each link between neighbouring points of the contour. Gaps between separate
+		//outlines weigh nothing, so no points are spent on them.
+		double[] cumulativeWeights = new double[n];
+		for(int i=1; i<n; i++){
+			double length = contour.get(i).distance(contour.get(i-1));
+			double weight = (length > MAX_LINK_DISTANCE) ? 0 : length;
+			if(curvatureWeight != 0 && weight > 0){
+				weight *= 1 + curvatureWeight*findBend(contour, i);
+			}
+			cumulativeWeights[i] = cumulativeWeights[i-1] + weight;
+		}
+		double totalWeight = (n == 0) ? 0 : cumulativeWeights[n-1];
+
+		//2. Take the point at the middle of each of numPoints equal shares of the total weight.
+		Point[] selectedPoints = new Point[numPoints];
+		int i = 0;
+		for(int j=0; j<numPoints; j++){
+			double target = (j+0.5) * totalWeight/numPoints;
+			while(i < n-1 && cumulativeWeights[i] < target){
+				i++;
+			}
+			selectedPoints[j] = contour.get(i);
+		}
+
+		return selectedPoints;
+	}
+
+
+
+	/** The angle the contour turns through at point i, between the directions from CURVATURE_SPAN
+	 * points before it and to CURVATURE_SPAN points after it. The span is cut short at the ends of
+	 * the contour and at gaps between outlines.
+	 */
+	private static double findBend(ArrayList<Point> contour, int i){
+		Point p = contour.get(i);
+		Point before = p;
+		for(int k=i-1; k>=0 && k>=i-CURVATURE_SPAN; k--){
+			if(contour.get(k).distance(contour.get(k+1)) > MAX_LINK_DISTANCE){
+				break;
+			}
+			before = contour.get(k);
+		}
+		Point after = p;
+		for(int k=i+1; k<contour.size() && k<=i+CURVATURE_SPAN; k++){
+			if(contour.get(k).distance(contour.get(k-1)) > MAX_LINK_DISTANCE){
+				break;
+			}
+			after = contour.get(k);
+		}
+
+		double inX = p.x-before.x;
+		double inY = p.y-before.y;
+		double outX = after.x-p.x;
+		double outY = after.y-p.y;
+		if((inX == 0 && inY == 0) || (outX == 0 && outY == 0)){
+			return 0;
+		}
+
+		return Math.abs(Math.atan2(inX*outY - inY*outX, inX*outX + inY*outY));
+	}
+
+
+
+	/** Finds the unvisited point nearest p within MAX_SEARCH_RADIUS, or -1 if there is none. The
+	 * index only holds unvisited points.
+	 */
+	private static int findNearbyUnvisited(Point p, HashMap<Long, Integer> index){
+		int best = -1;
+		int bestSquaredDistance = Integer.MAX_VALUE;
+
+		for(int dy=-MAX_SEARCH_RADIUS; dy<=MAX_SEARCH_RADIUS; dy++){
+			for(int dx=-MAX_SEARCH_RADIUS; dx<=MAX_SEARCH_RADIUS; dx++){
+				int squaredDistance = dx*dx + dy*dy;
+				if(squaredDistance == 0 || squaredDistance >= bestSquaredDistance){
+					continue;
+				}
+
+				Integer i = index.get(key(p.x+dx, p.y+dy));
+				if(i != null){
+					best = i;
+					bestSquaredDistance = squaredDistance;
+				}
+			}
+		}
+
+		return best;
+	}
+
+
+
+	/** Finds the unvisited point nearest p anywhere on the edge, or -1 if there is none.
+	 */
+	private static int findNearestUnvisited(Point p, ArrayList<Point> edges, boolean[] visited){
+		int best = -1;
+		double bestSquaredDistance = Double.MAX_VALUE;
+
+		for(int i=0; i<edges.size(); i++){
+			if(!visited[i]){
+				double squaredDistance = p.distanceSq(edges.get(i));
+				if(squaredDistance < bestSquaredDistance){
+					best = i;
+					bestSquaredDistance = squaredDistance;
+				}
+			}
+		}
+
+		return best;
+	}
+
+
+
+	private static Long key(int x, int y){
+		return ((long)x << 32) | (y & 0xFFFFFFFFL);
+	}
+
+
+}
@@ -0,0 +1,96 @@
+package contextCalculator;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/** The shape contexts of both profiles of a key, from a photo with the teeth on the left and one
+ * with the teeth on the right. ImageProcessor expects the straight back of the blade on the right of
+ * the photo, so the right teeth photo is mirrored before it is processed. Either profile may be null
+ * for a key enrolled with only one photo.
+ */
+public class DualProfileShapeContext {
+
+
+	private final MultiResolutionShapeContext left;
+	private final MultiResolutionShapeContext right;
+
+
+
+	public DualProfileShapeContext(MultiResolutionShapeContext left, MultiResolutionShapeContext right){
+		this.left = left;
+		this.right = right;
+	}
+
+
+
+	public MultiResolutionShapeContext getLeft(){
+		return left;
+	}
+
+
+
+	public MultiResolutionShapeContext getRight(){
+		return right;
+	}
+
+
+
+	/** Finds the edges and shape contexts of both photos. When pool is not null, the right photo is
+	 * processed on the pool while the calling thread processes the left one, otherwise they are
+	 * processed one after the other.
+	 */
+	public static DualProfileShapeContext calculate(BufferedImage leftImage, final BufferedImage rightImage,
+			ForkJoinPool pool){
+		Callable<MultiResolutionShapeContext> rightProfile = new Callable<MultiResolutionShapeContext>(){
+			public MultiResolutionShapeContext call(){
+				return calculateProfile(mirror(rightImage));
+			}
+		};
+
+		if(pool == null){
+			MultiResolutionShapeContext left = calculateProfile(leftImage);
+			return new DualProfileShapeContext(left, calculateProfile(mirror(rightImage)));
+		}
+
+		ForkJoinTask<MultiResolutionShapeContext> rightTask = pool.submit(rightProfile);
+		MultiResolutionShapeContext left = calculateProfile(leftImage);
+
+		return new DualProfileShapeContext(left, rightTask.join());
+	}
+
+
+
+	private static MultiResolutionShapeContext calculateProfile(BufferedImage image){
+		ArrayList<Point> edges = ImageProcessor.getKeyEdges(image);
+
+		return ShapeContextCalculator.calcMultiResolutionShapeContext(edges);
+	}
+
+
+
+	/** Returns a copy of the image flipped left to right.
+	 */
+	static BufferedImage mirror(BufferedImage image){
+		int width = image.getWidth();
+		int height = image.getHeight();
+		BufferedImage mirrored = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+		int[] row = new int[width];
+		int[] mirroredRow = new int[width];
+		for(int y=0; y<height; y++){
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for(int x=0; x<width; x++){
+				mirroredRow[width-1-x] = row[x];
+			}
+			mirrored.setRGB(0, y, width, 1, mirroredRow, 0, width);
+		}
+
+		return mirrored;
+	}
+
+
+}
@@ -48,17 +48,23 @@ import java.util.Arrays;
  * @author Kevin L. Stern
  */
 public class HungarianAlgorithm {
-  private final double[][] costMatrix;
+  private final double[] costMatrix;
   private final int rows, cols, dim;
   private final double[] labelByWorker, labelByJob;
   private final int[] minSlackWorkerByJob;
   private final double[] minSlackValueByJob;
   private final int[] matchJobByWorker, matchWorkerByJob;
   private final int[] parentWorkerByCommittedJob;
-  private final boolean[] committedWorkers;
+  private final double[] committedWorkers, committedJobs;
+  private double reductionOffset;
 
   /**
    * Construct an instance of the algorithm.
+   * <p>
+   * 
+   * The cost matrix is held in one flat array, row by row, so that the loops
+   * over a row or over all rows run over consecutive memory and can be
+   * vectorized by the JIT compiler.
    * 
    * @param costMatrix
    *          the cost matrix, where matrix[i][j] holds the cost of assigning
@@ -69,22 +75,20 @@ public class HungarianAlgorithm {
     this.dim = Math.max(costMatrix.length, costMatrix[0].length);
     this.rows = costMatrix.length;
     this.cols = costMatrix[0].length;
-    this.costMatrix = new double[this.dim][this.dim];
-    for (int w = 0; w < this.dim; w++) {
-      if (w < costMatrix.length) {
-        if (costMatrix[w].length != this.cols) {
-          throw new IllegalArgumentException("Irregular cost matrix");
-        }
-        this.costMatrix[w] = Arrays.copyOf(costMatrix[w], this.dim);
-      } else {
-        this.costMatrix[w] = new double[this.dim];
+    this.costMatrix = new double[this.dim * this.dim];
+    for (int w = 0; w < this.rows; w++) {
+      if (costMatrix[w].length != this.cols) {
+        throw new IllegalArgumentException("Irregular cost matrix");
       }
+      System.arraycopy(costMatrix[w], 0, this.costMatrix, w * this.dim,
+          this.cols);
     }
     labelByWorker = new double[this.dim];
     labelByJob = new double[this.dim];
     minSlackWorkerByJob = new int[this.dim];
     minSlackValueByJob = new double[this.dim];
-    committedWorkers = new boolean[this.dim];
+    committedWorkers = new double[this.dim];
+    committedJobs = new double[this.dim];
     parentWorkerByCommittedJob = new int[this.dim];
     matchJobByWorker = new int[this.dim];
     Arrays.fill(matchJobByWorker, -1);
@@ -102,10 +106,9 @@ public class HungarianAlgorithm {
       labelByJob[j] = Double.POSITIVE_INFINITY;
     }
     for (int w = 0; w < dim; w++) {
+      int start = w * dim;
       for (int j = 0; j < dim; j++) {
-        if (costMatrix[w][j] < labelByJob[j]) {
-          labelByJob[j] = costMatrix[w][j];
-        }
+        labelByJob[j] = Math.min(labelByJob[j], costMatrix[start + j]);
       }
     }
   }
@@ -118,6 +121,26 @@ public class HungarianAlgorithm {
    *         corresponding worker is unassigned.
    */
   public int[] execute() {
+    return executeBounded(Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Execute the algorithm, giving up as soon as the minimum cost is known to
+   * exceed the threshold.
+   * <p>
+   * 
+   * The cost of any matching is at least the amount the rows and columns were
+   * reduced by plus the sum of the labels of the workers and jobs (the dual
+   * objective), as the labeling stays feasible. Each increase of the labeling
+   * raises the dual objective, so it is a lower bound on the minimum cost which
+   * rises towards it as the algorithm runs.
+   * 
+   * @param threshold
+   *          the cost above which the matching is not wanted.
+   * @return the minimum cost matching of workers to jobs as execute() returns
+   *         it, or null if the minimum cost exceeds the threshold.
+   */
+  public int[] executeBounded(double threshold) {
     /*
      * Heuristics to improve performance: Reduce rows and columns by their
      * smallest element, compute an initial non-zero dual feasible solution and
@@ -125,12 +148,17 @@ public class HungarianAlgorithm {
      */
     reduce();
     computeInitialFeasibleSolution();
+    if (exceeds(getLowerBound(), threshold)) {
+      return null;
+    }
     greedyMatch();
 
     int w = fetchUnmatchedWorker();
     while (w < dim) {
       initializePhase(w);
-      executePhase();
+      if (!executePhase(threshold)) {
+        return null;
+      }
       w = fetchUnmatchedWorker();
     }
     int[] result = Arrays.copyOf(matchJobByWorker, rows);
@@ -161,22 +189,37 @@ public class HungarianAlgorithm {
    * completes, the matching will have increased in size.
    */
   protected void executePhase() {
+    executePhase(Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Execute a single phase of the algorithm as executePhase() does, stopping
+   * if the lower bound rises above the threshold.
+   * 
+   * @return false if the phase was stopped by the threshold.
+   */
+  protected boolean executePhase(double threshold) {
+    /*
+     * The minimum slack values of committed jobs are NaN, so they are never
+     * the minimum and are left alone by the updates below. After the first
+     * scan, the job with the minimum slack is found while the slacks are
+     * updated, as lowering the labeling lowers every non-committed job's slack
+     * alike.
+     */
+    int minSlackJob = findMinSlackJob();
     while (true) {
-      int minSlackWorker = -1, minSlackJob = -1;
-      double minSlackValue = Double.POSITIVE_INFINITY;
-      for (int j = 0; j < dim; j++) {
-        if (parentWorkerByCommittedJob[j] == -1) {
-          if (minSlackValueByJob[j] < minSlackValue) {
-            minSlackValue = minSlackValueByJob[j];
-            minSlackWorker = minSlackWorkerByJob[j];
-            minSlackJob = j;
-          }
-        }
-      }
+      int minSlackWorker = minSlackWorkerByJob[minSlackJob];
+      double minSlackValue = minSlackValueByJob[minSlackJob];
       if (minSlackValue > 0) {
         updateLabeling(minSlackValue);
+        if (threshold != Double.POSITIVE_INFINITY
+            && exceeds(getLowerBound(), threshold)) {
+          return false;
+        }
       }
       parentWorkerByCommittedJob[minSlackJob] = minSlackWorker;
+      committedJobs[minSlackJob] = 1;
+      minSlackValueByJob[minSlackJob] = Double.NaN;
       if (matchWorkerByJob[minSlackJob] == -1) {
         /*
          * An augmenting path has been found.
@@ -192,26 +235,80 @@ public class HungarianAlgorithm {
           }
           parentWorker = parentWorkerByCommittedJob[committedJob];
         }
-        return;
+        return true;
       } else {
         /*
          * Update slack values since we increased the size of the committed
          * workers set.
          */
         int worker = matchWorkerByJob[minSlackJob];
-        committedWorkers[worker] = true;
-        for (int j = 0; j < dim; j++) {
-          if (parentWorkerByCommittedJob[j] == -1) {
-            double slack = costMatrix[worker][j] - labelByWorker[worker]
-                - labelByJob[j];
-            if (minSlackValueByJob[j] > slack) {
-              minSlackValueByJob[j] = slack;
-              minSlackWorkerByJob[j] = worker;
-            }
-          }
-        }
+        committedWorkers[worker] = 1;
+        minSlackJob = updateSlack(worker);
+      }
+    }
+  }
+
+  /**
+   * @return the first non-committed job with the minimum slack value.
+   */
+  private int findMinSlackJob() {
+    int minSlackJob = -1;
+    double minSlackValue = Double.POSITIVE_INFINITY;
+    for (int j = 0; j < dim; j++) {
+      if (minSlackValueByJob[j] < minSlackValue) {
+        minSlackValue = minSlackValueByJob[j];
+        minSlackJob = j;
       }
     }
+    return minSlackJob;
+  }
+
+  /**
+   * Update the minimum slack values of the non-committed jobs with the slacks
+   * of the newly committed worker. This is the innermost loop of a phase.
+   * 
+   * @return the first non-committed job with the minimum slack value, as
+   *         {@link #findMinSlackJob()} would after the update.
+   */
+  private int updateSlack(int worker) {
+    int start = worker * dim;
+    double label = labelByWorker[worker];
+    int minSlackJob = -1;
+    double minSlackValue = Double.POSITIVE_INFINITY;
+    for (int j = 0; j < dim; j++) {
+      double slack = costMatrix[start + j] - label - labelByJob[j];
+      if (minSlackValueByJob[j] > slack) {
+        minSlackValueByJob[j] = slack;
+        minSlackWorkerByJob[j] = worker;
+      }
+      if (minSlackValueByJob[j] < minSlackValue) {
+        minSlackValue = minSlackValueByJob[j];
+        minSlackJob = j;
+      }
+    }
+    return minSlackJob;
+  }
+
+  /**
+   * @return the running lower bound on the cost of any matching: the amount
+   *         the rows and columns were reduced by plus the sum of labelByWorker
+   *         and labelByJob.
+   */
+  public double getLowerBound() {
+    double bound = reductionOffset;
+    for (int i = 0; i < dim; i++) {
+      bound += labelByWorker[i] + labelByJob[i];
+    }
+    return bound;
+  }
+
+  /**
+   * Checks whether the bound exceeds the threshold by more than the rounding
+   * error of summing the costs, so that a matching whose cost is exactly the
+   * threshold is never given up on.
+   */
+  static boolean exceeds(double bound, double threshold) {
+    return bound - threshold > 1e-9 * Math.max(1, Math.abs(threshold));
   }
 
   /**
@@ -234,9 +331,10 @@ public class HungarianAlgorithm {
    */
   protected void greedyMatch() {
     for (int w = 0; w < dim; w++) {
+      int start = w * dim;
       for (int j = 0; j < dim; j++) {
         if (matchJobByWorker[w] == -1 && matchWorkerByJob[j] == -1
-            && costMatrix[w][j] - labelByWorker[w] - labelByJob[j] == 0) {
+            && costMatrix[start + j] - labelByWorker[w] - labelByJob[j] == 0) {
           match(w, j);
         }
       }
@@ -252,13 +350,15 @@ public class HungarianAlgorithm {
    *          the worker at which to root the next phase.
    */
   protected void initializePhase(int w) {
-    Arrays.fill(committedWorkers, false);
+    Arrays.fill(committedWorkers, 0);
+    Arrays.fill(committedJobs, 0);
     Arrays.fill(parentWorkerByCommittedJob, -1);
-    committedWorkers[w] = true;
+    Arrays.fill(minSlackWorkerByJob, w);
+    committedWorkers[w] = 1;
+    int start = w * dim;
+    double label = labelByWorker[w];
     for (int j = 0; j < dim; j++) {
-      minSlackValueByJob[j] = costMatrix[w][j] - labelByWorker[w]
-          - labelByJob[j];
-      minSlackWorkerByJob[j] = w;
+      minSlackValueByJob[j] = costMatrix[start + j] - label - labelByJob[j];
     }
   }
 
@@ -277,33 +377,37 @@ public class HungarianAlgorithm {
    * cost matrix is optimal for the original cost matrix.
    */
   protected void reduce() {
+    reductionOffset = 0;
     for (int w = 0; w < dim; w++) {
+      int start = w * dim;
       double min = Double.POSITIVE_INFINITY;
       for (int j = 0; j < dim; j++) {
-        if (costMatrix[w][j] < min) {
-          min = costMatrix[w][j];
-        }
+        min = Math.min(min, costMatrix[start + j]);
       }
       for (int j = 0; j < dim; j++) {
-        costMatrix[w][j] -= min;
+        costMatrix[start + j] -= min;
       }
+      reductionOffset += min;
     }
     double[] min = new double[dim];
     for (int j = 0; j < dim; j++) {
       min[j] = Double.POSITIVE_INFINITY;
     }
     for (int w = 0; w < dim; w++) {
+      int start = w * dim;
       for (int j = 0; j < dim; j++) {
-        if (costMatrix[w][j] < min[j]) {
-          min[j] = costMatrix[w][j];
-        }
+        min[j] = Math.min(min[j], costMatrix[start + j]);
       }
     }
     for (int w = 0; w < dim; w++) {
+      int start = w * dim;
       for (int j = 0; j < dim; j++) {
-        costMatrix[w][j] -= min[j];
+        costMatrix[start + j] -= min[j];
       }
     }
+    for (int j = 0; j < dim; j++) {
+      reductionOffset += min[j];
+    }
   }
 
   /**
@@ -312,17 +416,17 @@ public class HungarianAlgorithm {
    * addition, update the minimum slack values appropriately.
    */
   protected void updateLabeling(double slack) {
+    /*
+     * Committed workers and jobs are marked by 1 and the rest by 0, so that the
+     * loops need no branch. The minimum slack values of committed jobs are NaN,
+     * and stay NaN.
+     */
     for (int w = 0; w < dim; w++) {
-      if (committedWorkers[w]) {
-        labelByWorker[w] += slack;
-      }
+      labelByWorker[w] += slack * committedWorkers[w];
     }
     for (int j = 0; j < dim; j++) {
-      if (parentWorkerByCommittedJob[j] != -1) {
-        labelByJob[j] -= slack;
-      } else {
-        minSlackValueByJob[j] -= slack;
-      }
+      labelByJob[j] -= slack * committedJobs[j];
+      minSlackValueByJob[j] -= slack;
     }
   }
-}
\ No newline at end of file
+}
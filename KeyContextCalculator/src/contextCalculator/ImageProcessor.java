@@ -4,8 +4,13 @@ import java.awt.Graphics;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 
-import data.DataManager;
+import data.DiagnosticsSink;
+import data.NoOpDiagnosticsSink;
+import metrics.KeyEdgesEvent;
+import metrics.PipelineMetrics;
+import metrics.PipelineStage;
 
 public class ImageProcessor {
 	
@@ -15,7 +20,7 @@ public class ImageProcessor {
 	private static final int MAX_CLEANING_DISTANCE = 5;
 	private static final int MAX_BOX_WIDTH = 10;
 	private static final int MAX_BOX_HEIGHT = 10;
-	private static final int BLACK = 0;
+	static final int BLACK = 0;
 	private static final int WHITE = 1;
 	private static final int BLADE_DISTANCE_THRESHOLD = 5;
 	private static final int BLADE_LENGTH_PROJECTION = 200;
@@ -23,78 +28,166 @@ public class ImageProcessor {
 	
 	
 	
+	private static volatile DiagnosticsSink diagnosticsSink = NoOpDiagnosticsSink.INSTANCE;
+	private static volatile BladeDetector bladeDetector = null;
+	
+	
+	
+	/** Sets where the intermediate debug images are sent. By default nothing is captured.
+	 */
+	public static void setDiagnosticsSink(DiagnosticsSink sink){
+		diagnosticsSink = (sink == null) ? NoOpDiagnosticsSink.INSTANCE : sink;
+	}
+	
+	
+	
+	/** Sets the detector used to find the beginning of the blade. When null (the default), the
+	 * original pairwise line projection in findBladeBeginning is used.
+	 */
+	public static void setBladeDetector(BladeDetector detector){
+		bladeDetector = detector;
+	}
+	
+	
+	
 	public static ArrayList<Point> getKeyEdges(BufferedImage image){
+		return getKeyEdges(image, null);
+	}
+	
+	
+	
+	/** Finds the edges of the key in the image. When pool is not null, the grayscale conversion,
+	 * thresholding and edge extraction are split into row bands which run on the pool. The result
+	 * is identical to the sequential path. Cleaning always runs sequentially, as each pass updates
+	 * the pixels in place and later pixels depend on the ones already changed.
+	 */
+	public static ArrayList<Point> getKeyEdges(BufferedImage image, ForkJoinPool pool){
+		return getKeyEdges(image, pool, bladeDetector, diagnosticsSink);
+	}
+	
+	
+	
+	/** As getKeyEdges(image, pool), with the given blade detector (null for findBladeBeginning's
+	 * line projection) and diagnostics sink (null for none) rather than the ones set for every
+	 * caller, so that callers with different settings can run at the same time.
+	 */
+	public static ArrayList<Point> getKeyEdges(BufferedImage image, ForkJoinPool pool, BladeDetector detector,
+			DiagnosticsSink sink){
+		//DEBUG: Decide once whether this run's intermediate images are captured.
+		if(sink == null){
+			sink = NoOpDiagnosticsSink.INSTANCE;
+		}
+		long captureId = sink.beginCapture();
+		boolean capture = captureId != DiagnosticsSink.NO_CAPTURE;
+		long keyEdgesStart = PipelineMetrics.now();
+		KeyEdgesEvent event = KeyEdgesEvent.start(image.getWidth(), image.getHeight());
 		
 		//1. Convert image to grayscale.
-		int[] grayscalePixels = convertToGrayscale(image);
-		//1.b. DEBUG: Save grayscale image to file.
-		DataManager.saveGrayscaleImageToFile(image.getWidth(), image.getHeight(), grayscalePixels);
+		long stageStart = PipelineMetrics.now();
+		int[] grayscalePixels = (pool == null) ? convertToGrayscale(image)
+				: BandParallelPreprocessor.convertToGrayscale(image, pool);
+		event.grayscaleTime = PipelineStage.GRAYSCALE.recordSince(stageStart);
+		//1.b. DEBUG: Save grayscale image.
+		if(capture){
+			sink.saveImage(captureId, "grayscale", image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY, grayscalePixels);
+		}
 		
 		//2. Implement Otsu's Method to form a binary image from the grayscale image.
-		int[] binaryPixels = convertToBinary(grayscalePixels);
-		//2.b. DEBUG: save binary image to file.
-		DataManager.saveBinaryImageToFile(image.getWidth(), image.getHeight(), binaryPixels);
+		stageStart = PipelineMetrics.now();
+		int[] binaryPixels = (pool == null) ? convertToBinary(grayscalePixels)
+				: BandParallelPreprocessor.convertToBinary(grayscalePixels, image.getWidth(), pool);
+		event.thresholdTime = PipelineStage.THRESHOLD.recordSince(stageStart);
+		//2.b. DEBUG: Save binary image.
+		if(capture){
+			sink.saveImage(captureId, "binary", image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_BINARY, binaryPixels);
+		}
 		
 		//3. Clean binary image to remove small black or white blobs
+		stageStart = PipelineMetrics.now();
 		int[] cleanedBinaryPixels = cleanBinaryPixels(image.getWidth(), image.getHeight(), binaryPixels);
-		//3.b. DEBUG: save cleaned binary image to file.
-		DataManager.saveCleanedBinaryImageToFile(image.getWidth(), image.getHeight(), cleanedBinaryPixels);
+		event.cleanTime = PipelineStage.CLEAN.recordSince(stageStart);
+		//3.b. DEBUG: Save cleaned binary image.
+		if(capture){
+			sink.saveImage(captureId, "cleanedBinary", image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_BINARY, cleanedBinaryPixels);
+		}
 				
 		//4. Find all points which constitute an edge. These are where a black pixel is
 		//directly next to a white one.
-		ArrayList<Point> edges = findEdges(image.getWidth(), cleanedBinaryPixels);
+		stageStart = PipelineMetrics.now();
+		ArrayList<Point> edges = (pool == null) ? findEdges(image.getWidth(), cleanedBinaryPixels)
+				: BandParallelPreprocessor.findEdges(image.getWidth(), cleanedBinaryPixels, pool);
+		event.findEdgesTime = PipelineStage.FIND_EDGES.recordSince(stageStart);
 		
 		//5. Find only the right edge of the key.
+		stageStart = PipelineMetrics.now();
 		ArrayList<Point> rightEdge = selectRightEdge(edges);
+		event.rightEdgeTime = PipelineStage.RIGHT_EDGE.recordSince(stageStart);
 		
 		//6. Calculate the key's overall slant (as an angle in radians) from the vertical.
+		stageStart = PipelineMetrics.now();
 		double keyAngleOffset = findKeyAngleOffset(rightEdge);
+		event.angleOffsetTime = PipelineStage.ANGLE_OFFSET.recordSince(stageStart);
 		
 		//7. Find the coordinates for the beginning of the blade of the key.
-		Point beginningBlade = findBladeBeginning(rightEdge, keyAngleOffset);
-		
-		
-		//**
-		//DEBUG: Draw in y line of start of blade on grayscale in black.
-		for(int i=0; i<image.getHeight(); i++){
-			grayscalePixels[i*image.getWidth() + beginningBlade.x] = 0;
-		}
-		//DEBUG: Draw in start x line of blade on grayscale in black.
-		for(int i=0; i<image.getHeight(); i++){
-			grayscalePixels[beginningBlade.y*image.getWidth() + i] = 0;
-		}
-		//**
-		
-		
+		stageStart = PipelineMetrics.now();
+		Point beginningBlade = findBladeBeginning(rightEdge, keyAngleOffset, detector);
+		event.bladeBeginningTime = PipelineStage.BLADE_BEGINNING.recordSince(stageStart);
 		
 		//8. Find the center point of the key based on the horizontal line formed by the x value of
 		//the coordinate above.
+		stageStart = PipelineMetrics.now();
 		Point keyCenter = findKeyCenter(beginningBlade, rightEdge);
+		event.keyCenterTime = PipelineStage.KEY_CENTER.recordSince(stageStart);
 		
+		//9. Remove all edge points which are in the lower left quadrant in comparison to the center point.
+		stageStart = PipelineMetrics.now();
+		ArrayList<Point> cleanedEdges = cleanEdges(keyCenter, edges);
+		event.cleanEdgesTime = PipelineStage.CLEAN_EDGES.recordSince(stageStart);
 		
-		//**
-		//DEBUG: Draw in y line of start of blade on grayscale in black.
-		for(int i=0; i<image.getHeight(); i++){
-			grayscalePixels[i*image.getWidth() + keyCenter.x] = 0;
+		//9.b. DEBUG: Save the grayscale image with the blade, center and edges drawn on top.
+		if(capture){
+			saveOverlayImages(sink, captureId, image.getWidth(), image.getHeight(), grayscalePixels,
+					beginningBlade, keyCenter, cleanedEdges);
 		}
-		DataManager.saveGrayscaleImageToFile(image.getWidth(), image.getHeight(), grayscalePixels);
-		//**
-		
+		PipelineStage.KEY_EDGES.recordSince(keyEdgesStart);
+		event.edgeCount = edges.size();
+		event.rightEdgeCount = rightEdge.size();
+		event.keptEdgeCount = cleanedEdges.size();
+		event.finish();
 		
 		
-		//9. Remove all edge points which are in the lower left quadrant in comparison to the center point.
-		ArrayList<Point> cleanedEdges = cleanEdges(keyCenter, edges);
+		return cleanedEdges;
+	}
+	
+	
+	
+	/** DEBUG: Draws the detected blade start, key center and remaining edges onto a copy of the
+	 * grayscale pixels, and sends the results to the diagnostics sink. A copy is drawn on so that
+	 * the working buffers are never modified.
+	 */
+	private static void saveOverlayImages(DiagnosticsSink sink, long captureId, int width, int height,
+			int[] grayscalePixels, Point beginningBlade, Point keyCenter, ArrayList<Point> cleanedEdges){
+		int[] overlayPixels = grayscalePixels.clone();
 		
+		//Draw in y line of start of blade on grayscale in black.
+		for(int i=0; i<height; i++){
+			overlayPixels[i*width + beginningBlade.x] = 0;
+		}
+		//Draw in start x line of blade on grayscale in black.
+		for(int i=0; i<width; i++){
+			overlayPixels[beginningBlade.y*width + i] = 0;
+		}
+		//Draw in y line of the key center on grayscale in black.
+		for(int i=0; i<height; i++){
+			overlayPixels[i*width + keyCenter.x] = 0;
+		}
+		sink.saveImage(captureId, "keyCenter", width, height, BufferedImage.TYPE_BYTE_GRAY, overlayPixels);
 		
-		//DEBUG: draw in all other edges.
+		//Draw in all other edges.
 		for(int i=0; i<cleanedEdges.size(); i++){
-			grayscalePixels[cleanedEdges.get(i).y*image.getWidth() + cleanedEdges.get(i).x] = 0;
+			overlayPixels[cleanedEdges.get(i).y*width + cleanedEdges.get(i).x] = 0;
 		}
-		DataManager.saveGrayscaleImageToFile(image.getWidth(), image.getHeight(), grayscalePixels);
-		
-		
-		
-		return cleanedEdges;
+		sink.saveImage(captureId, "cleanedEdges", width, height, BufferedImage.TYPE_BYTE_GRAY, overlayPixels);
 	}
 	
 	
@@ -102,7 +195,7 @@ public class ImageProcessor {
 	/** Processes image from RGB BufferedImage into grayscale double[] of pixels for ease
 	 * of blob detection later.
 	 */
-	private static int[] convertToGrayscale(BufferedImage image){
+	static int[] convertToGrayscale(BufferedImage image){
 		//Creates grayscale BufferedImage based on initial RGB BufferedImage.
 		BufferedImage grayImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);  
 		Graphics g = grayImage.getGraphics();  
@@ -120,17 +213,41 @@ public class ImageProcessor {
 	/** Implements Otsu's Method to convert the grayscale image to binary. May wish to use a more
 	 * efficient method for this later.
 	 */
-	private static int[] convertToBinary(int[] grayscalePixels){
+	static int[] convertToBinary(int[] grayscalePixels){
 		//Creates histogram of luminosity values with bin widths of BIN_WIDTH. +1 is added so that
 		//the bin indexes are truly between (0, max]. The luminosity value for each pixel is rounded up,
 		//so that pure white (i.e. 255) is not in a bin by itself. This is because the background
 		//will be white, so ideally similar white shades would count as the background. Because each
 		//value is rounded up, the max bin index is inclusive, while the lowest (i.e. 0) is exclusive.
 		//The bin at index=0 will never be filled.
-		int[] histogram = new int[(RANGE_VALUES / BIN_WIDTH)+1];
+		int[] histogram = newHistogram();
+		fillHistogram(grayscalePixels, 0, grayscalePixels.length, histogram);
+		
+		int thresholdValue = otsusMethod(histogram);
+		
+		int[] binaryPixels = new int[grayscalePixels.length];
+		applyThreshold(grayscalePixels, thresholdValue, 0, binaryPixels.length, binaryPixels);
 		
-		//Fills histogram based on sample.
-		for(int i=0; i<grayscalePixels.length; i++){
+		
+		return binaryPixels;
+	}
+	
+	
+	
+	/** Creates an empty luminosity histogram for Otsu's Method. See convertToBinary for how the
+	 * bins are laid out.
+	 */
+	static int[] newHistogram(){
+		return new int[(RANGE_VALUES / BIN_WIDTH)+1];
+	}
+	
+	
+	
+	/** Adds the pixels in [from, to) to the luminosity histogram. Helper method to the binary
+	 * converter method, split out so that row bands can fill their own histograms.
+	 */
+	static void fillHistogram(int[] grayscalePixels, int from, int to, int[] histogram){
+		for(int i=from; i<to; i++){
 			int luminosity = grayscalePixels[i];
 			int bin = luminosity / BIN_WIDTH;
 			//Below is equivalent to rounding up, as ints are always rounded down. This should be faster
@@ -141,22 +258,20 @@ public class ImageProcessor {
 			//Increase frequency.
 			histogram[bin]++;
 		}
-		
-		int thresholdValue = otsusMethod(histogram);
-		
-		int[] binaryPixels = new int[grayscalePixels.length];
-		
-		//Sets any value above the threshold to 1, and any value equal or below to 0.
-		for(int i=0; i<binaryPixels.length; i++){
+	}
+	
+	
+	
+	/** Sets any pixel in [from, to) above the threshold to 1, and any value equal or below to 0.
+	 */
+	static void applyThreshold(int[] grayscalePixels, int thresholdValue, int from, int to, int[] binaryPixels){
+		for(int i=from; i<to; i++){
 			if(grayscalePixels[i] > thresholdValue){
 				binaryPixels[i] = 1;
 			}else{
 				binaryPixels[i] = 0;
 			}
 		}
-		
-		
-		return binaryPixels;
 	}
 	
 	
@@ -164,7 +279,7 @@ public class ImageProcessor {
 	/** Implementation of actual Otsu's Method. This is a helper method to the binary
 	 * converter method.
 	 */
-	private static int otsusMethod(int[] histogram){
+	static int otsusMethod(int[] histogram){
 		//This holds values for the Between Class Variance value which dictates
 		//the optimal threshold value
 		double[] variances = new double[histogram.length];
@@ -235,7 +350,7 @@ public class ImageProcessor {
 	
 	/** Cleans the binary pixels by removing small black or white blobs
 	 */
-	private static int[] cleanBinaryPixels(int width, int height, int[] binaryPixels){
+	static int[] cleanBinaryPixels(int width, int height, int[] binaryPixels){
 		int[] cleanedPixels = binaryPixels.clone();
 		
 		//This loops through each point in the array. If a point is:
@@ -360,10 +475,20 @@ public class ImageProcessor {
 	/** Finds the edges of the key silhouette by determining every points where a black pixel
 	 * is directly next to a white pixel on from either above, below, right, or left.
 	 */
-	private static ArrayList<Point> findEdges(int width, int[] pixels){
+	static ArrayList<Point> findEdges(int width, int[] pixels){
 		ArrayList<Point> edges = new ArrayList<Point>();
+		findEdges(width, pixels, 0, pixels.length, edges);
 		
-		for(int i=0; i<pixels.length; i++){
+		return edges;
+	}
+	
+	
+	
+	/** Adds the edge points among the pixels in [from, to) to edges, in order. Pixels outside
+	 * the range are still read as neighbours, so row bands see the rows around them.
+	 */
+	static void findEdges(int width, int[] pixels, int from, int to, ArrayList<Point> edges){
+		for(int i=from; i<to; i++){
 			if(pixels[i] == BLACK){	//Only if this pixel is black.
 				//Makes sure all indexes are within bounds.
 				if(i-width >= 0 && i+width < pixels.length		&& i-1 >= 0 && i+1 < pixels.length){
@@ -380,9 +505,6 @@ public class ImageProcessor {
 				}
 			}
 		}
-		
-		
-		return edges;
 	}
 	
 	
@@ -390,7 +512,7 @@ public class ImageProcessor {
 	/** Returns an ArrayList with only the right edge of the total edge points entered.
 	 * 
 	 */
-	private static ArrayList<Point> selectRightEdge(ArrayList<Point> totalEdges){
+	static ArrayList<Point> selectRightEdge(ArrayList<Point> totalEdges){
 		ArrayList<Point> edges = new ArrayList<Point>();
 		
 		//Packs the data into a new ArrayList that can be manipulated without worry.
@@ -437,7 +559,7 @@ public class ImageProcessor {
 	 * this line is used in the inverse tangent function to determine the angle offset in radians.
 	 * This offset would ideally be PI/2 (or exactly vertical).
 	 */
-	private static double findKeyAngleOffset(ArrayList<Point> edges){
+	static double findKeyAngleOffset(ArrayList<Point> edges){
 		//Since the edge will always be in order from top to bottom, the min and max will always
 		//be the first and last points in the ArrayList.
 		Point max = edges.get(0);
@@ -463,11 +585,27 @@ public class ImageProcessor {
 	
 	
 	
+	/** Finds the beginning of the blade with the given detector, or with findBladeBeginning when it
+	 * is null. If the detector finds no straight enough window, the top of the edge is used, as
+	 * findBladeBeginning does.
+	 */
+	static Point findBladeBeginning(ArrayList<Point> edges, double angleOffset, BladeDetector detector){
+		if(detector == null){
+			return findBladeBeginning(edges, angleOffset);
+		}
+		
+		BladeDetector.Result blade = detector.detect(edges, angleOffset);
+		
+		return blade.found ? blade.bladeBeginning : edges.get(0);
+	}
+	
+	
+	
 	/** Finds beginning of the blade by finding the long, straight edge which corresponds
 	 * to the right side of the blade, since the teeth are on the left. This is the point
 	 * where the blade meets the head of the key.
 	 */
-	private static Point findBladeBeginning(ArrayList<Point> edges, double angleOffset){
+	static Point findBladeBeginning(ArrayList<Point> edges, double angleOffset){
 		Point bladeBeginning = edges.get(0);
 		
 		//Finds the slope between two consecutive points and projects it further down
@@ -599,7 +737,7 @@ public class ImageProcessor {
 	/** Finds the center, vertical dividing line of the key. This is done by finding and returning
 	 *  the lowest point on the blade, which should be the tip.
 	 */
-	private static Point findKeyCenter(Point bladeBeginning, ArrayList<Point> edges){
+	static Point findKeyCenter(Point bladeBeginning, ArrayList<Point> edges){
 		Point min = edges.get(0);
 		
 		for(Point p : edges){
@@ -621,7 +759,7 @@ public class ImageProcessor {
 	 * in the lower left quadrant in comparison to the key center. This essentially removes the part
 	 * of the blade containing the teeth, which are not useful in comparing keys.
 	 */
-	private static ArrayList<Point> cleanEdges(Point keyCenter, ArrayList<Point> edges){
+	static ArrayList<Point> cleanEdges(Point keyCenter, ArrayList<Point> edges){
 		ArrayList<Point> cleanedEdges = new ArrayList<Point>();
 		
 		for(Point p : edges){
@@ -0,0 +1,349 @@
+package contextCalculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Inverted file index over the key database, so that a query is only matched in full against
+ * the keys of a few clusters rather than against every key. Each key is summarized by a global
+ * descriptor, the sum of all its points' log-polar histograms normalized to sum to 1, and the keys
+ * are clustered by k-medoids on the Chi Squared distance between those descriptors. A query is
+ * compared with each cluster's medoid, and only the members of the nprobe nearest clusters are
+ * matched with KeyMatcher. More probes find the best match more often, at the cost of matching
+ * more keys.
+ *
+ * The index is built offline by build(), and saved and read back with DataManager. Newly enrolled
+ * keys are added to their nearest cluster by insert() without moving any medoid, so the clusters
+ * slowly drift from what build() would produce, and the index should be rebuilt from time to time.
+ */
+public class KeyClusterIndex {
+
+
+	public static final int DEFAULT_NPROBE = 2;
+	public static final int DEFAULT_MAX_ITERATIONS = 20;
+
+	//Key index of each cluster's medoid, and the key indices of each cluster's members, which
+	//include the medoid.
+	private final ArrayList<Integer> medoids;
+	private final ArrayList<ArrayList<Integer>> members;
+	//Global descriptor of each key, by key index. Null for keys not in the index.
+	private final ArrayList<double[]> descriptors;
+
+
+
+	/** Creates an index with the given clusters, whose members must all be non-null keys of the
+	 * database. Used when reading an index back from file.
+	 */
+	public KeyClusterIndex(ArrayList<int[][][]> keyDatabase, ArrayList<Integer> medoids,
+			ArrayList<ArrayList<Integer>> members){
+		this.medoids = medoids;
+		this.members = members;
+		this.descriptors = new ArrayList<double[]>();
+
+		for(ArrayList<Integer> cluster : members){
+			for(int keyIndex : cluster){
+				setDescriptor(keyIndex, findGlobalDescriptor(keyDatabase.get(keyIndex)));
+			}
+		}
+	}
+
+
+
+	/** Clusters every key of the database with points into numClusters clusters with k-medoids. The
+	 * first medoids are chosen k-medoids++ style (each further one with probability proportional to
+	 * its distance from the nearest medoid so far) from a Random with the given seed, so the same
+	 * database and seed always give the same index. Each iteration then assigns every key to its
+	 * nearest medoid and moves each medoid to the member with the smallest total distance to the
+	 * rest of its cluster, until no medoid moves or maxIterations is reached.
+	 */
+	public static KeyClusterIndex build(ArrayList<int[][][]> keyDatabase, int numClusters, int maxIterations, long seed){
+		//1. Find every key's global descriptor.
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		ArrayList<double[]> keyDescriptors = new ArrayList<double[]>();
+		for(int i=0; i<keyDatabase.size(); i++){
+			if(keyDatabase.get(i) != null && keyDatabase.get(i).length > 0){
+				keys.add(i);
+				keyDescriptors.add(findGlobalDescriptor(keyDatabase.get(i)));
+			}
+		}
+		int n = keys.size();
+		int k = Math.min(numClusters, n);
+
+		//2. Choose the first medoids, spread apart.
+		Random random = new Random(seed);
+		int[] medoids = new int[k];
+		double[] nearest = new double[n];
+		Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+		for(int c=0; c<k; c++){
+			if(c == 0){
+				medoids[c] = random.nextInt(n);
+			}else{
+				double total = 0;
+				for(int i=0; i<n; i++){
+					total += nearest[i];
+				}
+				double target = random.nextDouble()*total;
+				int chosen = 0;
+				while(chosen < n-1 && (target -= nearest[chosen]) > 0){
+					chosen++;
+				}
+				//Every key coincides with a medoid already, so take the first key which is not one.
+				//There is one, as there are at least as many keys as medoids.
+				if(total == 0){
+					chosen = 0;
+					while(findMedoidCluster(chosen, medoids, c) >= 0){
+						chosen++;
+					}
+				}
+				medoids[c] = chosen;
+			}
+			for(int i=0; i<n; i++){
+				nearest[i] = Math.min(nearest[i], findDistance(keyDescriptors.get(i), keyDescriptors.get(medoids[c])));
+			}
+		}
+
+		//3. Alternate assigning keys to their nearest medoid and moving each medoid to the centre
+		//of its cluster. A medoid stays in its own cluster even when keys coincide, so no cluster
+		//can move its medoid onto another's.
+		int[] assignment = new int[n];
+		for(int iteration=0; iteration<=maxIterations; iteration++){
+			for(int i=0; i<n; i++){
+				int own = findMedoidCluster(i, medoids, k);
+				assignment[i] = (own >= 0) ? own : findNearestMedoid(keyDescriptors.get(i), keyDescriptors, medoids);
+			}
+			if(iteration == maxIterations){
+				break;
+			}
+
+			boolean moved = false;
+			for(int c=0; c<k; c++){
+				int bestMedoid = medoids[c];
+				double bestTotal = Double.POSITIVE_INFINITY;
+				for(int i=0; i<n; i++){
+					if(assignment[i] != c){
+						continue;
+					}
+					double total = 0;
+					for(int j=0; j<n && total<bestTotal; j++){
+						if(assignment[j] == c){
+							total += findDistance(keyDescriptors.get(i), keyDescriptors.get(j));
+						}
+					}
+					if(total < bestTotal){
+						bestTotal = total;
+						bestMedoid = i;
+					}
+				}
+				if(bestMedoid != medoids[c]){
+					medoids[c] = bestMedoid;
+					moved = true;
+				}
+			}
+			if(!moved){
+				break;
+			}
+		}
+
+		//4. Build the clusters from the final assignment.
+		ArrayList<Integer> medoidKeys = new ArrayList<Integer>();
+		ArrayList<ArrayList<Integer>> clusters = new ArrayList<ArrayList<Integer>>();
+		for(int c=0; c<k; c++){
+			medoidKeys.add(keys.get(medoids[c]));
+			clusters.add(new ArrayList<Integer>());
+		}
+		for(int i=0; i<n; i++){
+			clusters.get(assignment[i]).add(keys.get(i));
+		}
+
+		return new KeyClusterIndex(keyDatabase, medoidKeys, clusters);
+	}
+
+
+
+	public int getNumClusters(){
+		return medoids.size();
+	}
+
+
+
+	/** Key index of the cluster's medoid.
+	 */
+	public int getMedoid(int cluster){
+		return medoids.get(cluster);
+	}
+
+
+
+	/** Key indices of the cluster's members, including its medoid.
+	 */
+	public ArrayList<Integer> getMembers(int cluster){
+		return members.get(cluster);
+	}
+
+
+
+	/** Adds a newly enrolled key to the cluster with the nearest medoid. The medoids do not move.
+	 * If the index has no clusters yet, the key becomes the medoid of a new one. A key without points
+	 * is not added, as it is never matched.
+	 */
+	public void insert(int keyIndex, int[][][] shapeContext){
+		double[] descriptor = findGlobalDescriptor(shapeContext);
+		if(descriptor == null){
+			return;
+		}
+		setDescriptor(keyIndex, descriptor);
+
+		if(medoids.isEmpty()){
+			medoids.add(keyIndex);
+			members.add(new ArrayList<Integer>());
+		}
+		members.get(findNearestClusters(descriptor, 1)[0]).add(keyIndex);
+	}
+
+
+
+	/** Returns the key indices of the members of the nprobe clusters whose medoids are nearest to
+	 * the query, nearest cluster first. A query without points has none.
+	 */
+	public ArrayList<Integer> findCandidates(int[][][] shapeContextOriginal, int nprobe){
+		ArrayList<Integer> candidates = new ArrayList<Integer>();
+		double[] descriptor = findGlobalDescriptor(shapeContextOriginal);
+		if(descriptor == null){
+			return candidates;
+		}
+		for(int cluster : findNearestClusters(descriptor, nprobe)){
+			candidates.addAll(members.get(cluster));
+		}
+
+		return candidates;
+	}
+
+
+
+	/** Finds the k best matches among the members of the nprobe nearest clusters, as
+	 * KeyMatcher.findBestMatches does over the whole database. The nearest clusters are matched
+	 * first, so the bound rejects the members of the further ones sooner.
+	 */
+	public ArrayList<KeyMatch> findBestMatches(int[][][] shapeContextOriginal, ArrayList<int[][][]> keyDatabase,
+			int nprobe, int k){
+		return KeyMatcher.findBestMatches(shapeContextOriginal, keyDatabase, findCandidates(shapeContextOriginal, nprobe), k);
+	}
+
+
+
+	/** Indices of the count clusters whose medoids are nearest the descriptor, nearest first.
+	 */
+	private int[] findNearestClusters(double[] descriptor, int count){
+		int numClusters = medoids.size();
+		count = Math.min(count, numClusters);
+		double[] distances = new double[numClusters];
+		for(int c=0; c<numClusters; c++){
+			distances[c] = findDistance(descriptor, descriptors.get(medoids.get(c)));
+		}
+
+		//Selection of the nearest count, as count is small.
+		int[] nearestClusters = new int[count];
+		boolean[] taken = new boolean[numClusters];
+		for(int i=0; i<count; i++){
+			int best = -1;
+			for(int c=0; c<numClusters; c++){
+				if(!taken[c] && (best < 0 || distances[c] < distances[best])){
+					best = c;
+				}
+			}
+			taken[best] = true;
+			nearestClusters[i] = best;
+		}
+
+		return nearestClusters;
+	}
+
+
+
+	private void setDescriptor(int keyIndex, double[] descriptor){
+		while(descriptors.size() <= keyIndex){
+			descriptors.add(null);
+		}
+		descriptors.set(keyIndex, descriptor);
+	}
+
+
+
+	private static int findNearestMedoid(double[] descriptor, ArrayList<double[]> keyDescriptors, int[] medoids){
+		int nearest = 0;
+		double nearestDistance = Double.POSITIVE_INFINITY;
+		for(int c=0; c<medoids.length; c++){
+			double distance = findDistance(descriptor, keyDescriptors.get(medoids[c]));
+			if(distance < nearestDistance){
+				nearestDistance = distance;
+				nearest = c;
+			}
+		}
+
+		return nearest;
+	}
+
+
+
+	/** The cluster among the first numMedoids whose medoid the key is, or -1 if it is none's.
+	 */
+	private static int findMedoidCluster(int key, int[] medoids, int numMedoids){
+		for(int c=0; c<numMedoids; c++){
+			if(medoids[c] == key){
+				return c;
+			}
+		}
+
+		return -1;
+	}
+
+
+
+	/** Sums the histograms of every point of the shape context, bin by bin, and normalizes the sum
+	 * to add up to 1, so that keys described with different numbers of points can be compared. Returns
+	 * null if the shape context is null or has no points, as it then has no bins to sum.
+	 */
+	static double[] findGlobalDescriptor(int[][][] shapeContext){
+		if(shapeContext == null || shapeContext.length == 0){
+			return null;
+		}
+		int numRadialBins = shapeContext[0].length;
+		int numLogBins = shapeContext[0][0].length;
+		double[] descriptor = new double[numRadialBins*numLogBins];
+
+		double total = 0;
+		for(int[][] histogram : shapeContext){
+			for(int r=0; r<numRadialBins; r++){
+				for(int l=0; l<numLogBins; l++){
+					descriptor[r*numLogBins + l] += histogram[r][l];
+					total += histogram[r][l];
+				}
+			}
+		}
+		if(total > 0){
+			for(int i=0; i<descriptor.length; i++){
+				descriptor[i] /= total;
+			}
+		}
+
+		return descriptor;
+	}
+
+
+
+	/** The Chi Squared distance between two global descriptors, as KeyMatcher compares histograms.
+	 */
+	static double findDistance(double[] a, double[] b){
+		double sum = 0.0;
+		for(int i=0; i<a.length; i++){
+			double denominator = a[i] + b[i];
+			if(denominator != 0){
+				sum += (a[i]-b[i])*(a[i]-b[i]) / denominator;
+			}
+		}
+
+		return 0.5*sum;
+	}
+
+
+}
@@ -3,6 +3,7 @@ package contextCalculator;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 import data.DataManager;
 
@@ -10,19 +11,39 @@ public class KeyContextCalculatorMain {
 
 	public static void main(String[] args) {		
 		BufferedImage image = DataManager.getRawKeyTeethLeftImage();
+		BufferedImage rightImage = DataManager.getRawKeyTeethRightImage();
+		
+		//Match both profiles of the key when the right teeth photo is available, processing the two
+		//photos concurrently.
+		if(rightImage != null){
+			ForkJoinPool pool = new ForkJoinPool();
+			DualProfileShapeContext shapeContext = DualProfileShapeContext.calculate(image, rightImage, pool);
+			pool.shutdown();
+			
+			//Change the first parameter to indicate the key index desired for the
+			//newest key. Comment/Uncomment to determine whether the key is saved.
+			//DataManager.saveDualProfileShapeContextToFile(2, shapeContext);
+			
+			ArrayList<DualProfileShapeContext> keyDatabase = DataManager.getKeyDualProfileShapeContexts();
+			int bestMatchIndex = KeyMatcher.matchKey(shapeContext, keyDatabase, KeyMatcher.DEFAULT_NUM_CANDIDATES);
+			
+			System.out.println("INDEX OF MOST SIMILAR KEY: "+bestMatchIndex);
+			return;
+		}
 		
 		ArrayList<Point> edges = ImageProcessor.getKeyEdges(image);
 		
-		int[][][] shapeContext = ShapeContextCalculator.calcShapeContext(edges);
+		MultiResolutionShapeContext shapeContext = ShapeContextCalculator.calcMultiResolutionShapeContext(edges);
 		
 		//Change the first parameter to indicate the key index desired for the
 		//newest key. Comment/Uncomment to determine whether the key is saved.
-		//DataManager.saveShapeContextToFile(2, shapeContext);
+		//DataManager.saveMultiResolutionShapeContextToFile(2, shapeContext);
 		
 		//Comment out following lines to remove matching functionality
-		ArrayList<int[][][]> keyDatabase = DataManager.getKeyShapeContexts();
+		ArrayList<MultiResolutionShapeContext> keyDatabase = DataManager.getKeyMultiResolutionShapeContexts();
 		
-		int bestMatchIndex = KeyMatcher.matchKey(shapeContext, keyDatabase);
+		//Pass a ThinPlateSplineRefiner as the last parameter to refine the best candidates with a warp.
+		int bestMatchIndex = KeyMatcher.matchKey(shapeContext, keyDatabase, KeyMatcher.DEFAULT_NUM_CANDIDATES, null);
 		
 		System.out.println("INDEX OF MOST SIMILAR KEY: "+bestMatchIndex);
 	}
@@ -0,0 +1,167 @@
+package contextCalculator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import data.DataManager;
+
+/** A database of keys to match against, as a handle that KeyMatchingEngine is given with each
+ * query, so that one engine can match against several databases, and several engines against one.
+ * The list of keys is copied when the database is made, so adding or removing keys from the caller's
+ * list does not change it. The keys' arrays are not copied, and are shared with the caller and with
+ * getKey's callers, none of whom may change them; as long as none does, the database can be shared by
+ * any number of threads.
+ */
+public final class KeyDatabase {
+
+
+	private final String name;
+	private final ArrayList<MultiResolutionShapeContext> keys;
+	private final int[] fineBins;
+	private final int[] coarseBins;
+	private final double[][] fineSummaries;
+
+
+
+	/** @param name identifies the database in errors.
+	 * @param keys every key's shape contexts, at its key index. A key with a null fine level is
+	 * never matched.
+	 */
+	public KeyDatabase(String name, Collection<MultiResolutionShapeContext> keys){
+		this.name = name;
+		this.keys = new ArrayList<MultiResolutionShapeContext>(keys);
+		this.fineBins = findBins(this.keys, false);
+		this.coarseBins = findBins(this.keys, true);
+		this.fineSummaries = KeyMatcher.summarizeKeys(this.keys);
+	}
+
+
+
+	/** Reads the databases with DataManager's default names from the directory, rather than from
+	 * DataManager's fixed path.
+	 */
+	public static KeyDatabase load(File directory) throws IOException {
+		return load(directory.getPath(), new File(directory, DataManager.shapeContextDatabaseName),
+				new File(directory, DataManager.coarseShapeContextDatabaseName),
+				new File(directory, DataManager.pointDatabaseName));
+	}
+
+
+
+	/** Reads the database from the given files, in DataManager's formats. The point database may be
+	 * null.
+	 */
+	public static KeyDatabase load(String name, File fineDatabase, File coarseDatabase, File keyPointDatabase)
+			throws IOException {
+		try {
+			return new KeyDatabase(name, DataManager.readKeyMultiResolutionShapeContexts(fineDatabase, coarseDatabase,
+					keyPointDatabase));
+		} catch (RuntimeException e) {
+			throw new IOException("malformed key database "+name+": "+e, e);
+		}
+	}
+
+
+
+	public String getName(){
+		return name;
+	}
+
+
+
+	/** Number of key indices, including those of keys missing from the database.
+	 */
+	public int size(){
+		return keys.size();
+	}
+
+
+
+	/** Number of keys with a fine level, which are those anytime matching matches.
+	 */
+	public int getNumMatchableKeys(){
+		int numKeys = 0;
+		for(double[] summary : fineSummaries){
+			if(summary != null){
+				numKeys++;
+			}
+		}
+
+		return numKeys;
+	}
+
+
+
+	/** The key's shape contexts, which are the database's own and must not be changed.
+	 */
+	public MultiResolutionShapeContext getKey(int keyIndex){
+		return keys.get(keyIndex);
+	}
+
+
+
+	/** Checks that the query's levels have the same number of bins as the database's, and no more
+	 * points than any key's, so that they can be compared and every point of the query is matched.
+	 *
+	 * @throws IllegalArgumentException if they do not.
+	 */
+	public void checkCompatible(MultiResolutionShapeContext query){
+		checkBins(query.getFine(), fineBins, "fine");
+		checkBins(query.getCoarse(), coarseBins, "coarse");
+	}
+
+
+
+	/** The keys, for KeyMatcher. They must not be changed.
+	 */
+	ArrayList<MultiResolutionShapeContext> getKeys(){
+		return keys;
+	}
+
+
+
+	/** Each key's summed fine level, for anytime matching's pre-score. They must not be changed.
+	 */
+	double[][] getFineSummaries(){
+		return fineSummaries;
+	}
+
+
+
+	private void checkBins(int[][][] level, int[] bins, String levelName){
+		if(level == null || level.length == 0 || bins == null){
+			return;
+		}
+		if(level[0].length != bins[0] || level[0][0].length != bins[1]){
+			throw new IllegalArgumentException(levelName+" shape context bins do not match the database "+name+"'s");
+		}
+		if(level.length > bins[2]){
+			throw new IllegalArgumentException(levelName+" shape context has "+level.length
+					+" points, more than the "+bins[2]+" of some key of the database "+name);
+		}
+	}
+
+
+
+	/** The radial and log bins of the first key with the level, and the fewest points of any key's
+	 * level, or null if no key has it.
+	 */
+	private static int[] findBins(ArrayList<MultiResolutionShapeContext> keys, boolean isCoarse){
+		int[] bins = null;
+		for(MultiResolutionShapeContext key : keys){
+			int[][][] level = (key == null) ? null : (isCoarse ? key.getCoarse() : key.getFine());
+			if(level != null && level.length > 0){
+				if(bins == null){
+					bins = new int[]{level[0].length, level[0][0].length, level.length};
+				}
+				bins[2] = Math.min(bins[2], level.length);
+			}
+		}
+
+		return bins;
+	}
+
+
+}
@@ -0,0 +1,39 @@
+package contextCalculator;
+
+/** A key from the database and the cost of matching it, as found by KeyMatcher.
+ */
+public class KeyMatch {
+
+
+	private final int keyIndex;
+	private final double cost;
+
+
+
+	public KeyMatch(int keyIndex, double cost){
+		this.keyIndex = keyIndex;
+		this.cost = cost;
+	}
+
+
+
+	/** Index of the key within the database it was matched from.
+	 */
+	public int getKeyIndex(){
+		return keyIndex;
+	}
+
+
+
+	public double getCost(){
+		return cost;
+	}
+
+
+
+	public String toString(){
+		return "key: "+keyIndex+", cost: "+cost;
+	}
+
+
+}
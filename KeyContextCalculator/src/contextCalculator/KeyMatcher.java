@@ -1,34 +1,67 @@
 package contextCalculator;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import metrics.KeySolveEvent;
+import metrics.MatchPhaseEvent;
+import metrics.PipelineCounter;
+import metrics.PipelineMetrics;
+import metrics.PipelineStage;
 
 public class KeyMatcher {
 
 	
+	public static final int DEFAULT_NUM_CANDIDATES = 5;
+	
+	//Each thread's cost matrix buffer, see getCostMatrixBuffer.
+	private static final ThreadLocal<double[][]> costMatrixBuffers = new ThreadLocal<double[][]>();
+	
+	//Keys matched against every original of a batch before moving on. A block of coarse shape
+	//contexts (12 KB each) stays in the L2 cache while every original is matched against it.
+	private static final int KEY_BLOCK_SIZE = 16;
+
+	
 	/** Finds the best most similar key from the database, based on calculations performed
 	 * on the shape context of each key (implementing X^2 statistic and Hungarian Method).
 	 * 
 	 * @param shapeContext
-	 * @param keyDatabase
-	 * @return index within the supplied database array list of the key which is most similar.
+	 * @param keyDatabase keys missing from the database are null, and are never matched.
+	 * @return index within the supplied database array list of the key which is most similar, or -1
+	 * if every key is missing.
 	 */
 	public static int matchKey(int[][][] shapeContextOriginal, ArrayList<int[][][]> keyDatabase){
 		double[] costs = new double[keyDatabase.size()];
 		
 		for(int i=0; i<keyDatabase.size(); i++){
+			if(keyDatabase.get(i) == null){
+				continue;
+			}
 			//Calculates ChiSquared values of each key in Database, and then find optimal configuration
 			//based on the Hungarian Method.
+			KeySolveEvent event = KeySolveEvent.start(i, shapeContextOriginal.length, keyDatabase.get(i).length,
+					Double.POSITIVE_INFINITY);
 			double cost = calculateMinCostMatrix(shapeContextOriginal, keyDatabase.get(i));
+			event.finish(cost);
 			costs[i] = cost;
 		}
 		
 		//find the smallest cost, and assign that key as the matching key.
-		int minIndex = 0;
-		double minValue = costs[minIndex];
+		int minIndex = -1;
+		double minValue = Double.POSITIVE_INFINITY;
 		
 		for(int i=0; i<keyDatabase.size(); i++){
+			if(keyDatabase.get(i) == null){
+				continue;
+			}
 			System.out.println("key: "+i+", cost: "+costs[i]);
-			if(costs[i] < minValue){
+			if(minIndex == -1 || costs[i] < minValue){
 				minValue = costs[i];
 				minIndex = i;
 			}
@@ -39,6 +72,710 @@ public class KeyMatcher {
 
 	
 	
+	/** Finds the most similar key from the database coarse to fine. Every key is first matched
+	 * with the coarse shape contexts, which is cheap as the Hungarian Method is cubic in the number
+	 * of points. Only the numCandidates keys with the lowest coarse cost are then matched with the
+	 * fine shape contexts, and the lowest fine cost decides the match. Keys without a coarse shape
+	 * context in the database are always matched at the fine level, and keys without a fine one are
+	 * never matched.
+	 * 
+	 * @param shapeContextOriginal
+	 * @param keyDatabase
+	 * @param numCandidates number of keys refined at the fine level.
+	 * @return index within the supplied database array list of the key which is most similar, or -1
+	 * if no key could be matched.
+	 */
+	public static int matchKey(MultiResolutionShapeContext shapeContextOriginal,
+			ArrayList<MultiResolutionShapeContext> keyDatabase, int numCandidates){
+		return matchKey(shapeContextOriginal, keyDatabase, numCandidates, null);
+	}
+	
+	
+	
+	/** As matchKey(shapeContextOriginal, keyDatabase, numCandidates), and then, if refiner is not
+	 * null, refines the costs of the refiner's number of keys with the lowest fine costs with a thin
+	 * plate spline warp. Only keys whose fine points are known, as are the original's, are refined.
+	 * A refined cost is never more than the fine cost, so the refined keys stay ahead of the rest.
+	 */
+	public static int matchKey(MultiResolutionShapeContext shapeContextOriginal,
+			ArrayList<MultiResolutionShapeContext> keyDatabase, int numCandidates, ThinPlateSplineRefiner refiner){
+		return matchKey(shapeContextOriginal, keyDatabase, numCandidates, refiner, null, 0);
+	}
+	
+	
+	
+	/** As matchKey(shapeContextOriginal, keyDatabase, numCandidates, refiner), but if index is not
+	 * null, only the members of the nprobe clusters of the index nearest the original's fine shape
+	 * context are screened, rather than every key. The index must have been built over the fine
+	 * shape contexts of the same database.
+	 */
+	public static int matchKey(MultiResolutionShapeContext shapeContextOriginal,
+			ArrayList<MultiResolutionShapeContext> keyDatabase, int numCandidates, ThinPlateSplineRefiner refiner,
+			KeyClusterIndex index, int nprobe){
+		//1. Screen the keys at the coarse level, keeping the numCandidates with the lowest coarse cost.
+		ArrayList<Integer> candidates = screenCandidates(shapeContextOriginal, keyDatabase, numCandidates, index, nprobe);
+		
+		//2. Match the candidates at the fine level. Only the lowest fine costs are needed (the
+		//refiner's number of them, or else just the lowest), so the rest are rejected by the bound
+		//and left at infinity.
+		long start = PipelineMetrics.now();
+		MatchPhaseEvent phase = MatchPhaseEvent.start(PipelineStage.MATCH_FINE, keyDatabase.size());
+		int numNeeded = (refiner == null) ? 1 : Math.max(1, refiner.getNumCandidates());
+		final double[] fineCosts = new double[keyDatabase.size()];
+		ArrayList<int[][][]> fineDatabase = new ArrayList<int[][][]>();
+		for(int i=0; i<keyDatabase.size(); i++){
+			fineDatabase.add(null);
+			fineCosts[i] = Double.POSITIVE_INFINITY;
+		}
+		for(int i : candidates){
+			fineDatabase.set(i, keyDatabase.get(i).getFine());
+		}
+		ArrayList<KeyMatch> fineMatches = findBestMatches(shapeContextOriginal.getFine(), fineDatabase, candidates, numNeeded);
+		for(KeyMatch match : fineMatches){
+			fineCosts[match.getKeyIndex()] = match.getCost();
+		}
+		PipelineStage.MATCH_FINE.recordSince(start);
+		phase.finish(candidates.size(), fineMatches.size());
+		
+		//3. Refine the best fine candidates with a thin plate spline warp.
+		if(refiner != null && shapeContextOriginal.getFinePoints() != null){
+			start = PipelineMetrics.now();
+			phase = MatchPhaseEvent.start(PipelineStage.MATCH_REFINE, keyDatabase.size());
+			Integer[] fineRanked = candidates.toArray(new Integer[candidates.size()]);
+			Arrays.sort(fineRanked, new Comparator<Integer>(){
+				public int compare(Integer a, Integer b){
+					return Double.compare(fineCosts[a], fineCosts[b]);
+				}
+			});
+			
+			ThinPlateSplineRefiner.PreparedQuery query = refiner.prepare(shapeContextOriginal.getFinePoints(),
+					shapeContextOriginal.getFine());
+			//Keys rejected by the bound have no fine cost to refine, and come last.
+			int refined = 0;
+			for(int i=0; i<fineRanked.length && refined<refiner.getNumCandidates()
+					&& fineCosts[fineRanked[i]] != Double.POSITIVE_INFINITY; i++){
+				MultiResolutionShapeContext key = keyDatabase.get(fineRanked[i]);
+				if(refiner.canRefine(query, key.getFinePoints(), key.getFine())){
+					fineCosts[fineRanked[i]] = refiner.refine(query, key.getFinePoints(), key.getFine());
+					refined++;
+				}
+			}
+			PipelineStage.MATCH_REFINE.recordSince(start);
+			phase.finish(refined, refined);
+		}
+		
+		//4. Take the smallest cost.
+		start = PipelineMetrics.now();
+		phase = MatchPhaseEvent.start(PipelineStage.MATCH_SELECT, keyDatabase.size());
+		int minIndex = -1;
+		double minValue = Double.POSITIVE_INFINITY;
+		
+		for(int i : candidates){
+			if(fineCosts[i] == Double.POSITIVE_INFINITY){
+				System.out.println("key: "+i+", rejected by bound");
+				continue;
+			}
+			System.out.println("key: "+i+", cost: "+fineCosts[i]);
+			if(fineCosts[i] < minValue){
+				minValue = fineCosts[i];
+				minIndex = i;
+			}
+		}
+		PipelineStage.MATCH_SELECT.recordSince(start);
+		phase.finish(candidates.size(), (minIndex < 0) ? 0 : 1);
+		
+		return minIndex;
+	}
+	
+	
+	
+	/** Ranks the k keys from the database most similar to the original, coarse to fine as
+	 * matchKey(shapeContextOriginal, keyDatabase, numCandidates) finds the most similar one. The
+	 * coarse level screens in the max(numCandidates, k) keys with the lowest coarse cost, so that
+	 * asking for more keys than numCandidates still ranks k of them.
+	 * 
+	 * @return the k matches with the lowest fine cost among the screened keys and those which can
+	 * only be matched at the fine level, lowest first. There are fewer than k only if fewer keys
+	 * could be matched.
+	 */
+	public static ArrayList<KeyMatch> findBestMatches(MultiResolutionShapeContext shapeContextOriginal,
+			ArrayList<MultiResolutionShapeContext> keyDatabase, int numCandidates, int k){
+		ArrayList<Integer> candidates = screenCandidates(shapeContextOriginal, keyDatabase, Math.max(numCandidates, k),
+				null, 0);
+		
+		return matchCandidates(shapeContextOriginal.getFine(), keyDatabase, candidates, k);
+	}
+	
+	
+	
+	/** As findBestMatches(shapeContextOriginal, keyDatabase, numCandidates, k) for each of the
+	 * originals, giving the same matches, but screening all of them at the coarse level in one pass
+	 * over the database. The pass is split into numTasks runs of consecutive keys, and each
+	 * original's fine level is matched on its own, so that the batch is spread over the executor's
+	 * threads. If the executor is null, they are run one after another on the calling thread.
+	 */
+	public static ArrayList<ArrayList<KeyMatch>> findBestMatches(ArrayList<MultiResolutionShapeContext> shapeContextOriginals,
+			final ArrayList<MultiResolutionShapeContext> keyDatabase, int numCandidates, final int k,
+			ExecutorService executor, int numTasks){
+		final int numScreenedIn = Math.max(numCandidates, k);
+		
+		//1. Screen the originals with a coarse shape context together.
+		long start = PipelineMetrics.now();
+		MatchPhaseEvent phase = MatchPhaseEvent.start(PipelineStage.MATCH_SCREEN, keyDatabase.size());
+		final ArrayList<int[][][]> coarseDatabase = new ArrayList<int[][][]>();
+		ArrayList<Integer> screened = new ArrayList<Integer>();
+		final ArrayList<Integer> unscreened = new ArrayList<Integer>();
+		for(int i=0; i<keyDatabase.size(); i++){
+			MultiResolutionShapeContext key = keyDatabase.get(i);
+			boolean canMatch = key != null && key.getFine() != null;
+			boolean canScreen = canMatch && key.getCoarse() != null;
+			
+			coarseDatabase.add(canScreen ? key.getCoarse() : null);
+			if(canScreen){
+				screened.add(i);
+			}else if(canMatch){
+				unscreened.add(i);
+			}
+		}
+		
+		final ArrayList<int[][][]> coarseOriginals = new ArrayList<int[][][]>();
+		for(MultiResolutionShapeContext original : shapeContextOriginals){
+			if(original.getCoarse() != null){
+				coarseOriginals.add(original.getCoarse());
+			}
+		}
+		ArrayList<Callable<ArrayList<ArrayList<KeyMatch>>>> screens = new ArrayList<Callable<ArrayList<ArrayList<KeyMatch>>>>();
+		int numRuns = Math.max(1, Math.min(numTasks, screened.size()));
+		for(int t=0; t<numRuns; t++){
+			final ArrayList<Integer> run = new ArrayList<Integer>(screened.subList(screened.size()*t/numRuns,
+					screened.size()*(t+1)/numRuns));
+			screens.add(new Callable<ArrayList<ArrayList<KeyMatch>>>(){
+				public ArrayList<ArrayList<KeyMatch>> call(){
+					return findBestMatches(coarseOriginals, coarseDatabase, run, numScreenedIn);
+				}
+			});
+		}
+		
+		//Each run's best keys are merged in the order of the runs, so that ties go to the key screened
+		//first, as they would in a single pass.
+		final ArrayList<ArrayList<KeyMatch>> coarseMatches = new ArrayList<ArrayList<KeyMatch>>();
+		for(int q=0; q<coarseOriginals.size(); q++){
+			coarseMatches.add(new ArrayList<KeyMatch>());
+		}
+		for(ArrayList<ArrayList<KeyMatch>> runMatches : runAll(screens, executor)){
+			for(int q=0; q<coarseOriginals.size(); q++){
+				for(KeyMatch match : runMatches.get(q)){
+					insertMatch(coarseMatches.get(q), numScreenedIn, match);
+				}
+			}
+		}
+		int totalScreenedIn = 0;
+		for(ArrayList<KeyMatch> matches : coarseMatches){
+			PipelineCounter.KEYS_SCREENED_OUT.add(screened.size() - matches.size());
+			totalScreenedIn += matches.size();
+		}
+		PipelineStage.MATCH_SCREEN.recordSince(start);
+		phase.finish(screened.size(), totalScreenedIn);
+		
+		//2. Match each original's candidates at the fine level. An original without a coarse shape
+		//context is matched against every key at the fine level, as screenCandidates would.
+		ArrayList<Callable<ArrayList<KeyMatch>>> fineMatches = new ArrayList<Callable<ArrayList<KeyMatch>>>();
+		int screenedOriginal = 0;
+		for(final MultiResolutionShapeContext original : shapeContextOriginals){
+			final ArrayList<Integer> candidates = new ArrayList<Integer>();
+			if(original.getCoarse() != null){
+				for(KeyMatch match : coarseMatches.get(screenedOriginal++)){
+					candidates.add(match.getKeyIndex());
+				}
+				candidates.addAll(unscreened);
+			}else{
+				candidates.addAll(screened);
+				candidates.addAll(unscreened);
+				Collections.sort(candidates);
+			}
+			
+			fineMatches.add(new Callable<ArrayList<KeyMatch>>(){
+				public ArrayList<KeyMatch> call(){
+					return matchCandidates(original.getFine(), keyDatabase, candidates, k);
+				}
+			});
+		}
+		
+		return runAll(fineMatches, executor);
+	}
+	
+	
+	
+	/** Matches the candidates of the database against the original at the fine level, in their
+	 * order, and returns the k best.
+	 */
+	private static ArrayList<KeyMatch> matchCandidates(int[][][] fineOriginal,
+			ArrayList<MultiResolutionShapeContext> keyDatabase, ArrayList<Integer> candidates, int k){
+		long start = PipelineMetrics.now();
+		MatchPhaseEvent phase = MatchPhaseEvent.start(PipelineStage.MATCH_FINE, keyDatabase.size());
+		ArrayList<int[][][]> fineDatabase = new ArrayList<int[][][]>();
+		for(int i=0; i<keyDatabase.size(); i++){
+			fineDatabase.add(null);
+		}
+		for(int i : candidates){
+			fineDatabase.set(i, keyDatabase.get(i).getFine());
+		}
+		ArrayList<KeyMatch> best = findBestMatches(fineOriginal, fineDatabase, candidates, k);
+		PipelineStage.MATCH_FINE.recordSince(start);
+		phase.finish(candidates.size(), best.size());
+		
+		return best;
+	}
+	
+	
+	
+	/** Runs the tasks on the executor, or one after another on this thread if it is null, and returns
+	 * their results in order. A task's exception is rethrown.
+	 */
+	private static <T> ArrayList<T> runAll(ArrayList<Callable<T>> tasks, ExecutorService executor){
+		ArrayList<T> results = new ArrayList<T>();
+		try {
+			if(executor == null){
+				for(Callable<T> task : tasks){
+					results.add(task.call());
+				}
+			}else{
+				for(Future<T> result : executor.invokeAll(tasks)){
+					results.add(result.get());
+				}
+			}
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException)e.getCause();
+			}
+			throw new IllegalStateException("matching failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while matching", e);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("matching failed", e);
+		}
+		
+		return results;
+	}
+	
+	
+	
+	/** Screens every key with a coarse shape context at the coarse level (or only those of the
+	 * nprobe nearest clusters, if index is not null), and returns the numCandidates keys with the
+	 * lowest coarse cost, lowest first, followed by every key which can only be matched at the fine
+	 * level.
+	 */
+	private static ArrayList<Integer> screenCandidates(MultiResolutionShapeContext shapeContextOriginal,
+			ArrayList<MultiResolutionShapeContext> keyDatabase, int numCandidates, KeyClusterIndex index, int nprobe){
+		long start = PipelineMetrics.now();
+		MatchPhaseEvent phase = MatchPhaseEvent.start(PipelineStage.MATCH_SCREEN, keyDatabase.size());
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		if(index != null){
+			keys = index.findCandidates(shapeContextOriginal.getFine(), nprobe);
+		}else{
+			for(int i=0; i<keyDatabase.size(); i++){
+				keys.add(i);
+			}
+		}
+		
+		ArrayList<int[][][]> coarseDatabase = new ArrayList<int[][][]>();
+		ArrayList<Integer> screened = new ArrayList<Integer>();
+		ArrayList<Integer> unscreened = new ArrayList<Integer>();
+		for(int i=0; i<keyDatabase.size(); i++){
+			coarseDatabase.add(null);
+		}
+		
+		for(int i : keys){
+			MultiResolutionShapeContext key = keyDatabase.get(i);
+			boolean canMatch = key != null && key.getFine() != null;
+			boolean canScreen = canMatch && key.getCoarse() != null && shapeContextOriginal.getCoarse() != null;
+			
+			if(canScreen){
+				coarseDatabase.set(i, key.getCoarse());
+				screened.add(i);
+			}else if(canMatch){
+				unscreened.add(i);
+			}
+		}
+		
+		//The candidates are matched at the fine level best coarse cost first, which lets the bound
+		//reject the rest sooner.
+		ArrayList<Integer> candidates = new ArrayList<Integer>();
+		if(shapeContextOriginal.getCoarse() != null){
+			for(KeyMatch match : findBestMatches(shapeContextOriginal.getCoarse(), coarseDatabase, screened, numCandidates)){
+				candidates.add(match.getKeyIndex());
+			}
+			PipelineCounter.KEYS_SCREENED_OUT.add(screened.size() - candidates.size());
+		}
+		candidates.addAll(unscreened);
+		PipelineStage.MATCH_SCREEN.recordSince(start);
+		phase.finish(keys.size(), candidates.size());
+		
+		return candidates;
+	}
+	
+	
+	
+	/** Anytime matching: ranks the k keys from the database most similar to the original at the fine
+	 * level, as findBestMatches(shapeContextOriginal.getFine(), fineDatabase, k) would, but stops as soon
+	 * as the budget runs out or is cancelled, and returns the best of the keys matched by then. The keys
+	 * are matched in order of a cheap pre-score, the distance between their global descriptors, so that
+	 * the likely keys are matched first and the bound rejects the rest sooner. Given the time, the
+	 * matches are the exact best keys at the fine level, which the coarse screen does not promise.
+	 * 
+	 * The budget is checked before each key, so the match stops within one key's solve of it. The
+	 * keys are summed for the pre-score on every call; KeyMatchingEngine's databases sum them once.
+	 */
+	public static AnytimeMatches findBestMatches(MultiResolutionShapeContext shapeContextOriginal,
+			ArrayList<MultiResolutionShapeContext> keyDatabase, int k, MatchBudget budget){
+		return findBestMatches(shapeContextOriginal, keyDatabase, summarizeKeys(keyDatabase), k, budget);
+	}
+	
+	
+	
+	/** As findBestMatches(shapeContextOriginal, keyDatabase, k, budget), with the keys' summaries
+	 * from summarizeKeys(keyDatabase).
+	 */
+	static AnytimeMatches findBestMatches(MultiResolutionShapeContext shapeContextOriginal,
+			ArrayList<MultiResolutionShapeContext> keyDatabase, double[][] keySummaries, int k, MatchBudget budget){
+		//1. Pre-score every key which can be matched, and order them best first.
+		long start = PipelineMetrics.now();
+		MatchPhaseEvent phase = MatchPhaseEvent.start(PipelineStage.MATCH_SCREEN, keyDatabase.size());
+		int[][][] original = shapeContextOriginal.getFine();
+		double[] summary = KeyClusterIndex.findGlobalDescriptor(original);
+		final double[] preScores = new double[keyDatabase.size()];
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for(int i=0; i<keyDatabase.size(); i++){
+			if(keySummaries[i] != null){
+				//A query without points has no summary, and takes the keys in index order.
+				preScores[i] = (summary == null) ? 0 : KeyClusterIndex.findDistance(summary, keySummaries[i]);
+				order.add(i);
+			}
+		}
+		Collections.sort(order, new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				return Double.compare(preScores[a], preScores[b]);
+			}
+		});
+		PipelineStage.MATCH_SCREEN.recordSince(start);
+		phase.finish(keyDatabase.size(), order.size());
+		
+		//2. Match them at the fine level in that order, until they or the budget run out.
+		start = PipelineMetrics.now();
+		phase = MatchPhaseEvent.start(PipelineStage.MATCH_FINE, keyDatabase.size());
+		ArrayList<KeyMatch> best = new ArrayList<KeyMatch>();
+		AnytimeMatches.Outcome outcome = AnytimeMatches.Outcome.COMPLETE;
+		int numMatched = 0;
+		for(int i : order){
+			AnytimeMatches.Outcome stop = budget.checkStop();
+			if(stop != null){
+				outcome = stop;
+				break;
+			}
+			if(k > 0){
+				matchInto(best, k, original, i, keyDatabase.get(i).getFine());
+			}
+			numMatched++;
+		}
+		PipelineStage.MATCH_FINE.recordSince(start);
+		phase.finish(numMatched, best.size());
+		
+		return new AnytimeMatches(best, numMatched, order.size(), outcome);
+	}
+	
+	
+	
+	/** Each key's global descriptor at the fine level, as KeyClusterIndex finds it, for the anytime
+	 * pre-score. Keys which cannot be matched have null.
+	 */
+	static double[][] summarizeKeys(ArrayList<MultiResolutionShapeContext> keyDatabase){
+		double[][] summaries = new double[keyDatabase.size()][];
+		for(int i=0; i<keyDatabase.size(); i++){
+			MultiResolutionShapeContext key = keyDatabase.get(i);
+			if(key != null && key.getFine() != null && key.getFine().length > 0){
+				summaries[i] = KeyClusterIndex.findGlobalDescriptor(key.getFine());
+			}
+		}
+		
+		return summaries;
+	}
+	
+	
+	
+	/** Finds the most similar key from the database by both profiles, coarse to fine as
+	 * matchKey(shapeContextOriginal, keyDatabase, numCandidates) does for one. The cost of a key is
+	 * the sum of its left and right profiles' costs, and the left profile is matched first: when its
+	 * cost alone already rules the key out, the right profile is not matched. Only keys with both
+	 * profiles (at the fine level, at least) in the database are matched.
+	 * 
+	 * @return index within the supplied database array list of the key which is most similar, or -1
+	 * if no key could be matched.
+	 */
+	public static int matchKey(DualProfileShapeContext shapeContextOriginal,
+			ArrayList<DualProfileShapeContext> keyDatabase, int numCandidates){
+		MultiResolutionShapeContext leftOriginal = shapeContextOriginal.getLeft();
+		MultiResolutionShapeContext rightOriginal = shapeContextOriginal.getRight();
+		boolean canScreenOriginal = leftOriginal.getCoarse() != null && rightOriginal.getCoarse() != null;
+		
+		//1. Screen every key with both coarse shape contexts at the coarse level, keeping the
+		//numCandidates with the lowest fused coarse cost.
+		long start = PipelineMetrics.now();
+		MatchPhaseEvent phase = MatchPhaseEvent.start(PipelineStage.MATCH_SCREEN, keyDatabase.size());
+		ArrayList<int[][][]> leftCoarse = new ArrayList<int[][][]>();
+		ArrayList<int[][][]> rightCoarse = new ArrayList<int[][][]>();
+		ArrayList<int[][][]> leftFine = new ArrayList<int[][][]>();
+		ArrayList<int[][][]> rightFine = new ArrayList<int[][][]>();
+		ArrayList<Integer> screened = new ArrayList<Integer>();
+		ArrayList<Integer> unscreened = new ArrayList<Integer>();
+		
+		for(int i=0; i<keyDatabase.size(); i++){
+			DualProfileShapeContext key = keyDatabase.get(i);
+			MultiResolutionShapeContext left = (key == null) ? null : key.getLeft();
+			MultiResolutionShapeContext right = (key == null) ? null : key.getRight();
+			boolean canMatch = left != null && right != null && left.getFine() != null && right.getFine() != null;
+			boolean canScreen = canMatch && canScreenOriginal && left.getCoarse() != null && right.getCoarse() != null;
+			
+			leftCoarse.add(canScreen ? left.getCoarse() : null);
+			rightCoarse.add(canScreen ? right.getCoarse() : null);
+			leftFine.add(null);
+			rightFine.add(null);
+			if(canScreen){
+				screened.add(i);
+			}else if(canMatch){
+				unscreened.add(i);
+			}
+		}
+		
+		ArrayList<Integer> candidates = new ArrayList<Integer>();
+		if(canScreenOriginal){
+			for(KeyMatch match : findBestFusedMatches(leftOriginal.getCoarse(), rightOriginal.getCoarse(),
+					leftCoarse, rightCoarse, screened, numCandidates)){
+				candidates.add(match.getKeyIndex());
+			}
+			PipelineCounter.KEYS_SCREENED_OUT.add(screened.size() - candidates.size());
+		}
+		candidates.addAll(unscreened);
+		PipelineStage.MATCH_SCREEN.recordSince(start);
+		phase.finish(screened.size() + unscreened.size(), candidates.size());
+		
+		//2. Match the candidates at the fine level, best coarse cost first.
+		start = PipelineMetrics.now();
+		phase = MatchPhaseEvent.start(PipelineStage.MATCH_FINE, keyDatabase.size());
+		for(int i : candidates){
+			leftFine.set(i, keyDatabase.get(i).getLeft().getFine());
+			rightFine.set(i, keyDatabase.get(i).getRight().getFine());
+		}
+		ArrayList<KeyMatch> best = findBestFusedMatches(leftOriginal.getFine(), rightOriginal.getFine(),
+				leftFine, rightFine, candidates, 1);
+		PipelineStage.MATCH_FINE.recordSince(start);
+		phase.finish(candidates.size(), best.size());
+		
+		//3. Every candidate but the best was rejected by the bound.
+		start = PipelineMetrics.now();
+		phase = MatchPhaseEvent.start(PipelineStage.MATCH_SELECT, keyDatabase.size());
+		int minIndex = best.isEmpty() ? -1 : best.get(0).getKeyIndex();
+		for(int i : candidates){
+			if(i == minIndex){
+				System.out.println(best.get(0));
+			}else{
+				System.out.println("key: "+i+", rejected by bound");
+			}
+		}
+		PipelineStage.MATCH_SELECT.recordSince(start);
+		phase.finish(candidates.size(), (minIndex < 0) ? 0 : 1);
+		
+		return minIndex;
+	}
+	
+	
+	
+	/** As findBestMatches(shapeContextOriginal, keyDatabase, order, k), where the cost of a key is
+	 * the sum of its costs in the first and second databases. The first cost is matched with the
+	 * threshold of the k-th lowest fused cost so far, as costs are never negative, and when it is
+	 * rejected the second is not matched at all. Otherwise the second is matched with what remains of
+	 * the threshold. Keys null in either database are skipped.
+	 */
+	static ArrayList<KeyMatch> findBestFusedMatches(int[][][] firstOriginal, int[][][] secondOriginal,
+			ArrayList<int[][][]> firstDatabase, ArrayList<int[][][]> secondDatabase, ArrayList<Integer> order, int k){
+		ArrayList<KeyMatch> best = new ArrayList<KeyMatch>();
+		if(k <= 0){
+			return best;
+		}
+		
+		for(int i : order){
+			if(firstDatabase.get(i) == null || secondDatabase.get(i) == null){
+				continue;
+			}
+			
+			double threshold = (best.size() < k) ? Double.POSITIVE_INFINITY : best.get(k-1).getCost();
+			KeySolveEvent event = KeySolveEvent.start(i, firstOriginal.length + secondOriginal.length,
+					firstDatabase.get(i).length + secondDatabase.get(i).length, threshold);
+			double firstCost = calculateMinCostMatrix(firstOriginal, firstDatabase.get(i), threshold);
+			if(firstCost == Double.POSITIVE_INFINITY){
+				event.finish(firstCost);
+				continue;
+			}
+			double cost = firstCost + calculateMinCostMatrix(secondOriginal, secondDatabase.get(i), threshold-firstCost);
+			event.finish(cost);
+			if(best.size() == k && !(cost < threshold)){
+				continue;
+			}
+			
+			//Insert after any equal costs, so that ties keep the order the keys were matched in.
+			int position = best.size();
+			while(position > 0 && best.get(position-1).getCost() > cost){
+				position--;
+			}
+			best.add(position, new KeyMatch(i, cost));
+			if(best.size() > k){
+				best.remove(k);
+			}
+		}
+		
+		return best;
+	}
+	
+	
+	
+	/** Finds the k keys from the database most similar to the original, exactly as matching every
+	 * key and sorting by cost would (ties going to the lower index), but rejecting keys early. Once
+	 * k keys have been matched, the k-th lowest cost so far is a threshold: building a key's cost
+	 * matrix stops as soon as its row minima add up to more than the threshold, and the Hungarian
+	 * Method stops as soon as its lower bound does. Null keys are skipped.
+	 * 
+	 * @return the matches, lowest cost first. There are fewer than k if the database has fewer keys.
+	 */
+	public static ArrayList<KeyMatch> findBestMatches(int[][][] shapeContextOriginal, ArrayList<int[][][]> keyDatabase, int k){
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for(int i=0; i<keyDatabase.size(); i++){
+			order.add(i);
+		}
+		
+		return findBestMatches(shapeContextOriginal, keyDatabase, order, k);
+	}
+	
+	
+	
+	/** As findBestMatches(shapeContextOriginal, keyDatabase, k), matching the keys in the given
+	 * order of their indices. Keys likely to match well should come first, so that the threshold
+	 * falls sooner. Ties go to the key matched first.
+	 */
+	static ArrayList<KeyMatch> findBestMatches(int[][][] shapeContextOriginal, ArrayList<int[][][]> keyDatabase,
+			ArrayList<Integer> order, int k){
+		ArrayList<KeyMatch> best = new ArrayList<KeyMatch>();
+		if(k <= 0){
+			return best;
+		}
+		
+		for(int i : order){
+			matchInto(best, k, shapeContextOriginal, i, keyDatabase.get(i));
+		}
+		
+		return best;
+	}
+	
+	
+	
+	/** As findBestMatches(shapeContextOriginal, keyDatabase, order, k) for each of the originals,
+	 * giving the same matches, but in one pass over the database: the keys are taken KEY_BLOCK_SIZE
+	 * at a time, and every original is matched against a block before the next block is read, so
+	 * each key is read from memory once for all the originals rather than once for each.
+	 */
+	static ArrayList<ArrayList<KeyMatch>> findBestMatches(ArrayList<int[][][]> shapeContextOriginals,
+			ArrayList<int[][][]> keyDatabase, ArrayList<Integer> order, int k){
+		ArrayList<ArrayList<KeyMatch>> best = new ArrayList<ArrayList<KeyMatch>>();
+		for(int q=0; q<shapeContextOriginals.size(); q++){
+			best.add(new ArrayList<KeyMatch>());
+		}
+		if(k <= 0){
+			return best;
+		}
+		
+		for(int blockStart=0; blockStart<order.size(); blockStart+=KEY_BLOCK_SIZE){
+			int blockEnd = Math.min(blockStart+KEY_BLOCK_SIZE, order.size());
+			for(int q=0; q<shapeContextOriginals.size(); q++){
+				for(int b=blockStart; b<blockEnd; b++){
+					int i = order.get(b);
+					matchInto(best.get(q), k, shapeContextOriginals.get(q), i, keyDatabase.get(i));
+				}
+			}
+		}
+		
+		return best;
+	}
+	
+	
+	
+	/** Matches the key against the original with the k-th lowest cost in best as the threshold,
+	 * and inserts it into best, which is kept sorted and at most k long. Null keys are skipped.
+	 */
+	private static void matchInto(ArrayList<KeyMatch> best, int k, int[][][] shapeContextOriginal,
+			int keyIndex, int[][][] key){
+		if(key == null){
+			return;
+		}
+		
+		double threshold = (best.size() < k) ? Double.POSITIVE_INFINITY : best.get(k-1).getCost();
+		KeySolveEvent event = KeySolveEvent.start(keyIndex, shapeContextOriginal.length, key.length, threshold);
+		double cost = calculateMinCostMatrix(shapeContextOriginal, key, threshold);
+		event.finish(cost);
+		if(best.size() == k && !(cost < threshold)){
+			return;
+		}
+		
+		insertMatch(best, k, new KeyMatch(keyIndex, cost));
+	}
+	
+	
+	
+	/** Inserts the match into best, which is kept sorted and at most k long, after any equal costs,
+	 * so that ties keep the order the keys were matched in.
+	 */
+	private static void insertMatch(ArrayList<KeyMatch> best, int k, KeyMatch match){
+		int position = best.size();
+		while(position > 0 && best.get(position-1).getCost() > match.getCost()){
+			position--;
+		}
+		best.add(position, match);
+		if(best.size() > k){
+			best.remove(k);
+		}
+	}
+	
+	
+	
+	/** As calculateMinCostMatrix(shapeContextOriginal, shapeContextTest), but returns infinity as
+	 * soon as the cost is known to be more than the threshold.
+	 */
+	static double calculateMinCostMatrix(int[][][] shapeContextOriginal, int[][][] shapeContextTest, double threshold){
+		PipelineCounter.KEYS_SCANNED.increment();
+		long start = PipelineMetrics.now();
+		double[][] costMatrices = calculateCostMatrices(shapeContextOriginal, shapeContextTest, threshold,
+				getCostMatrixBuffer(shapeContextOriginal.length, shapeContextTest.length));
+		PipelineStage.COST_MATRIX.recordSince(start);
+		if(costMatrices == null){
+			PipelineCounter.KEYS_PRUNED.increment();
+			return Double.POSITIVE_INFINITY;
+		}
+		
+		start = PipelineMetrics.now();
+		HungarianAlgorithm hungarian = new HungarianAlgorithm(costMatrices);
+		int[] minCostMatrices = hungarian.executeBounded(threshold);
+		PipelineStage.ASSIGNMENT.recordSince(start);
+		if(minCostMatrices == null){
+			PipelineCounter.KEYS_PRUNED.increment();
+			return Double.POSITIVE_INFINITY;
+		}
+		PipelineCounter.KEYS_SOLVED.increment();
+		
+		return sumAssignedCosts(costMatrices, minCostMatrices);
+	}
+	
+	
+	
 	/** Calculates the Cost Matrix for the original and test key. This is evaluated with the Chi Squared
 	 * value of between the histograms of each point being compared in each key. The Hungarian Method is
 	 * implemented to calculate the smallest Cost Matrix for the key comparison.
@@ -47,8 +784,57 @@ public class KeyMatcher {
 	 * @param keyDatabase
 	 * @return
 	 */
-	private static double calculateMinCostMatrix(int[][][] shapeContextOriginal, int[][][] shapeContextTest){
-		double[][] costMatrices = new double[shapeContextOriginal.length][shapeContextTest.length];
+	static double calculateMinCostMatrix(int[][][] shapeContextOriginal, int[][][] shapeContextTest){
+		PipelineCounter.KEYS_SCANNED.increment();
+		long start = PipelineMetrics.now();
+		double[][] costMatrices = calculateCostMatrices(shapeContextOriginal, shapeContextTest, Double.POSITIVE_INFINITY,
+				getCostMatrixBuffer(shapeContextOriginal.length, shapeContextTest.length));
+		PipelineStage.COST_MATRIX.recordSince(start);
+		
+		//Calculate the actual minimum cost efficiencies. 
+		start = PipelineMetrics.now();
+		HungarianAlgorithm hungarian = new HungarianAlgorithm(costMatrices);
+		int[] minCostMatrices = hungarian.execute();
+		PipelineStage.ASSIGNMENT.recordSince(start);
+		PipelineCounter.KEYS_SOLVED.increment();
+		
+		return sumAssignedCosts(costMatrices, minCostMatrices);
+	}
+	
+	
+	
+	/** Calculates the Chi Squared cost of matching each point of the original key with each point
+	 * of the test key.
+	 */
+	static double[][] calculateCostMatrices(int[][][] shapeContextOriginal, int[][][] shapeContextTest){
+		return calculateCostMatrices(shapeContextOriginal, shapeContextTest, Double.POSITIVE_INFINITY);
+	}
+	
+	
+	
+	/** As calculateCostMatrices(shapeContextOriginal, shapeContextTest), but returns null as soon as
+	 * the costs calculated so far show the cost of matching the keys is more than the threshold. When
+	 * the original key has no more points than the test key, each of its points is matched with some
+	 * point of the test key, so the cost is at least the sum of the smallest value of each row, and
+	 * the rows are checked as they are calculated. Otherwise each point of the test key is matched
+	 * with some point of the original key instead, so the cost is at least the sum of the smallest
+	 * value of each column, which is only known once the whole matrix is.
+	 */
+	static double[][] calculateCostMatrices(int[][][] shapeContextOriginal, int[][][] shapeContextTest, double threshold){
+		return calculateCostMatrices(shapeContextOriginal, shapeContextTest, threshold,
+				new double[shapeContextOriginal.length][shapeContextTest.length]);
+	}
+	
+	
+	
+	/** As calculateCostMatrices(shapeContextOriginal, shapeContextTest, threshold), filling and
+	 * returning costMatrices, which must have a row for each point of the original key and a column
+	 * for each point of the test key.
+	 */
+	static double[][] calculateCostMatrices(int[][][] shapeContextOriginal, int[][][] shapeContextTest, double threshold,
+			double[][] costMatrices){
+		boolean canBoundRows = shapeContextOriginal.length <= shapeContextTest.length;
+		double sumRowMinima = 0.0;
 			
 		//Traverses through each point on the original key.
 		for(int i=0; i<shapeContextOriginal.length; i++){
@@ -79,18 +865,71 @@ public class KeyMatcher {
 				double costMatrix = (0.5)*(sum);
 				costMatrices[i][j] = costMatrix;
 			}
+			
+			//Stop once the rows so far are already too costly.
+			if(canBoundRows){
+				double rowMinimum = Double.POSITIVE_INFINITY;
+				for(int j=0; j<shapeContextTest.length; j++){
+					rowMinimum = Math.min(rowMinimum, costMatrices[i][j]);
+				}
+				sumRowMinima += rowMinimum;
+				if(HungarianAlgorithm.exceeds(sumRowMinima, threshold)){
+					return null;
+				}
+			}
 		}
 		
+		if(!canBoundRows && threshold != Double.POSITIVE_INFINITY){
+			double sumColumnMinima = 0.0;
+			for(int j=0; j<shapeContextTest.length; j++){
+				double columnMinimum = Double.POSITIVE_INFINITY;
+				for(int i=0; i<shapeContextOriginal.length; i++){
+					columnMinimum = Math.min(columnMinimum, costMatrices[i][j]);
+				}
+				sumColumnMinima += columnMinimum;
+			}
+			if(HungarianAlgorithm.exceeds(sumColumnMinima, threshold)){
+				return null;
+			}
+		}
 		
-		//Calculate the actual minimum cost efficiencies. 
-		HungarianAlgorithm hungarian = new HungarianAlgorithm(costMatrices);
-		int[] minCostMatrices = hungarian.execute();
+		return costMatrices;
+	}
+	
+	
+	
+	/** The calling thread's cost matrix buffer of the given size. The matrix of a comparison is only
+	 * needed until its cost is summed, as HungarianAlgorithm copies it, so each thread fills the
+	 * same one for every comparison of the same size rather than allocating one per key.
+	 */
+	private static double[][] getCostMatrixBuffer(int rows, int cols){
+		if(rows == 0 || cols == 0){
+			return new double[rows][cols];
+		}
+		double[][] buffer = costMatrixBuffers.get();
+		if(buffer == null || buffer.length != rows || buffer[0].length != cols){
+			buffer = new double[rows][cols];
+			costMatrixBuffers.set(buffer);
+		}
 		
+		return buffer;
+	}
+	
+	
+	
+	/** Sums the costs of the assignment, in which the original key's point i is matched with the
+	 * test key's point minCostMatrices[i], or with none if it is -1, as when the original key has
+	 * more points.
+	 */
+	static double sumAssignedCosts(double[][] costMatrices, int[] minCostMatrices){
 		//Sum the values to arrive at the total minCostMatrix.
 		double minCostMatrix = 0.0;
 		
 		for(int i=0; i<minCostMatrices.length; i++){
 			int costIndex = minCostMatrices[i];
+			if(costIndex < 0){
+				continue;
+			}
 			double cost = costMatrices[i][costIndex];
 			minCostMatrix += cost;
 		}
@@ -0,0 +1,279 @@
+package contextCalculator;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import data.DiagnosticsSink;
+import metrics.RequestContext;
+
+/** The whole pipeline, from a photo of a key to the ranking of a database's keys, with its settings
+ * held by the instance rather than by static fields. Engines with different settings, and any number
+ * of KeyDatabases, can be used in the same JVM at once.
+ *
+ * An engine is immutable, and every method may be called from any number of threads at once. Each
+ * query's working state lives on the stack of the thread matching it, or in that thread's own
+ * buffers (KeyMatcher keeps one cost matrix per thread), so concurrent queries share nothing but
+ * the read-only database and the pipeline metrics. The async methods run the query on the engine's
+ * executor, and complete the future with its result or its exception.
+ */
+public final class KeyMatchingEngine {
+
+
+	private final ShapeContextCalculator coarseCalculator;
+	private final ShapeContextCalculator fineCalculator;
+	private final BladeDetector bladeDetector;
+	private final DiagnosticsSink diagnosticsSink;
+	private final int numCandidates;
+	private final Executor executor;
+
+
+
+	/** An engine with the original settings, KeyContextCalculatorMain's, running async queries on the
+	 * common ForkJoinPool.
+	 */
+	public KeyMatchingEngine(){
+		this(ShapeContextCalculator.DEFAULT_COARSE, ShapeContextCalculator.DEFAULT, null, null,
+				KeyMatcher.DEFAULT_NUM_CANDIDATES, ForkJoinPool.commonPool());
+	}
+
+
+
+	/** @param coarseCalculator calculates the coarse level a query is screened with. Its bins must
+	 * match the coarse level of the databases matched against.
+	 * @param fineCalculator calculates the fine level a query is ranked by. Its bins must match the
+	 * fine level of the databases matched against.
+	 * @param bladeDetector finds the beginning of the blade, or null for the original line projection.
+	 * @param diagnosticsSink receives the intermediate images of each photo, or null for none.
+	 * @param numCandidates number of keys refined at the fine level after the coarse screen.
+	 * @param executor runs the async queries. The engine does not shut it down.
+	 */
+	public KeyMatchingEngine(ShapeContextCalculator coarseCalculator, ShapeContextCalculator fineCalculator,
+			BladeDetector bladeDetector, DiagnosticsSink diagnosticsSink, int numCandidates, Executor executor){
+		if(coarseCalculator == null || fineCalculator == null || executor == null || numCandidates < 1){
+			throw new IllegalArgumentException("invalid engine settings");
+		}
+
+		this.coarseCalculator = coarseCalculator;
+		this.fineCalculator = fineCalculator;
+		this.bladeDetector = bladeDetector;
+		this.diagnosticsSink = diagnosticsSink;
+		this.numCandidates = numCandidates;
+		this.executor = executor;
+	}
+
+
+
+	/** Finds the edges of the key in the photo, and both levels of their shape context.
+	 */
+	public MultiResolutionShapeContext calculateShapeContext(BufferedImage photo){
+		ArrayList<Point> edges = ImageProcessor.getKeyEdges(photo, null, bladeDetector, diagnosticsSink);
+
+		return ShapeContextCalculator.calcMultiResolutionShapeContext(edges, coarseCalculator, fineCalculator);
+	}
+
+
+
+	/** The k keys of the database most similar to the key in the photo, best first.
+	 */
+	public ArrayList<KeyMatch> findBestMatches(BufferedImage photo, KeyDatabase database, int k){
+		return findBestMatches(calculateShapeContext(photo), database, k);
+	}
+
+
+
+	/** The k keys of the database most similar to the key with the given shape contexts, best first.
+	 *
+	 * @throws IllegalArgumentException if the shape contexts' bins do not match the database's.
+	 */
+	public ArrayList<KeyMatch> findBestMatches(MultiResolutionShapeContext shapeContext, KeyDatabase database, int k){
+		database.checkCompatible(shapeContext);
+
+		return KeyMatcher.findBestMatches(shapeContext, database.getKeys(), numCandidates, k);
+	}
+
+
+
+	/** The k keys of the database most similar to each query of a batch, best first, as
+	 * KeyMatcher.findBestMatches(originals, keys, numCandidates, k, executor, numTasks) finds them
+	 * in one pass over the database.
+	 *
+	 * @throws IllegalArgumentException if any query's bins do not match the database's, before any is
+	 * matched.
+	 */
+	public ArrayList<ArrayList<KeyMatch>> findBestMatches(ArrayList<MultiResolutionShapeContext> shapeContexts,
+			KeyDatabase database, int k, ExecutorService executor, int numTasks){
+		for(MultiResolutionShapeContext shapeContext : shapeContexts){
+			database.checkCompatible(shapeContext);
+		}
+
+		return KeyMatcher.findBestMatches(shapeContexts, database.getKeys(), numCandidates, k, executor, numTasks);
+	}
+
+
+
+	/** Anytime matching: the best of the database's keys matched before the budget ran out or was
+	 * cancelled, as KeyMatcher.findBestMatches(shapeContext, keys, k, budget) finds them. The photo's
+	 * processing counts against the budget, and cannot be cut short; if the budget is spent by then,
+	 * no key is matched.
+	 */
+	public AnytimeMatches findBestMatches(BufferedImage photo, KeyDatabase database, int k, MatchBudget budget){
+		return findBestMatches(calculateShapeContext(photo), database, k, budget);
+	}
+
+
+
+	/** Anytime matching against the database's keys with the given shape contexts.
+	 *
+	 * @throws IllegalArgumentException if the shape contexts' bins do not match the database's.
+	 */
+	public AnytimeMatches findBestMatches(MultiResolutionShapeContext shapeContext, KeyDatabase database, int k,
+			MatchBudget budget){
+		database.checkCompatible(shapeContext);
+
+		return KeyMatcher.findBestMatches(shapeContext, database.getKeys(), database.getFineSummaries(), k, budget);
+	}
+
+
+
+	/** As calculateShapeContext(photo), on the engine's executor.
+	 */
+	public CompletableFuture<MultiResolutionShapeContext> calculateShapeContextAsync(final BufferedImage photo){
+		return supplyAsync(new Supplier<MultiResolutionShapeContext>(){
+			public MultiResolutionShapeContext get(){
+				return calculateShapeContext(photo);
+			}
+		});
+	}
+
+
+
+	/** As findBestMatches(photo, database, k), on the engine's executor.
+	 */
+	public CompletableFuture<ArrayList<KeyMatch>> findBestMatchesAsync(final BufferedImage photo,
+			final KeyDatabase database, final int k){
+		return supplyAsync(new Supplier<ArrayList<KeyMatch>>(){
+			public ArrayList<KeyMatch> get(){
+				return findBestMatches(photo, database, k);
+			}
+		});
+	}
+
+
+
+	/** As findBestMatches(shapeContext, database, k), on the engine's executor.
+	 */
+	public CompletableFuture<ArrayList<KeyMatch>> findBestMatchesAsync(final MultiResolutionShapeContext shapeContext,
+			final KeyDatabase database, final int k){
+		return supplyAsync(new Supplier<ArrayList<KeyMatch>>(){
+			public ArrayList<KeyMatch> get(){
+				return findBestMatches(shapeContext, database, k);
+			}
+		});
+	}
+
+
+
+	/** As findBestMatches(photo, database, k, budget), on the engine's executor. Cancelling the future
+	 * cancels the budget, so the query stops at its next key rather than running on unseen.
+	 */
+	public CompletableFuture<AnytimeMatches> findBestMatchesAsync(final BufferedImage photo,
+			final KeyDatabase database, final int k, final MatchBudget budget){
+		return cancelOnCancel(supplyAsync(new Supplier<AnytimeMatches>(){
+			public AnytimeMatches get(){
+				return findBestMatches(photo, database, k, budget);
+			}
+		}), budget);
+	}
+
+
+
+	/** As findBestMatches(shapeContext, database, k, budget), on the engine's executor. Cancelling the
+	 * future cancels the budget.
+	 */
+	public CompletableFuture<AnytimeMatches> findBestMatchesAsync(final MultiResolutionShapeContext shapeContext,
+			final KeyDatabase database, final int k, final MatchBudget budget){
+		return cancelOnCancel(supplyAsync(new Supplier<AnytimeMatches>(){
+			public AnytimeMatches get(){
+				return findBestMatches(shapeContext, database, k, budget);
+			}
+		}), budget);
+	}
+
+
+
+	public ShapeContextCalculator getCoarseCalculator(){
+		return coarseCalculator;
+	}
+
+
+
+	public ShapeContextCalculator getFineCalculator(){
+		return fineCalculator;
+	}
+
+
+
+	public BladeDetector getBladeDetector(){
+		return bladeDetector;
+	}
+
+
+
+	public DiagnosticsSink getDiagnosticsSink(){
+		return diagnosticsSink;
+	}
+
+
+
+	public int getNumCandidates(){
+		return numCandidates;
+	}
+
+
+
+	/** Runs the query on the executor with the caller's request id, so that its JFR events are
+	 * linked to the request that submitted it.
+	 */
+	private <T> CompletableFuture<T> supplyAsync(final Supplier<T> query){
+		final long requestId = RequestContext.getCurrent();
+
+		return CompletableFuture.supplyAsync(new Supplier<T>(){
+			public T get(){
+				RequestContext.setCurrent(requestId);
+				try {
+					return query.get();
+				} finally {
+					RequestContext.clear();
+				}
+			}
+		}, executor);
+	}
+
+
+
+	/** Cancels the budget when the future is cancelled, since cancelling a CompletableFuture does not
+	 * interrupt the query computing it.
+	 */
+	private static CompletableFuture<AnytimeMatches> cancelOnCancel(CompletableFuture<AnytimeMatches> future,
+			final MatchBudget budget){
+		future.whenComplete(new BiConsumer<AnytimeMatches, Throwable>(){
+			public void accept(AnytimeMatches matches, Throwable exception){
+				if(exception instanceof CancellationException){
+					budget.cancel();
+				}
+			}
+		});
+
+		return future;
+	}
+
+
+}
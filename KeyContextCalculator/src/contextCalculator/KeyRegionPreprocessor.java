@@ -0,0 +1,225 @@
+package contextCalculator;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+import data.DataManager;
+
+/** Preprocessing stage run before ImageProcessor, so that a large photo is not processed at its
+ * full resolution. The photo is halved repeatedly into a resolution pyramid, down to a coarse level
+ * no larger than coarseMaxDimension, on which the bounding box of the key is found. The finest level
+ * on which that box is no larger than targetKeyDimension is then cropped to the box (plus a margin),
+ * and only the crop is run through ImageProcessor.
+ *
+ * Shape contexts are normalized by the mean distance between points, so processing the key at a
+ * lower resolution does not change their scale.
+ */
+public class KeyRegionPreprocessor {
+
+
+	public static final int DEFAULT_TARGET_KEY_DIMENSION = 512;
+	public static final int DEFAULT_COARSE_MAX_DIMENSION = 128;
+	public static final int DEFAULT_MARGIN = 16;
+
+	private final int targetKeyDimension;
+	private final int coarseMaxDimension;
+	private final int margin;
+
+
+
+	public KeyRegionPreprocessor(){
+		this(DEFAULT_TARGET_KEY_DIMENSION, DEFAULT_COARSE_MAX_DIMENSION, DEFAULT_MARGIN);
+	}
+
+
+
+	/** @param targetKeyDimension largest width or height of the key region that is processed.
+	 * @param coarseMaxDimension largest width or height of the level the key is located on.
+	 * @param margin pixels kept around the key's bounding box on the processed level.
+	 */
+	public KeyRegionPreprocessor(int targetKeyDimension, int coarseMaxDimension, int margin){
+		this.targetKeyDimension = targetKeyDimension;
+		this.coarseMaxDimension = coarseMaxDimension;
+		this.margin = margin;
+	}
+
+
+
+	/** Finds the edges of the key as ImageProcessor.getKeyEdges does, but only within the key's
+	 * region and at the chosen level of the pyramid. The points are in that level's coordinates.
+	 */
+	public ArrayList<Point> getKeyEdges(BufferedImage image){
+		return getKeyEdges(image, null);
+	}
+
+
+
+	/** As getKeyEdges(image), running the ImageProcessor stages on the given pool when it is not null.
+	 */
+	public ArrayList<Point> getKeyEdges(BufferedImage image, ForkJoinPool pool){
+		//1. Halve the image down to the coarse level, keeping every level of the pyramid.
+		ArrayList<BufferedImage> pyramid = new ArrayList<BufferedImage>();
+		pyramid.add(image);
+		while(Math.max(last(pyramid).getWidth(), last(pyramid).getHeight()) > coarseMaxDimension){
+			pyramid.add(halve(last(pyramid)));
+		}
+		BufferedImage coarse = last(pyramid);
+
+		//2. Locate the key on the coarse level. If nothing dark enough was found to be a key,
+		//the whole coarse level is used as the region.
+		Rectangle coarseRegion = findKeyRegion(coarse);
+		if(coarseRegion == null){
+			coarseRegion = new Rectangle(0, 0, coarse.getWidth(), coarse.getHeight());
+		}
+
+		//3. Choose the finest level on which the key is no larger than the target. Each level up
+		//the pyramid doubles the key's size.
+		int level = pyramid.size()-1;
+		int keyDimension = Math.max(coarseRegion.width, coarseRegion.height);
+		while(level > 0 && keyDimension*2 <= targetKeyDimension){
+			level--;
+			keyDimension *= 2;
+		}
+		BufferedImage working = pyramid.get(level);
+
+		//4. Scale the region up to the chosen level and add the margin.
+		double scaleX = (double)working.getWidth() / coarse.getWidth();
+		double scaleY = (double)working.getHeight() / coarse.getHeight();
+		int x0 = (int)Math.floor(coarseRegion.x*scaleX) - margin;
+		int y0 = (int)Math.floor(coarseRegion.y*scaleY) - margin;
+		int x1 = (int)Math.ceil((coarseRegion.x+coarseRegion.width)*scaleX) + margin;
+		int y1 = (int)Math.ceil((coarseRegion.y+coarseRegion.height)*scaleY) + margin;
+		Rectangle region = new Rectangle(x0, y0, x1-x0, y1-y0).intersection(
+				new Rectangle(0, 0, working.getWidth(), working.getHeight()));
+
+		//5. Process only the region, and move the points back into the level's coordinates.
+		BufferedImage cropped = working.getSubimage(region.x, region.y, region.width, region.height);
+		ArrayList<Point> edges = ImageProcessor.getKeyEdges(cropped, pool);
+		for(Point p : edges){
+			p.translate(region.x, region.y);
+		}
+
+		return edges;
+	}
+
+
+
+	/** As getKeyEdges(image, pool), but decoding the photo straight from the file. The coarse level
+	 * is decoded with source subsampling, and then only the key's region is decoded, subsampled to
+	 * the chosen level. The full resolution image is never held in memory. Subsampling keeps single
+	 * pixels rather than averaging them as halve() does, so the levels are slightly noisier.
+	 */
+	public ArrayList<Point> getKeyEdges(File file, ForkJoinPool pool) throws IOException {
+		Dimension size = DataManager.readImageDimensions(file);
+
+		//1. Decode the coarse level directly.
+		int coarseSubsampling = 1;
+		while(Math.max(size.width, size.height)/coarseSubsampling > coarseMaxDimension){
+			coarseSubsampling *= 2;
+		}
+		BufferedImage coarse = DataManager.readImage(file, coarseSubsampling, null);
+
+		//2. Locate the key on the coarse level.
+		Rectangle coarseRegion = findKeyRegion(coarse);
+		if(coarseRegion == null){
+			coarseRegion = new Rectangle(0, 0, coarse.getWidth(), coarse.getHeight());
+		}
+
+		//3. Choose the smallest subsampling at which the key is no larger than the target.
+		int subsampling = coarseSubsampling;
+		int keyDimension = Math.max(coarseRegion.width, coarseRegion.height);
+		while(subsampling > 1 && keyDimension*2 <= targetKeyDimension){
+			subsampling /= 2;
+			keyDimension *= 2;
+		}
+
+		//4. Find the region plus the margin in the file's full resolution coordinates. The region
+		//starts on a multiple of the subsampling, so that it lines up with the chosen level.
+		int x0 = Math.max(0, coarseRegion.x*coarseSubsampling - margin*subsampling);
+		int y0 = Math.max(0, coarseRegion.y*coarseSubsampling - margin*subsampling);
+		x0 -= x0%subsampling;
+		y0 -= y0%subsampling;
+		int x1 = Math.min(size.width, (coarseRegion.x+coarseRegion.width)*coarseSubsampling + margin*subsampling);
+		int y1 = Math.min(size.height, (coarseRegion.y+coarseRegion.height)*coarseSubsampling + margin*subsampling);
+		Rectangle region = new Rectangle(x0, y0, x1-x0, y1-y0);
+
+		//5. Decode and process only the region, and move the points into the level's coordinates.
+		BufferedImage cropped = DataManager.readImage(file, subsampling, region);
+		ArrayList<Point> edges = ImageProcessor.getKeyEdges(cropped, pool);
+		for(Point p : edges){
+			p.translate(x0/subsampling, y0/subsampling);
+		}
+
+		return edges;
+	}
+
+
+
+	private static BufferedImage last(ArrayList<BufferedImage> pyramid){
+		return pyramid.get(pyramid.size()-1);
+	}
+
+
+
+	/** Returns the bounding box of the black (key) pixels of the binary version of the image, or
+	 * null if there are none. The binary pixels are not cleaned, as at the coarse level the key
+	 * itself is no wider than the blobs the cleaning removes. Stray dark pixels only make the box
+	 * larger than it needs to be.
+	 */
+	static Rectangle findKeyRegion(BufferedImage image){
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		int[] binaryPixels = ImageProcessor.convertToBinary(ImageProcessor.convertToGrayscale(image));
+
+		int minX = width;
+		int minY = height;
+		int maxX = -1;
+		int maxY = -1;
+
+		for(int i=0; i<binaryPixels.length; i++){
+			if(binaryPixels[i] == ImageProcessor.BLACK){
+				int x = i%width;
+				int y = i/width;
+				minX = Math.min(minX, x);
+				minY = Math.min(minY, y);
+				maxX = Math.max(maxX, x);
+				maxY = Math.max(maxY, y);
+			}
+		}
+
+		if(maxX < 0){
+			return null;
+		}
+
+		return new Rectangle(minX, minY, maxX-minX+1, maxY-minY+1);
+	}
+
+
+
+	/** Returns the next level of the pyramid, half the width and height of the image. Bilinear
+	 * filtering at exactly half size averages each 2x2 block of pixels.
+	 */
+	private static BufferedImage halve(BufferedImage image){
+		int width = Math.max(1, image.getWidth()/2);
+		int height = Math.max(1, image.getHeight()/2);
+
+		BufferedImage halved = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = halved.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(image, 0, 0, width, height, null);
+		g.dispose();
+
+		return halved;
+	}
+
+
+}
@@ -0,0 +1,92 @@
+package contextCalculator;
+
+/** LU decomposition of a square matrix with partial pivoting, so that the same system can be
+ * solved for many right hand sides at O(n^2) each after the O(n^3) factorization.
+ */
+class LUDecomposition {
+
+
+	private final double[][] lu;
+	private final int[] pivot;
+
+
+
+	/** Factors the matrix, which is not changed.
+	 *
+	 * @throws IllegalArgumentException if the matrix is singular.
+	 */
+	LUDecomposition(double[][] matrix){
+		int n = matrix.length;
+		lu = new double[n][];
+		for(int i=0; i<n; i++){
+			lu[i] = matrix[i].clone();
+		}
+		pivot = new int[n];
+		for(int i=0; i<n; i++){
+			pivot[i] = i;
+		}
+
+		for(int k=0; k<n; k++){
+			//1. Swap the row with the largest value in this column into place.
+			int largest = k;
+			for(int i=k+1; i<n; i++){
+				if(Math.abs(lu[i][k]) > Math.abs(lu[largest][k])){
+					largest = i;
+				}
+			}
+			if(lu[largest][k] == 0){
+				throw new IllegalArgumentException("matrix is singular");
+			}
+			if(largest != k){
+				double[] row = lu[k];
+				lu[k] = lu[largest];
+				lu[largest] = row;
+				int p = pivot[k];
+				pivot[k] = pivot[largest];
+				pivot[largest] = p;
+			}
+
+			//2. Eliminate the column below the diagonal, keeping the multipliers in its place.
+			double[] rowK = lu[k];
+			for(int i=k+1; i<n; i++){
+				double[] rowI = lu[i];
+				double factor = rowI[k] / rowK[k];
+				rowI[k] = factor;
+				for(int j=k+1; j<n; j++){
+					rowI[j] -= factor*rowK[j];
+				}
+			}
+		}
+	}
+
+
+
+	/** Returns x such that matrix * x = b.
+	 */
+	double[] solve(double[] b){
+		int n = lu.length;
+		double[] x = new double[n];
+
+		//1. Forward substitution with the unit lower triangle, in pivoted order.
+		for(int i=0; i<n; i++){
+			double sum = b[pivot[i]];
+			for(int j=0; j<i; j++){
+				sum -= lu[i][j]*x[j];
+			}
+			x[i] = sum;
+		}
+
+		//2. Back substitution with the upper triangle.
+		for(int i=n-1; i>=0; i--){
+			double sum = x[i];
+			for(int j=i+1; j<n; j++){
+				sum -= lu[i][j]*x[j];
+			}
+			x[i] = sum / lu[i][i];
+		}
+
+		return x;
+	}
+
+
+}
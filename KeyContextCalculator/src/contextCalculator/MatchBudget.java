@@ -0,0 +1,90 @@
+package contextCalculator;
+
+import java.util.concurrent.TimeUnit;
+
+/** The time a match may take, and a way to cancel it, for anytime matching. The matcher checks the
+ * budget between keys, so it stops within one key's solve of the deadline or of being cancelled,
+ * and returns the best keys found so far. Interrupting the matching thread also cancels it.
+ *
+ * A budget is started when it is made, so a photo's processing counts against it too. One budget
+ * may be cancelled from any thread.
+ */
+public class MatchBudget {
+
+
+	private final long deadlineNanos;
+	private final boolean isUnlimited;
+	private volatile boolean cancelled = false;
+
+
+
+	/** A budget of timeBudgetMillis from now.
+	 */
+	public MatchBudget(long timeBudgetMillis){
+		this(timeBudgetMillis, false);
+	}
+
+
+
+	private MatchBudget(long timeBudgetMillis, boolean isUnlimited){
+		if(timeBudgetMillis < 0){
+			throw new IllegalArgumentException("time budget must not be negative");
+		}
+		this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+		this.isUnlimited = isUnlimited;
+	}
+
+
+
+	/** A budget without a deadline, which only stops when cancelled.
+	 */
+	public static MatchBudget unlimited(){
+		return new MatchBudget(0, true);
+	}
+
+
+
+	/** Asks the match to stop at the next key, returning what it has found so far.
+	 */
+	public void cancel(){
+		cancelled = true;
+	}
+
+
+
+	public boolean isCancelled(){
+		return cancelled;
+	}
+
+
+
+	public boolean isExpired(){
+		return !isUnlimited && System.nanoTime() - deadlineNanos >= 0;
+	}
+
+
+
+	/** Time left before the deadline, in nanoseconds, 0 once it has passed, or Long.MAX_VALUE if
+	 * there is none.
+	 */
+	public long getRemainingNanos(){
+		return isUnlimited ? Long.MAX_VALUE : Math.max(0, deadlineNanos - System.nanoTime());
+	}
+
+
+
+	/** Why the match should stop now, or null if it should go on.
+	 */
+	AnytimeMatches.Outcome checkStop(){
+		if(cancelled || Thread.currentThread().isInterrupted()){
+			return AnytimeMatches.Outcome.CANCELLED;
+		}
+		if(isExpired()){
+			return AnytimeMatches.Outcome.DEADLINE;
+		}
+
+		return null;
+	}
+
+
+}
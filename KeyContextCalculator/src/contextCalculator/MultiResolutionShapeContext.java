@@ -0,0 +1,52 @@
+package contextCalculator;
+
+import java.awt.Point;
+
+/** The shape context of a key at two resolutions. The coarse level has few points, so it is cheap
+ * to match against the whole database, and the fine level is only matched against the keys the
+ * coarse level ranks best. Either level may be null for a key whose descriptor is missing from
+ * the database. The fine level's points are kept, when known, for ThinPlateSplineRefiner.
+ */
+public class MultiResolutionShapeContext {
+
+
+	private final int[][][] coarse;
+	private final int[][][] fine;
+	private final Point[] finePoints;
+
+
+
+	public MultiResolutionShapeContext(int[][][] coarse, int[][][] fine){
+		this(coarse, fine, null);
+	}
+
+
+
+	public MultiResolutionShapeContext(int[][][] coarse, int[][][] fine, Point[] finePoints){
+		this.coarse = coarse;
+		this.fine = fine;
+		this.finePoints = finePoints;
+	}
+
+
+
+	public int[][][] getCoarse(){
+		return coarse;
+	}
+
+
+
+	public int[][][] getFine(){
+		return fine;
+	}
+
+
+
+	/** The points the fine level's histograms were calculated for, in the same order, or null.
+	 */
+	public Point[] getFinePoints(){
+		return finePoints;
+	}
+
+
+}
@@ -2,24 +2,195 @@ package contextCalculator;
 
 import java.awt.Point;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import metrics.PipelineMetrics;
+import metrics.ShapeContextEvent;
+import metrics.PipelineStage;
+
+/** Calculates the shape context of a key: a log-polar histogram for each of numPoints points
+ * selected from the key's edge. The number of points, the histogram's bins, the log scale and how
+ * the points are selected are set per instance, so that a cheaper, coarser descriptor can be used
+ * where accuracy matters less. The static methods use the original parameters.
+ */
 public class ShapeContextCalculator {
 
 	
-	private static final int NUM_POINTS = 200;
-	private static final int NUM_RADIAL_BINS = 12;
-	private static final int NUM_LOG_BINS = 5;
-	private static final int LOG_SCALE_FACTOR = 10;
+	/** How the points are selected from the edge.
+	 */
+	public enum PointSelection {
+		/** Every (edge size/numPoints)-th point of the edge list, which is in raster order. */
+		EVERY_NTH,
+		/** Points spaced evenly by arc length along the outline, see ContourResampler. */
+		ARC_LENGTH,
+		/** Points spaced by arc length weighted towards the outline's bends, see ContourResampler. */
+		CURVATURE
+	}
+	
+	public static final int DEFAULT_NUM_POINTS = 200;
+	public static final int DEFAULT_NUM_RADIAL_BINS = 12;
+	public static final int DEFAULT_NUM_LOG_BINS = 5;
+	public static final double DEFAULT_LOG_SCALE_FACTOR = 10;
+	public static final int DEFAULT_COARSE_NUM_POINTS = 50;
+	
+	//Pairs whose pseudo-angle is closer than this to a radial bin boundary use the original angle
+	//calculation. The pseudo-angle's error is many orders of magnitude smaller than this.
+	private static final double PSEUDO_ANGLE_TOLERANCE = 1e-9;
+	private static final int RADIAL_BIN_LOOKUP_SIZE = 4096;
+	//Most reference points whose histograms are filled by one task of the parallel mode.
+	private static final int MAX_TASK_POINTS = 16;
+	//Fewer points than this are always calculated sequentially, as splitting them between tasks
+	//costs more than it saves.
+	private static final int MIN_PARALLEL_POINTS = 500;
+	
+	/** The calculator with the original parameters, used by calcShapeContext.
+	 */
+	public static final ShapeContextCalculator DEFAULT = new ShapeContextCalculator(DEFAULT_NUM_POINTS);
+	
+	/** The calculator for the coarse level of a multi-resolution shape context.
+	 */
+	public static final ShapeContextCalculator DEFAULT_COARSE = new ShapeContextCalculator(DEFAULT_COARSE_NUM_POINTS);
+	
+	private final int numPoints;
+	private final int numRadialBins;
+	private final int numLogBins;
+	private final double logScaleFactor;
+	private final PointSelection pointSelection;
+	private final double curvatureWeight;
+	private final double[] radialBinStarts;
+	private final int[] radialBinLookup;
+	
+	
+	
+	/** A calculator selecting numPoints points, with the original bins and log scale.
+	 */
+	public ShapeContextCalculator(int numPoints){
+		this(numPoints, DEFAULT_NUM_RADIAL_BINS, DEFAULT_NUM_LOG_BINS, DEFAULT_LOG_SCALE_FACTOR);
+	}
+	
+	
+	
+	/** @param numPoints number of points selected from the edge, each of which gets a histogram.
+	 * The matching cost grows with the cube of this.
+	 * @param numRadialBins number of angular divisions of each histogram.
+	 * @param numLogBins number of distance divisions of each histogram.
+	 * @param logScaleFactor distances are divided by the mean distance and multiplied by this
+	 * before their log is taken, so it sets how far out each log bin reaches.
+	 */
+	public ShapeContextCalculator(int numPoints, int numRadialBins, int numLogBins, double logScaleFactor){
+		this(numPoints, numRadialBins, numLogBins, logScaleFactor, PointSelection.EVERY_NTH,
+				ContourResampler.DEFAULT_CURVATURE_WEIGHT);
+	}
+	
+	
+	
+	/** As the constructor above, selecting the points with the given method.
+	 * 
+	 * @param curvatureWeight how strongly CURVATURE selection favours the outline's bends, see
+	 * ContourResampler.resampleByCurvature. Unused by the other methods.
+	 */
+	public ShapeContextCalculator(int numPoints, int numRadialBins, int numLogBins, double logScaleFactor,
+			PointSelection pointSelection, double curvatureWeight){
+		if(numPoints < 2 || numRadialBins < 1 || numLogBins < 1 || logScaleFactor <= 0 || curvatureWeight < 0){
+			throw new IllegalArgumentException("invalid shape context parameters");
+		}
+		
+		this.numPoints = numPoints;
+		this.numRadialBins = numRadialBins;
+		this.numLogBins = numLogBins;
+		this.logScaleFactor = logScaleFactor;
+		this.pointSelection = pointSelection;
+		this.curvatureWeight = curvatureWeight;
+		this.radialBinStarts = findRadialBinStarts(numRadialBins);
+		this.radialBinLookup = buildRadialBinLookup(radialBinStarts);
+	}
+	
+	
+	
+	public int getNumPoints(){
+		return numPoints;
+	}
+	
+	
+	
+	public int getNumRadialBins(){
+		return numRadialBins;
+	}
+	
+	
+	
+	public int getNumLogBins(){
+		return numLogBins;
+	}
+	
+	
+	
+	public double getLogScaleFactor(){
+		return logScaleFactor;
+	}
+	
+	
+	
+	public PointSelection getPointSelection(){
+		return pointSelection;
+	}
 	
 	
 	
+	/** Calculates the shape context with the original parameters.
+	 */
 	public static int[][][] calcShapeContext(ArrayList<Point> edges) {
+		return DEFAULT.calculate(edges);
+	}
+	
+	
+	
+	/** Calculates both levels of the multi-resolution shape context, with DEFAULT_COARSE and DEFAULT,
+	 * keeping the fine level's points.
+	 */
+	public static MultiResolutionShapeContext calcMultiResolutionShapeContext(ArrayList<Point> edges) {
+		return calcMultiResolutionShapeContext(edges, DEFAULT_COARSE, DEFAULT);
+	}
+	
+	
+	
+	/** Calculates both levels of the multi-resolution shape context with the given calculators,
+	 * keeping the fine level's points.
+	 */
+	public static MultiResolutionShapeContext calcMultiResolutionShapeContext(ArrayList<Point> edges,
+			ShapeContextCalculator coarse, ShapeContextCalculator fine) {
+		long start = PipelineMetrics.now();
+		Point[] finePoints = fine.selectPoints(edges);
+		PipelineStage.SELECT_POINTS.recordSince(start);
+		return new MultiResolutionShapeContext(coarse.calculate(edges), fine.calculate(finePoints), finePoints);
+	}
+	
+	
+	
+	public int[][][] calculate(ArrayList<Point> edges) {
+		return calculate(edges, null);
+	}
+	
+	
+	
+	/** Calculates the shape context of the edge. When pool is not null and there are at least
+	 * MIN_PARALLEL_POINTS points, the points' histograms are filled in parallel on the pool, which
+	 * gives exactly the same histograms.
+	 */
+	public int[][][] calculate(ArrayList<Point> edges, ForkJoinPool pool) {
 		
-		//1. Select NUM_POINTS points evenly from around edge of key.
+		//1. Select numPoints points from around edge of key.
+		ShapeContextEvent event = ShapeContextEvent.start(edges.size(), numPoints, numRadialBins, numLogBins);
+		long start = PipelineMetrics.now();
 		Point[] points = selectPoints(edges);
+		PipelineStage.SELECT_POINTS.recordSince(start);
 		
 		//2. Calculate log-polar histogram for each point.
-		int[][][] logPolarHistograms = calculateLogPolarHistograms(points);
+		start = PipelineMetrics.now();
+		int[][][] logPolarHistograms = calculateLogPolarHistograms(points, pool);
+		PipelineStage.LOG_POLAR_HISTOGRAMS.recordSince(start);
+		event.finish();
 		
 		//3. Return histograms.
 		return logPolarHistograms;
@@ -27,14 +198,35 @@ public class ShapeContextCalculator {
 	
 	
 	
+	/** Calculates the log-polar histograms of the given points, which are used as they are rather
+	 * than selected from an edge, in their given order.
+	 */
+	public int[][][] calculate(Point[] points) {
+		ShapeContextEvent event = ShapeContextEvent.start(-1, points.length, numRadialBins, numLogBins);
+		long start = PipelineMetrics.now();
+		int[][][] logPolarHistograms = calculateLogPolarHistograms(points, null);
+		PipelineStage.LOG_POLAR_HISTOGRAMS.recordSince(start);
+		event.finish();
+		
+		return logPolarHistograms;
+	}
+	
+	
+	
 	/** Selects a standard number of reference points from the edge.
 	 */
-	private static Point[] selectPoints(ArrayList<Point> edge){
-		int stepSize = edge.size()/NUM_POINTS;
+	public Point[] selectPoints(ArrayList<Point> edge){
+		if(pointSelection == PointSelection.ARC_LENGTH){
+			return ContourResampler.resampleByArcLength(ContourResampler.orderContour(edge), numPoints);
+		}else if(pointSelection == PointSelection.CURVATURE){
+			return ContourResampler.resampleByCurvature(ContourResampler.orderContour(edge), numPoints, curvatureWeight);
+		}
+		
+		int stepSize = edge.size()/numPoints;
 		
-		Point[] selectedPoints = new Point[NUM_POINTS];
+		Point[] selectedPoints = new Point[numPoints];
 		
-		for(int i=0; i<NUM_POINTS; i++){
+		for(int i=0; i<numPoints; i++){
 			selectedPoints[i] = edge.get(i*stepSize);
 		}
 		
@@ -44,16 +236,313 @@ public class ShapeContextCalculator {
 	
 	
 	/** Calculates log-polar histogram of each point by comparing distance and angle from
-	 * all other points on the shape.
+	 * all other points on the shape. Produces exactly the same histograms as
+	 * calculateLogPolarHistogramsReference, but:
+	 * 	- log bins are found by comparing the integer squared distance against the squared
+	 * 	  distances at which each bin begins, with no square root or log per pair. Square roots
+	 * 	  are only taken to sum the mean distance, and no matrix of distances is kept.
+	 * 	- radial bins are found by looking up a pseudo-angle of the point, rotated into the
+	 * 	  reference point's frame, in a table, with no inverse tangent per pair.
+	 * The few pairs too close to a radial bin boundary for the pseudo-angle to be trusted, and
+	 * those the original angle calculation treats specially, fall back to the original method.
+	 * 
+	 * When pool is not null, the histograms are split between tasks on the pool by reference
+	 * point. Each point's histogram only depends on the coordinates and the log bin starts, and
+	 * each task writes only its own points' histograms, so no task needs any other's results.
+	 * The mean distance is still summed on the calling thread: adding the distances in any other
+	 * order rounds the mean differently in its last bits, which can move a log bin's start.
+	 */
+	private int[][][] calculateLogPolarHistograms(Point[] points, ForkJoinPool pool){
+		int n = points.length;
+		int[][][] histograms = new int[n][numRadialBins][numLogBins];
+		
+		//The coordinates are copied out of the Points, so the loops below read plain arrays.
+		int[] xs = new int[n];
+		int[] ys = new int[n];
+		for(int i=0; i<n; i++){
+			xs[i] = points[i].x;
+			ys[i] = points[i].y;
+		}
+		
+		//a. Sum the distance between each ordered pair of points, in the same order as the
+		//original, so that the mean distance is exactly the same. Each square root is taken
+		//again rather than stored for the reverse pair, as reading back a matrix of distances
+		//costs more in cache misses than the square root saves.
+		int maxSquaredDistance = 0;
+		double sumDistances = 0.0;
+		for(int i=0; i<n; i++){
+			int piX = xs[i];
+			int piY = ys[i];
+			for(int j=0; j<n; j++){
+				int diffX = xs[j]-piX;
+				int diffY = ys[j]-piY;
+				int squaredDistance = diffX*diffX + diffY*diffY;
+				sumDistances += Math.sqrt(squaredDistance);
+				maxSquaredDistance = Math.max(maxSquaredDistance, squaredDistance);
+			}
+		}
+		double meanDistance = sumDistances / (n*n);
+		
+		//b. Find the squared distance at which each log bin begins.
+		int[] logBinStarts = findLogBinStarts(meanDistance, maxSquaredDistance);
+		
+		//c.-e. Fill each point's histogram.
+		if(pool == null || n < MIN_PARALLEL_POINTS){
+			fillHistograms(points, xs, ys, logBinStarts, 0, n, histograms);
+		}else{
+			pool.invoke(new HistogramAction(points, xs, ys, logBinStarts, 0, n, histograms));
+		}
+		
+		
+		return histograms;
+	}
+	
+	
+	
+	/** Fills the histograms of the reference points [from, to), comparing each with every point.
+	 */
+	private void fillHistograms(Point[] points, int[] xs, int[] ys, int[] logBinStarts, int from, int to,
+			int[][][] histograms){
+		int n = points.length;
+		
+		for(int i=from; i<to; i++){
+			//Calculate the base angle exactly as the original does.
+			int prevIndex = (i-1 < 0) ? n-1 : i-1;
+			Point p0 = points[prevIndex];
+			Point p1 = points[i];
+			double m = (double)(p1.y-p0.y) / (double)(p1.x-p0.x);
+			double baseAngle = findAngle(m, 1);
+			
+			//The rotation is only equivalent to the original when the base angle is within
+			//[0, 2PI). It can be NaN or -PI/2 for repeated or level points, in which case
+			//every pair of this point uses the original calculation.
+			boolean canRotate = baseAngle >= 0 && baseAngle < 2*Math.PI;
+			double cosBase = Math.cos(baseAngle);
+			double sinBase = Math.sin(baseAngle);
+			
+			int piX = xs[i];
+			int piY = ys[i];
+			int[][] histogram = histograms[i];
+			
+			for(int j=0; j<n; j++){
+				if(i == j){
+					continue;
+				}
+				
+				int x = xs[j]-piX;
+				int y = ys[j]-piY;
+				
+				//c. Log bin: the number of bin starts the squared distance has reached. Points
+				//beyond the last bin's start are counted in the last bin.
+				int squaredDistance = x*x + y*y;
+				int logBin = 0;
+				for(int k=0; k<numLogBins-1; k++){
+					logBin += (squaredDistance >= logBinStarts[k]) ? 1 : 0;
+				}
+				
+				//d. Radial bin. The original treats points level with or directly above the
+				//reference point specially, so they use the original calculation.
+				int radialBin = -1;
+				if(canRotate && x != 0 && y != 0){
+					//Rotate the point so that the base angle lies along the x axis.
+					double a = x*cosBase + y*sinBase;
+					double b = y*cosBase - x*sinBase;
+					radialBin = findRadialBinFromPseudoAngle(pseudoAngle(a, b));
+				}
+				if(radialBin < 0){
+					radialBin = findRadialBin(x, y, baseAngle);
+				}
+				
+				//e. Update the respective bin.
+				histogram[radialBin][logBin]++;
+			}
+		}
+	}
+	
+	
+	
+	/** Splits the reference points [from, to) in half until there are at most MAX_TASK_POINTS,
+	 * and fills their histograms.
+	 */
+	private class HistogramAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Point[] points;
+		private final int[] xs;
+		private final int[] ys;
+		private final int[] logBinStarts;
+		private final int from;
+		private final int to;
+		private final int[][][] histograms;
+		
+		HistogramAction(Point[] points, int[] xs, int[] ys, int[] logBinStarts, int from, int to, int[][][] histograms){
+			this.points = points;
+			this.xs = xs;
+			this.ys = ys;
+			this.logBinStarts = logBinStarts;
+			this.from = from;
+			this.to = to;
+			this.histograms = histograms;
+		}
+		
+		protected void compute(){
+			if(to-from <= MAX_TASK_POINTS){
+				fillHistograms(points, xs, ys, logBinStarts, from, to, histograms);
+				return;
+			}
+			
+			int middle = (from+to) >>> 1;
+			invokeAll(new HistogramAction(points, xs, ys, logBinStarts, from, middle, histograms),
+					new HistogramAction(points, xs, ys, logBinStarts, middle, to, histograms));
+		}
+	}
+	
+	
+	
+	/** Finds, for each log bin after the first, the smallest integer squared distance which
+	 * falls in that bin or a later one. The original calculation (normalize by the mean distance,
+	 * scale by logScaleFactor, then take the log) is applied to the candidate squared distances
+	 * themselves, and it never decreases as the distance grows, so a binary search finds exactly
+	 * where each bin begins. Entry k-1 holds where bin k begins. A bin which no pair reaches
+	 * begins after maxSquaredDistance. The last entry is where the bin past the end of the
+	 * histogram would begin. Pairs beyond it belong in the last bin, so it is not used for binning.
+	 */
+	private int[] findLogBinStarts(double meanDistance, int maxSquaredDistance){
+		int[] starts = new int[numLogBins];
+		
+		for(int bin=1; bin<=numLogBins; bin++){
+			int low = 0;
+			int high = maxSquaredDistance+1;
+			//Smallest squared distance in [low, high] whose bin is at least bin.
+			while(low < high){
+				int middle = (low+high) >>> 1;
+				if(findLogBin(middle, meanDistance) >= bin){
+					high = middle;
+				}else{
+					low = middle+1;
+				}
+			}
+			starts[bin-1] = low;
+		}
+		
+		return starts;
+	}
+	
+	
+	
+	/** The log bin of a squared distance, calculated exactly as the original does. If the
+	 * distance is a decimal, then the log will be negative. Therefore, set negative logs to bin of 0.
+	 */
+	private int findLogBin(int squaredDistance, double meanDistance){
+		double distance = Math.sqrt(squaredDistance);
+		distance /= meanDistance;
+		distance *= logScaleFactor;
+		
+		int logBin = (int)Math.log(distance);	//Auto-rounds down.
+		logBin = (logBin < 0) ? 0 : logBin;
+		
+		return logBin;
+	}
+	
+	
+	
+	/** A pseudo-angle of the point (a, b) in [0, 4), which increases with its true angle in
+	 * [0, 2PI) but only needs a division. Each quadrant covers one unit, in which the value
+	 * is how far the point has turned from one axis towards the next.
+	 */
+	private static double pseudoAngle(double a, double b){
+		//In [-1, 1], from the negative y axis round through the x axis to the positive y axis.
+		double q = b / (Math.abs(a) + Math.abs(b));
+		
+		if(a >= 0){
+			return (b >= 0) ? q : 4+q;
+		}else{
+			return 2-q;
+		}
+	}
+	
+	
+	
+	/** Finds the radial bin containing the pseudo-angle from radialBinLookup, or -1 when the
+	 * pseudo-angle is within PSEUDO_ANGLE_TOLERANCE of a bin boundary, or NaN, as the bin cannot then
+	 * be trusted to match the original calculation.
+	 */
+	private int findRadialBinFromPseudoAngle(double pseudoAngle){
+		//NaN fails both comparisons, and so goes to the boundary check below.
+		if(pseudoAngle >= 0 && pseudoAngle < 4){
+			int bin = radialBinLookup[(int)(pseudoAngle * (RADIAL_BIN_LOOKUP_SIZE/4))];
+			if(bin >= 0){
+				return bin;
+			}
+		}
+		
+		//The pseudo-angle's cell of the table is near a boundary, so check against the boundaries.
+		for(int bin=0; bin<numRadialBins; bin++){
+			if(pseudoAngle - radialBinStarts[bin] >= PSEUDO_ANGLE_TOLERANCE
+					&& radialBinStarts[bin+1] - pseudoAngle >= PSEUDO_ANGLE_TOLERANCE){
+				return bin;
+			}
+		}
+		
+		return -1;
+	}
+	
+	
+	
+	/** Builds a table dividing the pseudo-angles [0, 4) into RADIAL_BIN_LOOKUP_SIZE equal cells,
+	 * holding the radial bin of every pseudo-angle in each cell. A cell which comes within
+	 * PSEUDO_ANGLE_TOLERANCE of a bin boundary holds -1 instead. radialBinStarts are the
+	 * pseudo-angles at which the bins begin, as found by findRadialBinStarts.
+	 */
+	private static int[] buildRadialBinLookup(double[] radialBinStarts){
+		int[] lookup = new int[RADIAL_BIN_LOOKUP_SIZE];
+		double cellWidth = 4.0 / RADIAL_BIN_LOOKUP_SIZE;
+		
+		for(int cell=0; cell<RADIAL_BIN_LOOKUP_SIZE; cell++){
+			double low = cell*cellWidth - 2*PSEUDO_ANGLE_TOLERANCE;
+			double high = (cell+1)*cellWidth + 2*PSEUDO_ANGLE_TOLERANCE;
+			lookup[cell] = -1;
+			
+			for(int bin=0; bin<radialBinStarts.length-1; bin++){
+				if(low > radialBinStarts[bin] && high < radialBinStarts[bin+1]){
+					lookup[cell] = bin;
+				}
+			}
+		}
+		
+		return lookup;
+	}
+	
+	
+	
+	/** Pseudo-angles at which each radial bin begins, with 4 (a full turn) at the end.
+	 */
+	private static double[] findRadialBinStarts(int numRadialBins){
+		double[] starts = new double[numRadialBins+1];
+		
+		for(int bin=1; bin<numRadialBins; bin++){
+			double angle = bin * 2*Math.PI / numRadialBins;
+			starts[bin] = pseudoAngle(Math.cos(angle), Math.sin(angle));
+		}
+		starts[0] = 0;
+		starts[numRadialBins] = 4;
+		
+		return starts;
+	}
+	
+	
+	
+	/** Calculates log-polar histogram of each point by comparing distance and angle from
+	 * all other points on the shape. This is the original, straightforward version of
+	 * calculateLogPolarHistograms, kept to check the faster version against.
 	 */
-	private static int[][][] calculateLogPolarHistograms(Point[] points){
-		int[][][] histograms = new int[NUM_POINTS][NUM_RADIAL_BINS][NUM_LOG_BINS];
+	int[][][] calculateLogPolarHistogramsReference(Point[] points){
+		int[][][] histograms = new int[points.length][numRadialBins][numLogBins];
 		
 		//a. Calculate the distance between each point. This is then averaged to
 		//determine the mean distance. The mean distance is then used to normalize
 		//the distances.
 		
-		double distances[][] = new double[NUM_POINTS][NUM_POINTS];
+		double distances[][] = new double[points.length][points.length];
 		double sumDistances = 0.0;
 		//i. Calculate raw distance and sum.
 		for(int i=0; i<distances.length; i++){
@@ -70,14 +559,13 @@ public class ShapeContextCalculator {
 				sumDistances += distance;
 			}
 		}
-		double meanDistance = sumDistances / (NUM_POINTS*NUM_POINTS);
-		System.out.println("mean: "+meanDistance);
-		//ii. Normalize sum with mean distance. Then multiply by LOG_SCALE_FACTOR
+		double meanDistance = sumDistances / (points.length*points.length);
+		//ii. Normalize sum with mean distance. Then multiply by logScaleFactor
 		//to get some variation among log bins later.
 		for(int i=0; i<distances.length; i++){
 			for(int j=0; j<distances.length; j++){
 				distances[i][j] /= meanDistance;
-				distances[i][j] *= LOG_SCALE_FACTOR;
+				distances[i][j] *= logScaleFactor;
 			}
 		}
 		
@@ -110,16 +598,7 @@ public class ShapeContextCalculator {
 					//so angles will be properly centered around i.
 					pjX -= piX;
 					pjY -= piY;
-					double rawAngle = findAngle(pjX, pjY);
-					//ii. Normalize the raw angle with the base angle. Then double check result
-					//is positive (which may not always occur). If is not positive, convert angle
-					//to a positive angle (within range of [0,2PI) ).
-					double angle = rawAngle-baseAngle;
-					angle = (angle < 0) ? angle += 2*Math.PI : angle;
-					//iii. Convert to bins. If there is a floating point error and the bin comes
-					//out as 12, it is rounded down to 11.
-					int radialBin = (int)(angle * (NUM_RADIAL_BINS)/(2*Math.PI));
-					radialBin = (radialBin == 12) ? 11 : radialBin;
+					int radialBin = findRadialBin(pjX, pjY, baseAngle);
 					
 					
 					//d. Find log-bin of previously calculated and normalized distance. If the distance
@@ -127,6 +606,8 @@ public class ShapeContextCalculator {
 					//0.
 					int logBin = (int)Math.log(distances[i][j]);	//Auto-rounds down.
 					logBin = (logBin < 0) ? 0 : logBin;
+					//Points far beyond the mean distance are counted in the outermost bin.
+					logBin = (logBin >= numLogBins) ? numLogBins-1 : logBin;
 					
 					
 					//e. Update the respective bin.
@@ -141,6 +622,29 @@ public class ShapeContextCalculator {
 	
 	
 	
+	/** Auxiliary method to find the radial bin of the point (x, y), relative to the origin, when
+	 * the angles are measured from baseAngle.
+	 */
+	private int findRadialBin(int x, int y, double baseAngle){
+		double rawAngle = findAngle(x, y);
+		//ii. Normalize the raw angle with the base angle. Then double check result
+		//is positive (which may not always occur). If is not positive, convert angle
+		//to a positive angle (within range of [0,2PI) ). The base angle is -PI/2 when the
+		//previous point is directly to the left (a slope of -0), so the difference can be
+		//outside (-2PI, 2PI) and is wrapped first.
+		double angle = rawAngle-baseAngle;
+		angle = (angle >= 2*Math.PI || angle < -2*Math.PI) ? angle % (2*Math.PI) : angle;
+		angle = (angle < 0) ? angle += 2*Math.PI : angle;
+		//iii. Convert to bins. If there is a floating point error and the bin comes
+		//out as numRadialBins, it is rounded down to the last bin.
+		int radialBin = (int)(angle * (numRadialBins)/(2*Math.PI));
+		radialBin = (radialBin == numRadialBins) ? numRadialBins-1 : radialBin;
+		
+		return radialBin;
+	}
+	
+	
+	
 	/** Auxiliary method to get the angle from the horizontal based on cartesian
 	 * coordinates x and y. Returns values between [0, 2PI). 
 	 */
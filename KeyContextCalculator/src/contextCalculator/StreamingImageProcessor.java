@@ -0,0 +1,144 @@
+package contextCalculator;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import data.DataManager;
+
+/** Streaming version of ImageProcessor for images too large to hold in memory. The image is
+ * decoded a strip of rows at a time, and only a window of binary rows (the strip plus HALO_ROWS
+ * above and below it) is kept, so memory is proportional to the width times the window rather
+ * than to the whole image. Edge points are passed to an EdgeListener as each strip is finished.
+ *
+ * Otsu's threshold needs the histogram of the whole image, so the file is read twice: once to fill
+ * the histogram, and once to threshold, clean and find edges.
+ *
+ * Cleaning only sees the window, not the whole image, so its result can differ from ImageProcessor
+ * near strip boundaries for blobs taller than the halo. Formats which cannot seek to a row, such as
+ * JPEG, decode the rows above each strip again for every strip, so fewer, taller strips are faster.
+ */
+public class StreamingImageProcessor {
+
+
+	public static final int DEFAULT_STRIP_HEIGHT = 256;
+
+	//Enough rows for the furthest reach of the cleaning: comparisons up to MAX_CLEANING_DISTANCE rows
+	//away, and boxes up to MAX_BOX_HEIGHT rows tall.
+	private static final int HALO_ROWS = 16;
+
+
+
+	/** Receives the edge points of the image, in the same order as ImageProcessor finds them.
+	 */
+	public interface EdgeListener {
+		public void edgeFound(Point edge);
+	}
+
+
+
+	/** Finds the edges of the key as ImageProcessor.getKeyEdges does, streaming the image from file
+	 * with the default strip height.
+	 */
+	public static ArrayList<Point> getKeyEdges(File file) throws IOException {
+		return getKeyEdges(file, null);
+	}
+
+
+
+	/** As getKeyEdges(file), finding the beginning of the blade with the given detector, or with
+	 * the original line projection when it is null.
+	 */
+	public static ArrayList<Point> getKeyEdges(File file, BladeDetector bladeDetector) throws IOException {
+		final ArrayList<Point> edges = new ArrayList<Point>();
+
+		//4. Find all points which constitute an edge, a strip at a time.
+		findEdges(file, DEFAULT_STRIP_HEIGHT, new EdgeListener(){
+			public void edgeFound(Point edge){
+				edges.add(edge);
+			}
+		});
+
+		//5.-9. The remaining steps only use the edge points, so they are the same as in ImageProcessor.
+		ArrayList<Point> rightEdge = ImageProcessor.selectRightEdge(edges);
+		double keyAngleOffset = ImageProcessor.findKeyAngleOffset(rightEdge);
+		Point beginningBlade = ImageProcessor.findBladeBeginning(rightEdge, keyAngleOffset, bladeDetector);
+		Point keyCenter = ImageProcessor.findKeyCenter(beginningBlade, rightEdge);
+
+		return ImageProcessor.cleanEdges(keyCenter, edges);
+	}
+
+
+
+	/** Converts, thresholds and cleans the image a strip at a time, passing every edge point found
+	 * to the listener.
+	 */
+	public static void findEdges(File file, int stripHeight, EdgeListener listener) throws IOException {
+		Dimension size = DataManager.readImageDimensions(file);
+		int width = size.width;
+		int height = size.height;
+
+		//1. First pass: fill the histogram for Otsu's Method from every strip.
+		int[] histogram = ImageProcessor.newHistogram();
+		for(int y=0; y<height; y+=stripHeight){
+			int[] grayscalePixels = readGrayscaleRows(file, width, y, Math.min(height, y+stripHeight));
+			ImageProcessor.fillHistogram(grayscalePixels, 0, grayscalePixels.length, histogram);
+		}
+		int thresholdValue = ImageProcessor.otsusMethod(histogram);
+
+		//2. Second pass. The window holds the binary rows [windowStart, windowEnd).
+		int[] window = new int[width*(stripHeight+2*HALO_ROWS)];
+		int windowStart = 0;
+		int windowEnd = 0;
+
+		for(int y=0; y<height; y+=stripHeight){
+			int stripEnd = Math.min(height, y+stripHeight);
+
+			//a. Drop the rows which are no longer within the halo above the strip.
+			int keepStart = Math.max(0, y-HALO_ROWS);
+			if(keepStart > windowStart){
+				System.arraycopy(window, (keepStart-windowStart)*width, window, 0, (windowEnd-keepStart)*width);
+				windowStart = keepStart;
+			}
+
+			//b. Decode and threshold the rows up to the end of the halo below the strip.
+			int readEnd = Math.min(height, stripEnd+HALO_ROWS);
+			if(readEnd > windowEnd){
+				int[] grayscalePixels = readGrayscaleRows(file, width, windowEnd, readEnd);
+				int offset = (windowEnd-windowStart)*width;
+				for(int i=0; i<grayscalePixels.length; i++){
+					window[offset+i] = (grayscalePixels[i] > thresholdValue) ? 1 : 0;
+				}
+				windowEnd = readEnd;
+			}
+
+			//c. Clean the whole window, so that the strip's rows are cleaned with the rows around them.
+			int windowRows = windowEnd-windowStart;
+			int[] cleanedPixels = ImageProcessor.cleanBinaryPixels(width, windowRows,
+					Arrays.copyOf(window, windowRows*width));
+
+			//d. Find the edges within the strip's rows, and move them into the image's coordinates.
+			ArrayList<Point> stripEdges = new ArrayList<Point>();
+			ImageProcessor.findEdges(width, cleanedPixels, (y-windowStart)*width, (stripEnd-windowStart)*width, stripEdges);
+			for(Point p : stripEdges){
+				p.translate(0, windowStart);
+				listener.edgeFound(p);
+			}
+		}
+	}
+
+
+
+	/** Decodes the rows [firstRow, lastRow) of the image and converts them to grayscale.
+	 */
+	private static int[] readGrayscaleRows(File file, int width, int firstRow, int lastRow) throws IOException {
+		Rectangle rows = new Rectangle(0, firstRow, width, lastRow-firstRow);
+		return ImageProcessor.convertToGrayscale(DataManager.readImage(file, 1, rows));
+	}
+
+
+}
@@ -0,0 +1,264 @@
+package contextCalculator;
+
+import java.awt.Point;
+import java.util.Arrays;
+
+/** Refines the matching cost of a candidate key by warping the photographed key onto it with a
+ * thin plate spline, so that a photo taken at an angle or of a slightly bent key is not scored
+ * by its distortion. Starting from the correspondences of the Hungarian Method's assignment, each
+ * iteration fits a regularized thin plate spline from the query's points to their matched
+ * candidate points, warps the query's points, recalculates their shape contexts and assigns them
+ * again. The refined cost is the lowest of the assignment cost plus bendingEnergyWeight times the
+ * spline's bending energy over the iterations, so it is never more than the unrefined cost.
+ *
+ * The spline always maps from the query's original points, so its system of equations only
+ * depends on the query. It is factored once by prepare(), and each iteration, for every candidate,
+ * only solves it for new targets, at O(n^2) instead of O(n^3). Each iteration also runs one
+ * Hungarian assignment, and the iterations stop at maxIterations, or as soon as an iteration does
+ * not lower the cost, so a refinement costs at most maxIterations+1 assignments.
+ */
+public class ThinPlateSplineRefiner {
+
+
+	public static final int DEFAULT_NUM_CANDIDATES = 3;
+	public static final int DEFAULT_MAX_ITERATIONS = 3;
+	public static final double DEFAULT_REGULARIZATION = 1;
+	public static final double DEFAULT_BENDING_ENERGY_WEIGHT = 100;
+
+	private final int numCandidates;
+	private final int maxIterations;
+	private final double regularization;
+	private final double bendingEnergyWeight;
+	private final ShapeContextCalculator calculator;
+
+
+
+	public ThinPlateSplineRefiner(){
+		this(DEFAULT_NUM_CANDIDATES, DEFAULT_MAX_ITERATIONS, DEFAULT_REGULARIZATION, DEFAULT_BENDING_ENERGY_WEIGHT,
+				ShapeContextCalculator.DEFAULT);
+	}
+
+
+
+	/** @param numCandidates number of best candidates KeyMatcher refines.
+	 * @param maxIterations most warps fitted per candidate.
+	 * @param regularization how stiff the spline is, with the points scaled to a mean distance of 1
+	 * from their centroid. Small values fit the correspondences closely, and larger values approach
+	 * an affine transform. It must be positive, as repeated points make the unregularized system
+	 * singular.
+	 * @param bendingEnergyWeight weight of the spline's bending energy in the refined cost, so that
+	 * a candidate which needs a large warp to fit is penalized.
+	 * @param calculator used to recalculate the warped points' shape contexts. It must have the
+	 * parameters the candidates' fine shape contexts were calculated with.
+	 */
+	public ThinPlateSplineRefiner(int numCandidates, int maxIterations, double regularization,
+			double bendingEnergyWeight, ShapeContextCalculator calculator){
+		if(numCandidates < 0 || maxIterations < 0 || regularization <= 0 || bendingEnergyWeight < 0){
+			throw new IllegalArgumentException("invalid thin plate spline parameters");
+		}
+
+		this.numCandidates = numCandidates;
+		this.maxIterations = maxIterations;
+		this.regularization = regularization;
+		this.bendingEnergyWeight = bendingEnergyWeight;
+		this.calculator = calculator;
+	}
+
+
+
+	public int getNumCandidates(){
+		return numCandidates;
+	}
+
+
+
+	/** The query's side of the spline: its normalized points, the spline's kernel between them, and
+	 * the factored system of equations. Shared by the refinements of every candidate.
+	 */
+	public static class PreparedQuery {
+		private final int[][][] shapeContext;
+		private final double[] xs;
+		private final double[] ys;
+		private final double[][] kernel;
+		private final LUDecomposition system;
+
+		PreparedQuery(int[][][] shapeContext, double[] xs, double[] ys, double[][] kernel, LUDecomposition system){
+			this.shapeContext = shapeContext;
+			this.xs = xs;
+			this.ys = ys;
+			this.kernel = kernel;
+			this.system = system;
+		}
+	}
+
+
+
+	/** Builds and factors the spline's system of equations for the query's points, whose shape
+	 * contexts are given in the same order.
+	 */
+	public PreparedQuery prepare(Point[] queryPoints, int[][][] queryShapeContext){
+		int n = queryPoints.length;
+		if(queryShapeContext.length != n){
+			throw new IllegalArgumentException("query has "+n+" points but "+queryShapeContext.length+" shape contexts");
+		}
+
+		//1. Normalize the points, so that the regularization does not depend on the photo's scale.
+		double[] xs = new double[n];
+		double[] ys = new double[n];
+		normalize(queryPoints, xs, ys, null);
+
+		//2. The kernel U(r) = r^2 log(r^2) between each pair of points.
+		double[][] kernel = new double[n][n];
+		for(int i=0; i<n; i++){
+			for(int j=0; j<n; j++){
+				double dx = xs[i]-xs[j];
+				double dy = ys[i]-ys[j];
+				kernel[i][j] = findKernel(dx*dx + dy*dy);
+			}
+		}
+
+		//3. The system [K+regularization*I, P; P^T, 0], where each row of P is (1, x, y).
+		double[][] matrix = new double[n+3][n+3];
+		for(int i=0; i<n; i++){
+			System.arraycopy(kernel[i], 0, matrix[i], 0, n);
+			matrix[i][i] += regularization;
+			matrix[i][n] = matrix[n][i] = 1;
+			matrix[i][n+1] = matrix[n+1][i] = xs[i];
+			matrix[i][n+2] = matrix[n+2][i] = ys[i];
+		}
+
+		return new PreparedQuery(queryShapeContext, xs, ys, kernel, new LUDecomposition(matrix));
+	}
+
+
+
+	/** Returns the refined cost of matching the query with the candidate. The candidate's points
+	 * must be those its shape contexts were calculated for, in the same order, and as many as the
+	 * query's, so that every point of each is assigned one of the other's.
+	 */
+	public double refine(PreparedQuery query, Point[] candidatePoints, int[][][] candidateShapeContext){
+		int n = query.xs.length;
+		if(!canRefine(query, candidatePoints, candidateShapeContext)){
+			throw new IllegalArgumentException("candidate has "+candidatePoints.length+" points, not the query's "+n);
+		}
+
+		//The targets are normalized as the query's points are, and the warped points are scaled back
+		//into the candidate's coordinates to calculate their shape contexts.
+		double[] targetXs = new double[n];
+		double[] targetYs = new double[n];
+		double[] transform = new double[3];
+		normalize(candidatePoints, targetXs, targetYs, transform);
+
+		//1. The unrefined assignment.
+		double[][] costMatrices = KeyMatcher.calculateCostMatrices(query.shapeContext, candidateShapeContext);
+		int[] assignment = new HungarianAlgorithm(costMatrices).execute();
+		double bestCost = KeyMatcher.sumAssignedCosts(costMatrices, assignment);
+		double previousCost = bestCost;
+
+		for(int iteration=0; iteration<maxIterations; iteration++){
+			//2. Fit the spline from the query's points to the points they are assigned to.
+			double[] rightX = new double[n+3];
+			double[] rightY = new double[n+3];
+			for(int i=0; i<n; i++){
+				rightX[i] = targetXs[assignment[i]];
+				rightY[i] = targetYs[assignment[i]];
+			}
+			double[] solutionX = query.system.solve(rightX);
+			double[] solutionY = query.system.solve(rightY);
+
+			//3. Warp the query's points, and find the spline's bending energy, w^T K w for each axis.
+			Point[] warped = new Point[n];
+			double bendingEnergy = 0;
+			for(int i=0; i<n; i++){
+				double x = solutionX[n] + solutionX[n+1]*query.xs[i] + solutionX[n+2]*query.ys[i];
+				double y = solutionY[n] + solutionY[n+1]*query.xs[i] + solutionY[n+2]*query.ys[i];
+				double[] kernelRow = query.kernel[i];
+				double bendX = 0;
+				double bendY = 0;
+				for(int j=0; j<n; j++){
+					bendX += kernelRow[j]*solutionX[j];
+					bendY += kernelRow[j]*solutionY[j];
+				}
+				x += bendX;
+				y += bendY;
+				bendingEnergy += solutionX[i]*bendX + solutionY[i]*bendY;
+
+				warped[i] = new Point((int)Math.round(x*transform[2] + transform[0]),
+						(int)Math.round(y*transform[2] + transform[1]));
+			}
+
+			//4. Recalculate the warped points' shape contexts and assign them again.
+			costMatrices = KeyMatcher.calculateCostMatrices(calculator.calculate(warped), candidateShapeContext);
+			int[] nextAssignment = new HungarianAlgorithm(costMatrices).execute();
+			double cost = KeyMatcher.sumAssignedCosts(costMatrices, nextAssignment)
+					+ bendingEnergyWeight*Math.max(0, bendingEnergy);
+			bestCost = Math.min(bestCost, cost);
+
+			//5. Stop once the warp no longer lowers the cost, or when the same assignment would fit
+			//the same spline again.
+			if(cost >= previousCost || Arrays.equals(assignment, nextAssignment)){
+				break;
+			}
+			assignment = nextAssignment;
+			previousCost = cost;
+		}
+
+		return bestCost;
+	}
+
+
+
+	/** Whether refine can match the candidate with the query: it has as many points, and shape
+	 * contexts, as the query.
+	 */
+	public boolean canRefine(PreparedQuery query, Point[] candidatePoints, int[][][] candidateShapeContext){
+		return candidatePoints != null && candidatePoints.length == query.xs.length
+				&& candidateShapeContext.length == query.xs.length;
+	}
+
+
+
+	/** Moves the points' centroid to the origin and scales them to a mean distance of 1 from it.
+	 * If transform is not null, it is filled with the centroid and the scale, so that a normalized
+	 * point (x, y) is (x*transform[2] + transform[0], y*transform[2] + transform[1]) originally.
+	 */
+	private static void normalize(Point[] points, double[] xs, double[] ys, double[] transform){
+		int n = points.length;
+		double centerX = 0;
+		double centerY = 0;
+		for(Point p : points){
+			centerX += p.x;
+			centerY += p.y;
+		}
+		centerX /= n;
+		centerY /= n;
+
+		double meanDistance = 0;
+		for(Point p : points){
+			meanDistance += Math.hypot(p.x-centerX, p.y-centerY);
+		}
+		meanDistance /= n;
+		double scale = (meanDistance > 0) ? meanDistance : 1;
+
+		for(int i=0; i<n; i++){
+			xs[i] = (points[i].x-centerX) / scale;
+			ys[i] = (points[i].y-centerY) / scale;
+		}
+
+		if(transform != null){
+			transform[0] = centerX;
+			transform[1] = centerY;
+			transform[2] = scale;
+		}
+	}
+
+
+
+	/** The thin plate spline kernel U(r) = r^2 log(r^2), given r^2, which is 0 at r = 0.
+	 */
+	private static double findKernel(double squaredDistance){
+		return (squaredDistance == 0) ? 0 : squaredDistance*Math.log(squaredDistance);
+	}
+
+
+}
@@ -1,5 +1,8 @@
 package data;
 
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
 import java.io.BufferedReader;
@@ -9,8 +12,19 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+import contextCalculator.DualProfileShapeContext;
+import contextCalculator.KeyClusterIndex;
+import contextCalculator.MultiResolutionShapeContext;
 
 public class DataManager {
 	
@@ -18,6 +32,21 @@ public class DataManager {
 	
 	public static final String rawKeyPath = "bin\\data\\imageData\\";
 	public static final String rawDatabasePath = "bin\\data\\databases\\";
+	public static final String shapeContextDatabaseName = "keyShapeContextDatabase.csv";
+	public static final String coarseShapeContextDatabaseName = "keyCoarseShapeContextDatabase.csv";
+	public static final String pointDatabaseName = "keyPointDatabase.csv";
+	public static final String rightShapeContextDatabaseName = "keyRightShapeContextDatabase.csv";
+	public static final String rightCoarseShapeContextDatabaseName = "keyRightCoarseShapeContextDatabase.csv";
+	public static final String rightPointDatabaseName = "keyRightPointDatabase.csv";
+	public static final String clusterIndexName = "keyClusterIndex.csv";
+	
+	//ImageReaders are expensive to look up and create, so each thread keeps one per image format.
+	private static final ThreadLocal<HashMap<String, ImageReader>> imageReaders =
+			new ThreadLocal<HashMap<String, ImageReader>>(){
+		protected HashMap<String, ImageReader> initialValue(){
+			return new HashMap<String, ImageReader>();
+		}
+	};
 	
 	
 	
@@ -36,11 +65,18 @@ public class DataManager {
 	
 	
 	
+	/** Reads the raw teeth right image, or returns null if there is none, as the right profile is
+	 * optional.
+	 */
 	public static BufferedImage getRawKeyTeethRightImage(){	
+		File file = new File(rawKeyPath+"rawTeethRight.jpg");
+		if(!file.isFile()){
+			return null;
+		}
 		BufferedImage bufferedImage = null;
 		
 		try {
-			bufferedImage = ImageIO.read(new File(rawKeyPath+"rawKeyTeethRight.jpg"));
+			bufferedImage = ImageIO.read(file);
 		} catch (IOException e) {
 			System.out.println("unable to read raw teeth right image from file");
 		}
@@ -50,103 +86,310 @@ public class DataManager {
 
 
 
-	public static void saveGrayscaleImageToFile(int width, int height, int[] pixels) {
-		//DEBUG: Writes grayscale image to file.
-		BufferedImage binaryImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-		WritableRaster rast = binaryImage.getRaster();
-		rast.setPixels(0, 0, width, height, pixels);
+	/** Reads the raw teeth left image, keeping only every subsampling-th pixel in each direction.
+	 * A subsampling of 1 reads the full image.
+	 */
+	public static BufferedImage getRawKeyTeethLeftImage(int subsampling){	
+		BufferedImage bufferedImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
 		
 		try {
-			ImageIO.write(binaryImage, "jpg", new File(rawKeyPath+"grayscale.jpg"));
+			bufferedImage = readImage(new File(rawKeyPath+"rawTeethLeft.jpg"), subsampling, null);
 		} catch (IOException e) {
-			System.out.println("unable to write grayscale image to file");
+			System.out.println("unable to read raw teeth left image from file");
 		}
+		
+
+		return bufferedImage;
 	}
 	
 	
 	
-	public static void saveBinaryImageToFile(int width, int height, int[] pixels) {
-		//DEBUG: Writes binary image to file.
-		BufferedImage binaryImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
-		WritableRaster rast = binaryImage.getRaster();
-		rast.setPixels(0, 0, width, height, pixels);
+	/** Reads an image with an ImageReader, decoding only what is asked for. Only every
+	 * subsampling-th pixel in each direction is kept, so the decoded image takes
+	 * 1/(subsampling*subsampling) of the memory. If region is not null only the pixels within
+	 * it (in the file's full resolution coordinates) are decoded. The reader is reused by later
+	 * reads on the same thread.
+	 */
+	public static BufferedImage readImage(File file, int subsampling, Rectangle region) throws IOException {
+		ImageInputStream input = ImageIO.createImageInputStream(file);
+		if(input == null){
+			throw new IOException("unable to open "+file);
+		}
 		
 		try {
-			ImageIO.write(binaryImage, "jpg", new File(rawKeyPath+"binary.jpg"));
-		} catch (IOException e) {
-			System.out.println("unable to write binary image to file");
+			ImageReader reader = getImageReader(input, file);
+			reader.setInput(input, true, true);
+			
+			try {
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				if(region != null){
+					param.setSourceRegion(region);
+				}
+				
+				return reader.read(0, param);
+			} finally {
+				//Drops the reference to the stream, but keeps the reader for the next read.
+				reader.setInput(null);
+			}
+		} finally {
+			input.close();
+		}
+	}
+	
+	
+	
+	/** Reads only the header of an image to find its full width and height.
+	 */
+	public static Dimension readImageDimensions(File file) throws IOException {
+		ImageInputStream input = ImageIO.createImageInputStream(file);
+		if(input == null){
+			throw new IOException("unable to open "+file);
+		}
+		
+		try {
+			ImageReader reader = getImageReader(input, file);
+			reader.setInput(input, true, true);
+			
+			try {
+				return new Dimension(reader.getWidth(0), reader.getHeight(0));
+			} finally {
+				reader.setInput(null);
+			}
+		} finally {
+			input.close();
 		}
 	}
 	
 	
 	
+	/** Returns this thread's reader for the format of the given stream, creating it the first
+	 * time the format is seen. The reader providers are searched directly, rather than through
+	 * ImageIO.getImageReaders, as that creates a new reader for every call.
+	 */
+	private static ImageReader getImageReader(ImageInputStream input, File file) throws IOException {
+		Iterator<ImageReaderSpi> providers = IIORegistry.getDefaultInstance().getServiceProviders(ImageReaderSpi.class, true);
+		
+		while(providers.hasNext()){
+			ImageReaderSpi provider = providers.next();
+			
+			if(provider.canDecodeInput(input)){
+				HashMap<String, ImageReader> threadReaders = imageReaders.get();
+				String format = provider.getClass().getName();
+				
+				ImageReader reader = threadReaders.get(format);
+				if(reader == null){
+					reader = provider.createReaderInstance();
+					threadReaders.put(format, reader);
+				}
+				return reader;
+			}
+		}
+		
+		throw new IOException("no image reader for "+file);
+	}
+
+
+
+	public static void saveGrayscaleImageToFile(int width, int height, int[] pixels) {
+		//DEBUG: Writes grayscale image to file.
+		saveImageToFile(new File(rawKeyPath+"grayscale.jpg"), width, height, BufferedImage.TYPE_BYTE_GRAY, pixels);
+	}
+	
+	
+	
+	public static void saveBinaryImageToFile(int width, int height, int[] pixels) {
+		//DEBUG: Writes binary image to file.
+		saveImageToFile(new File(rawKeyPath+"binary.jpg"), width, height, BufferedImage.TYPE_BYTE_BINARY, pixels);
+	}
+	
+	
+	
 	public static void saveCleanedBinaryImageToFile(int width, int height, int[] pixels) {
 		//DEBUG: Writes binary image to file.
-		BufferedImage binaryImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
-		WritableRaster rast = binaryImage.getRaster();
+		saveImageToFile(new File(rawKeyPath+"cleanedBinary.jpg"), width, height, BufferedImage.TYPE_BYTE_BINARY, pixels);
+	}
+	
+	
+	
+	/** Writes the given pixels to a JPEG file. imageType is one of the BufferedImage types,
+	 * such as TYPE_BYTE_GRAY for grayscale pixels or TYPE_BYTE_BINARY for binary pixels.
+	 */
+	public static void saveImageToFile(File file, int width, int height, int imageType, int[] pixels) {
+		BufferedImage image = new BufferedImage(width, height, imageType);
+		WritableRaster rast = image.getRaster();
 		rast.setPixels(0, 0, width, height, pixels);
 		
 		try {
-			ImageIO.write(binaryImage, "jpg", new File(rawKeyPath+"cleanedBinary.jpg"));
+			ImageIO.write(image, "jpg", file);
 		} catch (IOException e) {
-			System.out.println("unable to write binary image to file");
+			System.out.println("unable to write image to file "+file);
 		}
 	}
 
 
 
 	public static ArrayList<int[][][]> getKeyShapeContexts() {
+		return getKeyShapeContexts(shapeContextDatabaseName);
+	}
+	
+	
+	
+	/** Reads the shape contexts of every key in the named database. Each key is placed at its key
+	 * index in the list, so a key missing from the database leaves null at its index.
+	 */
+	public static ArrayList<int[][][]> getKeyShapeContexts(String databaseName) {
+		return getKeyShapeContexts(databaseName, 0, 1);
+	}
+	
+	
+	
+	/** Reads the shape contexts of the keys of one shard of the named database, those whose key
+	 * index modulo numShards is shard, as getKeyShapeContexts(databaseName) does. The other keys are
+	 * null, so that the shard's keys keep their indices without the rest taking memory.
+	 */
+	public static ArrayList<int[][][]> getKeyShapeContexts(String databaseName, int shard, int numShards) {
 		ArrayList<int[][][]> keyShapeContexts = new ArrayList<int[][][]>();
 		
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(rawDatabasePath+"keyShapeContextDatabase.csv"));
-			String line = br.readLine();
-			
-			//Initial information from first line.
-			int numKeys = 0;
-			int numPoints = 0;
-			int numRadialBins = 0;
-			int numLogBins = 0;
-			
-			if(line != null){
-				//Initial information, such as the number of keys, the number of points per key, etc.
-				//line has form: "numKeys, pointsPerKey, numRadialBins, numLogBins" .
-				String[] values = line.split(",");
-				numKeys = Integer.parseInt(values[0]);
-				numPoints = Integer.parseInt(values[1]);
-				numRadialBins = Integer.parseInt(values[2]);
-				numLogBins = Integer.parseInt(values[3]);
+			BufferedReader br = new BufferedReader(new FileReader(rawDatabasePath+databaseName));
+			keyShapeContexts = readShapeContexts(br, shard, numShards);
+			br.close();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		
+		return keyShapeContexts;
+	}
+	
+	
+	
+	/** Reads shape contexts in the shape context database's format, from a database file or from
+	 * any other source, such as an uploaded descriptor. Each key is placed at its key index in the
+	 * list, so a key missing from the input leaves null at its index.
+	 */
+	public static ArrayList<int[][][]> readShapeContexts(BufferedReader br) throws IOException {
+		return readShapeContexts(br, 0, 1);
+	}
+	
+	
+	
+	/** Reads the shape contexts of the keys whose key index modulo numShards is shard, leaving null
+	 * at the others' indices.
+	 */
+	public static ArrayList<int[][][]> readShapeContexts(BufferedReader br, int shard, int numShards) throws IOException {
+		ArrayList<int[][][]> keyShapeContexts = new ArrayList<int[][][]>();
+		String line = br.readLine();
+		
+		//Initial information from first line.
+		int numKeys = 0;
+		int numPoints = 0;
+		int numRadialBins = 0;
+		int numLogBins = 0;
+		
+		if(line != null){
+			//Initial information, such as the number of keys, the number of points per key, etc.
+			//line has form: "numKeys, pointsPerKey, numRadialBins, numLogBins" .
+			String[] values = line.split(",");
+			numKeys = Integer.parseInt(values[0]);
+			numPoints = Integer.parseInt(values[1]);
+			numRadialBins = Integer.parseInt(values[2]);
+			numLogBins = Integer.parseInt(values[3]);
+		}
+		
+		int lastNumKey = -1;
+		int[][][] key = null;
+		
+		while((line = br.readLine()) != null){
+			String[] values = line.split(",");
+			int numKey = Integer.parseInt(values[0]);
+			if(numKey % numShards != shard){
+				continue;
 			}
+			int point = Integer.parseInt(values[1]);
+			int radialBin = Integer.parseInt(values[2]);
+			int logBin = Integer.parseInt(values[3]);
+			int frequency = Integer.parseInt(values[4]);
 			
-			int lastNumKey = -1;
-			int[][][] key = null;
-			
-			while((line = br.readLine()) != null){
-				String[] values = line.split(",");
-				int numKey = Integer.parseInt(values[0]);
-				int point = Integer.parseInt(values[1]);
-				int radialBin = Integer.parseInt(values[2]);
-				int logBin = Integer.parseInt(values[3]);
-				int frequency = Integer.parseInt(values[4]);
-				
-				//When there is a new key being traversed.
-				if(numKey != lastNumKey){
-					key = new int[numPoints][numRadialBins][numLogBins];
-					keyShapeContexts.add(key);
-					lastNumKey = numKey;
+			//When there is a new key being traversed.
+			if(numKey != lastNumKey){
+				key = new int[numPoints][numRadialBins][numLogBins];
+				while(keyShapeContexts.size() <= numKey){
+					keyShapeContexts.add(null);
 				}
-				
-				//Update the frequency info for the shape context of this key.
-				key[point][radialBin][logBin] = frequency;
+				keyShapeContexts.set(numKey, key);
+				lastNumKey = numKey;
 			}
 			
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			//Update the frequency info for the shape context of this key.
+			key[point][radialBin][logBin] = frequency;
 		}
 		
 		return keyShapeContexts;
 	}
+	
+	
+	
+	/** Reads only the first key of shape contexts in the shape context database's format, for
+	 * uploads, which readShapeContexts must not be given as it trusts the sizes it reads. The
+	 * header's sizes must be positive, and come to at most maxFrequencies in all, before the key is
+	 * allocated, every index must be within them, and reading stops at the first line of another key.
+	 * 
+	 * @throws IllegalArgumentException if the input is malformed, too large, or has no key.
+	 */
+	public static int[][][] readFirstShapeContext(BufferedReader br, long maxFrequencies) throws IOException {
+		//1. Sizes, from the first line: "numKeys, pointsPerKey, numRadialBins, numLogBins".
+		String line = br.readLine();
+		if(line == null){
+			throw new IllegalArgumentException("shape context has no header");
+		}
+		String[] values = line.split(",");
+		if(values.length < 4){
+			throw new IllegalArgumentException("shape context header has fewer than 4 values");
+		}
+		int numPoints = Integer.parseInt(values[1].trim());
+		int numRadialBins = Integer.parseInt(values[2].trim());
+		int numLogBins = Integer.parseInt(values[3].trim());
+		if(numPoints <= 0 || numRadialBins <= 0 || numLogBins <= 0
+				|| (long)numPoints*numRadialBins*numLogBins > maxFrequencies){
+			throw new IllegalArgumentException("shape context sizes are not positive or too large");
+		}
+		
+		//2. Frequencies of the first key, as "numKey, point, radialBin, logBin, frequency".
+		int[][][] key = null;
+		int firstNumKey = -1;
+		while((line = br.readLine()) != null){
+			values = line.split(",");
+			if(values.length < 5){
+				throw new IllegalArgumentException("shape context line has fewer than 5 values");
+			}
+			int numKey = Integer.parseInt(values[0].trim());
+			if(key != null && numKey != firstNumKey){
+				break;
+			}
+			int point = Integer.parseInt(values[1].trim());
+			int radialBin = Integer.parseInt(values[2].trim());
+			int logBin = Integer.parseInt(values[3].trim());
+			int frequency = Integer.parseInt(values[4].trim());
+			if(point < 0 || point >= numPoints || radialBin < 0 || radialBin >= numRadialBins
+					|| logBin < 0 || logBin >= numLogBins || frequency < 0){
+				throw new IllegalArgumentException("shape context index or frequency out of range");
+			}
+			
+			if(key == null){
+				key = new int[numPoints][numRadialBins][numLogBins];
+				firstNumKey = numKey;
+			}
+			key[point][radialBin][logBin] = frequency;
+		}
+		if(key == null){
+			throw new IllegalArgumentException("upload has no shape context");
+		}
+		
+		return key;
+	}
+
 
 
 
@@ -156,8 +399,17 @@ public class DataManager {
 	 * @param shapeContext
 	 */
 	public static void saveShapeContextToFile(int keyIndex, int[][][] shapeContext) {
+		saveShapeContextToFile(shapeContextDatabaseName, keyIndex, shapeContext);
+	}
+	
+	
+	
+	/** Saves the shape context of a given key to the named database, appending the
+	 * information to the end.
+	 */
+	public static void saveShapeContextToFile(String databaseName, int keyIndex, int[][][] shapeContext) {
 		try {
-			BufferedWriter bw = new BufferedWriter(new FileWriter(rawDatabasePath+"keyShapeContextDatabase.csv", true));
+			BufferedWriter bw = new BufferedWriter(new FileWriter(rawDatabasePath+databaseName, true));
 			
 			for(int i=0; i<shapeContext.length; i++){
 				for(int j=0; j<shapeContext[i].length; j++){
@@ -176,6 +428,374 @@ public class DataManager {
 		}
 		
 	}
+
+	
+	
+	/** Writes the first line of a shape context database, which readShapeContexts reads the
+	 * dimensions of every key's shape context from.
+	 */
+	public static void writeShapeContextHeader(BufferedWriter bw, int numKeys, int numPoints, int numRadialBins,
+			int numLogBins) throws IOException {
+		bw.write(""+numKeys+","+numPoints+","+numRadialBins+","+numLogBins+",\n");
+	}
+	
+	
+	
+	/** Writes a key's shape context in the shape context database's format, leaving out the bins
+	 * with a frequency of 0. readShapeContexts reads missing bins as 0, so the key reads back the
+	 * same, but a database of many keys is several times smaller.
+	 */
+	public static void writeShapeContext(BufferedWriter bw, int keyIndex, int[][][] shapeContext) throws IOException {
+		for(int i=0; i<shapeContext.length; i++){
+			for(int j=0; j<shapeContext[i].length; j++){
+				for(int k=0; k<shapeContext[i][j].length; k++){
+					if(shapeContext[i][j][k] != 0){
+						//In order of: keyIndex, point, radialBin, logBin, frequency.
+						bw.write(""+keyIndex+","+i+","+j+","+k+","+shapeContext[i][j][k]+"\n");
+					}
+				}
+			}
+		}
+	}
+	
+	
+	
+	/** Writes the first line of a point database.
+	 */
+	public static void writePointHeader(BufferedWriter bw, int numKeys, int numPoints) throws IOException {
+		bw.write(""+numKeys+","+numPoints+",\n");
+	}
+	
+	
+	
+	/** Writes a key's points in the point database's format.
+	 */
+	public static void writePoints(BufferedWriter bw, int keyIndex, Point[] points) throws IOException {
+		for(int i=0; i<points.length; i++){
+			//In order of: keyIndex, point, x, y.
+			bw.write(""+keyIndex+","+i+","+points[i].x+","+points[i].y+"\n");
+		}
+	}
+	
+	
+	
+	/** Reads the points each key's fine shape context was calculated for. Each key is placed at
+	 * its key index in the list, so a key missing from the database leaves null at its index.
+	 */
+	public static ArrayList<Point[]> getKeyPoints() {
+		return getKeyPoints(pointDatabaseName);
+	}
+	
+	
+	
+	/** Reads the key points from the given point database, as getKeyPoints() does.
+	 */
+	public static ArrayList<Point[]> getKeyPoints(String databaseName) {
+		return getKeyPoints(databaseName, 0, 1);
+	}
+	
+	
+	
+	/** Reads the points of the keys of one shard of the given point database, as
+	 * getKeyShapeContexts(databaseName, shard, numShards) does.
+	 */
+	public static ArrayList<Point[]> getKeyPoints(String databaseName, int shard, int numShards) {
+		ArrayList<Point[]> keyPoints = new ArrayList<Point[]>();
+		
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(rawDatabasePath+databaseName));
+			keyPoints = readKeyPoints(br, shard, numShards);
+			br.close();
+		} catch (IOException e) {
+			System.out.println("Unable to read key points from file.");
+		}
+		
+		return keyPoints;
+	}
+	
+	
+	
+	/** Reads the points of the keys whose key index modulo numShards is shard, in the point
+	 * database's format, leaving null at the others' indices.
+	 */
+	public static ArrayList<Point[]> readKeyPoints(BufferedReader br, int shard, int numShards) throws IOException {
+		ArrayList<Point[]> keyPoints = new ArrayList<Point[]>();
+		String line = br.readLine();
+		
+		//line has form: "numKeys, pointsPerKey" .
+		int numPoints = 0;
+		if(line != null){
+			String[] values = line.split(",");
+			numPoints = Integer.parseInt(values[1]);
+		}
+		
+		while((line = br.readLine()) != null){
+			//In order of: keyIndex, point, x, y.
+			String[] values = line.split(",");
+			int numKey = Integer.parseInt(values[0]);
+			if(numKey % numShards != shard){
+				continue;
+			}
+			int point = Integer.parseInt(values[1]);
+			
+			while(keyPoints.size() <= numKey){
+				keyPoints.add(null);
+			}
+			if(keyPoints.get(numKey) == null){
+				keyPoints.set(numKey, new Point[numPoints]);
+			}
+			keyPoints.get(numKey)[point] = new Point(Integer.parseInt(values[2]), Integer.parseInt(values[3]));
+		}
+		
+		return keyPoints;
+	}
+	
+	
+	
+	/** Saves the points of a given key's fine shape context to the point database, appending the
+	 * information to the end.
+	 */
+	public static void savePointsToFile(int keyIndex, Point[] points) {
+		savePointsToFile(pointDatabaseName, keyIndex, points);
+	}
+	
+	
+	
+	/** Saves the points of a given key's fine shape context to the given point database, appending
+	 * the information to the end.
+	 */
+	public static void savePointsToFile(String databaseName, int keyIndex, Point[] points) {
+		try {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(rawDatabasePath+databaseName, true));
+			writePoints(bw, keyIndex, points);
+			
+			bw.flush();
+			bw.close();
+			
+		} catch (IOException e) {
+			System.out.println("Unable to save key points to file.");
+		}
+	}
+	
+	
+	
+	/** Reads both levels of every key's multi-resolution shape context, the fine level from the
+	 * shape context database, the coarse level from the coarse database and the fine level's points
+	 * from the point database. A key missing from any database has null in its place.
+	 */
+	public static ArrayList<MultiResolutionShapeContext> getKeyMultiResolutionShapeContexts() {
+		return getKeyMultiResolutionShapeContexts(shapeContextDatabaseName, coarseShapeContextDatabaseName,
+				pointDatabaseName);
+	}
+	
+	
+	
+	/** Reads every key's multi-resolution shape context from the given databases, as
+	 * getKeyMultiResolutionShapeContexts() does.
+	 */
+	public static ArrayList<MultiResolutionShapeContext> getKeyMultiResolutionShapeContexts(String fineDatabaseName,
+			String coarseDatabaseName, String keyPointDatabaseName) {
+		return getKeyMultiResolutionShapeContexts(fineDatabaseName, coarseDatabaseName, keyPointDatabaseName, 0, 1);
+	}
+	
+	
+	
+	/** Reads the multi-resolution shape contexts of the keys of one shard of the default databases,
+	 * those whose key index modulo numShards is shard. The other keys have null levels, so that the
+	 * matcher skips them.
+	 */
+	public static ArrayList<MultiResolutionShapeContext> getKeyMultiResolutionShapeContexts(int shard, int numShards) {
+		return getKeyMultiResolutionShapeContexts(shapeContextDatabaseName, coarseShapeContextDatabaseName,
+				pointDatabaseName, shard, numShards);
+	}
+	
+	
+	
+	/** Reads the multi-resolution shape contexts of the keys of one shard of the given databases.
+	 */
+	public static ArrayList<MultiResolutionShapeContext> getKeyMultiResolutionShapeContexts(String fineDatabaseName,
+			String coarseDatabaseName, String keyPointDatabaseName, int shard, int numShards) {
+		ArrayList<int[][][]> coarse = getKeyShapeContexts(coarseDatabaseName, shard, numShards);
+		ArrayList<int[][][]> fine = getKeyShapeContexts(fineDatabaseName, shard, numShards);
+		ArrayList<Point[]> points = getKeyPoints(keyPointDatabaseName, shard, numShards);
+		
+		return combineLevels(coarse, fine, points);
+	}
+	
+	
+	
+	/** Reads every key's multi-resolution shape context from the given database files, wherever
+	 * they are, as getKeyMultiResolutionShapeContexts() reads the default ones. Unlike it, a file
+	 * that cannot be read is reported to the caller. The point database may be null.
+	 */
+	public static ArrayList<MultiResolutionShapeContext> readKeyMultiResolutionShapeContexts(File fineDatabase,
+			File coarseDatabase, File keyPointDatabase) throws IOException {
+		ArrayList<int[][][]> coarse = readShapeContextFile(coarseDatabase);
+		ArrayList<int[][][]> fine = readShapeContextFile(fineDatabase);
+		ArrayList<Point[]> points = new ArrayList<Point[]>();
+		if(keyPointDatabase != null){
+			BufferedReader br = new BufferedReader(new FileReader(keyPointDatabase));
+			try {
+				points = readKeyPoints(br, 0, 1);
+			} finally {
+				br.close();
+			}
+		}
+		
+		return combineLevels(coarse, fine, points);
+	}
+	
+	
+	
+	private static ArrayList<int[][][]> readShapeContextFile(File database) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(database));
+		try {
+			return readShapeContexts(br);
+		} finally {
+			br.close();
+		}
+	}
+	
+	
+	
+	/** Puts each key's levels and points together, null where a key is missing from a database.
+	 */
+	private static ArrayList<MultiResolutionShapeContext> combineLevels(ArrayList<int[][][]> coarse,
+			ArrayList<int[][][]> fine, ArrayList<Point[]> points){
+		ArrayList<MultiResolutionShapeContext> keyShapeContexts = new ArrayList<MultiResolutionShapeContext>();
+		for(int i=0; i<Math.max(coarse.size(), fine.size()); i++){
+			int[][][] coarseKey = (i < coarse.size()) ? coarse.get(i) : null;
+			int[][][] fineKey = (i < fine.size()) ? fine.get(i) : null;
+			Point[] keyPoints = (i < points.size()) ? points.get(i) : null;
+			keyShapeContexts.add(new MultiResolutionShapeContext(coarseKey, fineKey, keyPoints));
+		}
+		
+		return keyShapeContexts;
+	}
+	
+	
+	
+	/** Saves both levels of a key's multi-resolution shape context to their databases, and the
+	 * fine level's points, if known, to the point database.
+	 */
+	public static void saveMultiResolutionShapeContextToFile(int keyIndex, MultiResolutionShapeContext shapeContext) {
+		saveMultiResolutionShapeContextToFile(shapeContextDatabaseName, coarseShapeContextDatabaseName,
+				pointDatabaseName, keyIndex, shapeContext);
+	}
+	
+	
+	
+	/** Saves both levels of a key's multi-resolution shape context, and its fine points, to the
+	 * given databases, as saveMultiResolutionShapeContextToFile(keyIndex, shapeContext) does.
+	 */
+	public static void saveMultiResolutionShapeContextToFile(String fineDatabaseName, String coarseDatabaseName,
+			String keyPointDatabaseName, int keyIndex, MultiResolutionShapeContext shapeContext) {
+		saveShapeContextToFile(coarseDatabaseName, keyIndex, shapeContext.getCoarse());
+		saveShapeContextToFile(fineDatabaseName, keyIndex, shapeContext.getFine());
+		if(shapeContext.getFinePoints() != null){
+			savePointsToFile(keyPointDatabaseName, keyIndex, shapeContext.getFinePoints());
+		}
+	}
+	
+	
+	
+	/** Reads both profiles of every key, the left from the databases getKeyMultiResolutionShapeContexts()
+	 * reads, and the right from the right profile databases. A key missing from either profile's
+	 * databases has null for that profile.
+	 */
+	public static ArrayList<DualProfileShapeContext> getKeyDualProfileShapeContexts() {
+		ArrayList<MultiResolutionShapeContext> left = getKeyMultiResolutionShapeContexts();
+		ArrayList<MultiResolutionShapeContext> right = getKeyMultiResolutionShapeContexts(rightShapeContextDatabaseName,
+				rightCoarseShapeContextDatabaseName, rightPointDatabaseName);
+		
+		ArrayList<DualProfileShapeContext> keyShapeContexts = new ArrayList<DualProfileShapeContext>();
+		for(int i=0; i<Math.max(left.size(), right.size()); i++){
+			MultiResolutionShapeContext leftKey = (i < left.size()) ? left.get(i) : null;
+			MultiResolutionShapeContext rightKey = (i < right.size()) ? right.get(i) : null;
+			keyShapeContexts.add(new DualProfileShapeContext(leftKey, rightKey));
+		}
+		
+		return keyShapeContexts;
+	}
+	
+	
+	
+	/** Saves both profiles of a key to their databases.
+	 */
+	public static void saveDualProfileShapeContextToFile(int keyIndex, DualProfileShapeContext shapeContext) {
+		saveMultiResolutionShapeContextToFile(keyIndex, shapeContext.getLeft());
+		saveMultiResolutionShapeContextToFile(rightShapeContextDatabaseName, rightCoarseShapeContextDatabaseName,
+				rightPointDatabaseName, keyIndex, shapeContext.getRight());
+	}
+	
+	
+	
+	/** Reads the cluster index of the given key database back from file, recalculating each
+	 * member's global descriptor from the database. Returns null if the index cannot be read.
+	 */
+	public static KeyClusterIndex getKeyClusterIndex(ArrayList<int[][][]> keyDatabase) {
+		ArrayList<Integer> medoids = new ArrayList<Integer>();
+		ArrayList<ArrayList<Integer>> members = new ArrayList<ArrayList<Integer>>();
+		
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(rawDatabasePath+clusterIndexName));
+			String line = br.readLine();
+			
+			//line has form: "numClusters," .
+			if(line != null){
+				int numClusters = Integer.parseInt(line.split(",")[0]);
+				for(int i=0; i<numClusters; i++){
+					medoids.add(-1);
+					members.add(new ArrayList<Integer>());
+				}
+			}
+			
+			while((line = br.readLine()) != null){
+				//In order of: cluster, keyIndex, isMedoid.
+				String[] values = line.split(",");
+				int cluster = Integer.parseInt(values[0]);
+				int keyIndex = Integer.parseInt(values[1]);
+				
+				members.get(cluster).add(keyIndex);
+				if(Integer.parseInt(values[2]) == 1){
+					medoids.set(cluster, keyIndex);
+				}
+			}
+			
+			br.close();
+		} catch (IOException e) {
+			System.out.println("Unable to read key cluster index from file.");
+			return null;
+		}
+		
+		return new KeyClusterIndex(keyDatabase, medoids, members);
+	}
+	
+	
+	
+	/** Saves the cluster index to file, replacing any index saved before, as the index is rebuilt
+	 * rather than appended to.
+	 */
+	public static void saveClusterIndexToFile(KeyClusterIndex index) {
+		try {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(rawDatabasePath+clusterIndexName));
+			bw.write(""+index.getNumClusters()+",\n");
+			
+			for(int c=0; c<index.getNumClusters(); c++){
+				for(int keyIndex : index.getMembers(c)){
+					//In order of: cluster, keyIndex, isMedoid.
+					int isMedoid = (keyIndex == index.getMedoid(c)) ? 1 : 0;
+					bw.write(""+c+","+keyIndex+","+isMedoid+"\n");
+				}
+			}
+			
+			bw.flush();
+			bw.close();
+			
+		} catch (IOException e) {
+			System.out.println("Unable to save key cluster index to file.");
+		}
+	}
 	
 	
 	
@@ -0,0 +1,31 @@
+package data;
+
+/** Receives the intermediate images produced while a key photo is being processed, so that
+ * they can be inspected while debugging. The pipeline asks the sink once per run whether the
+ * run should be captured at all, so that a sink which declines does not cost any copying or
+ * encoding.
+ */
+public interface DiagnosticsSink {
+
+
+	/** Returned by beginCapture() when the current run should not be captured.
+	 */
+	public static final long NO_CAPTURE = -1;
+
+
+
+	/** Called once at the start of each run. Returns an id identifying the capture, or
+	 * NO_CAPTURE if nothing from this run should be saved.
+	 */
+	public long beginCapture();
+
+
+
+	/** Saves a single intermediate image of the capture with the given id. The pixels are
+	 * laid out row by row as in a Raster, and imageType is one of the BufferedImage types.
+	 * The caller may keep modifying the pixel array after this returns.
+	 */
+	public void saveImage(long captureId, String name, int width, int height, int imageType, int[] pixels);
+
+
+}
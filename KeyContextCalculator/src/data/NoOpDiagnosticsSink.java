@@ -0,0 +1,28 @@
+package data;
+
+/** Default diagnostics sink. Never captures anything, so processing does no debug I/O.
+ */
+public class NoOpDiagnosticsSink implements DiagnosticsSink {
+
+
+	public static final NoOpDiagnosticsSink INSTANCE = new NoOpDiagnosticsSink();
+
+
+
+	private NoOpDiagnosticsSink(){
+	}
+
+
+
+	public long beginCapture(){
+		return NO_CAPTURE;
+	}
+
+
+
+	public void saveImage(long captureId, String name, int width, int height, int imageType, int[] pixels){
+		//Nothing is ever captured, so there is nothing to save.
+	}
+
+
+}
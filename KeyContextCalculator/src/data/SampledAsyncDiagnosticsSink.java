@@ -0,0 +1,148 @@
+package data;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Diagnostics sink which captures one run out of every sampleRate runs, and writes the
+ * captured images to JPEG files on a background thread. The images waiting to be written
+ * are held in a bounded queue. When the queue is full further images are dropped rather
+ * than making the processing thread wait on the disk.
+ *
+ * Files are named "captureId-name.jpg" inside the output directory.
+ */
+public class SampledAsyncDiagnosticsSink implements DiagnosticsSink {
+
+
+	private final File outputDirectory;
+	private final int sampleRate;
+	private final BlockingQueue<PendingImage> queue;
+	private final AtomicLong runCounter = new AtomicLong();
+	private final AtomicLong droppedImages = new AtomicLong();
+	private final Thread writerThread;
+	private volatile boolean shutdown = false;
+
+
+
+	/** @param outputDirectory directory the captured images are written to.
+	 * @param sampleRate one in every sampleRate runs is captured. 1 captures every run.
+	 * @param queueCapacity maximum number of images waiting to be written.
+	 */
+	public SampledAsyncDiagnosticsSink(File outputDirectory, int sampleRate, int queueCapacity){
+		if(sampleRate < 1){
+			throw new IllegalArgumentException("sampleRate must be at least 1");
+		}
+
+		this.outputDirectory = outputDirectory;
+		this.sampleRate = sampleRate;
+		this.queue = new ArrayBlockingQueue<PendingImage>(queueCapacity);
+
+		//Daemon thread, so that an application which forgets to call shutdown() can still exit.
+		writerThread = new Thread(new Runnable(){
+			public void run(){
+				writeImages();
+			}
+		}, "diagnostics-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+
+
+	public long beginCapture(){
+		long run = runCounter.getAndIncrement();
+
+		if(shutdown || run % sampleRate != 0){
+			return NO_CAPTURE;
+		}
+
+		return run;
+	}
+
+
+
+	public void saveImage(long captureId, String name, int width, int height, int imageType, int[] pixels){
+		if(captureId == NO_CAPTURE || shutdown){
+			return;
+		}
+
+		//The pixels are copied, as the processing thread may still be drawing into its buffer.
+		PendingImage image = new PendingImage(new File(outputDirectory, captureId+"-"+name+".jpg"),
+				width, height, imageType, pixels.clone());
+
+		if(!queue.offer(image)){
+			droppedImages.incrementAndGet();
+		}
+	}
+
+
+
+	/** Returns the number of images dropped because the queue was full.
+	 */
+	public long getDroppedImages(){
+		return droppedImages.get();
+	}
+
+
+
+	/** Stops capturing new runs, writes out the images still in the queue, and waits for the
+	 * writer thread to finish.
+	 */
+	public void shutdown() throws InterruptedException {
+		shutdown = true;
+		writerThread.interrupt();
+		writerThread.join();
+	}
+
+
+
+	/** Body of the writer thread. Keeps writing images until shut down, and then drains
+	 * whatever is left in the queue.
+	 */
+	private void writeImages(){
+		while(!shutdown){
+			try {
+				write(queue.take());
+			} catch (InterruptedException e) {
+				//Interrupted by shutdown(); the loop condition decides whether to stop.
+			}
+		}
+
+		//Clears the interrupt left by shutdown() before doing the remaining I/O.
+		Thread.interrupted();
+
+		PendingImage image;
+		while((image = queue.poll()) != null){
+			write(image);
+		}
+	}
+
+
+
+	private static void write(PendingImage image){
+		DataManager.saveImageToFile(image.file, image.width, image.height, image.imageType, image.pixels);
+	}
+
+
+
+	/** An image waiting in the queue to be written.
+	 */
+	private static class PendingImage {
+		private final File file;
+		private final int width;
+		private final int height;
+		private final int imageType;
+		private final int[] pixels;
+
+		private PendingImage(File file, int width, int height, int imageType, int[] pixels){
+			this.file = file;
+			this.width = width;
+			this.height = height;
+			this.imageType = imageType;
+			this.pixels = pixels;
+		}
+	}
+
+
+}
@@ -0,0 +1,509 @@
+package data;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import contextCalculator.ImageProcessor;
+import contextCalculator.MultiResolutionShapeContext;
+import contextCalculator.ShapeContextCalculator;
+
+/** Generates synthetic keys for testing at scale: key silhouettes with a bow, shoulders, a blade
+ * and cuts, rendered as photos like the checked in one (upright, teeth on the left, on a light
+ * background), and shape context databases of any number of them.
+ *
+ * Every key is decided by the seed and its key index alone, so any key, or any shard of a database,
+ * can be generated again without the others. The bow, shoulders and blade vary the most, as the
+ * matcher compares the key without its teeth; the cuts are there so that the photos look like keys.
+ * renderPhoto gives other photos of the same key, slightly turned, moved and lit differently and
+ * with sensor noise, to query the database with.
+ */
+public class SyntheticKeyGenerator {
+
+
+	public static final long DEFAULT_SEED = 42;
+	public static final int IMAGE_SIZE = 500;
+	public static final String DATABASE_PREFIX = "synthetic";
+
+	//Number of keys generated together before they are written, when saving a database.
+	private static final int SAVE_CHUNK_SIZE = 64;
+
+	private static final int NUM_BOW_STYLES = 5;
+	private static final int MAX_CUT_DEPTH = 9;
+
+	private final long seed;
+
+
+
+	public SyntheticKeyGenerator(long seed){
+		this.seed = seed;
+	}
+
+
+
+	/** Name of the synthetic database in place of a default one, such as
+	 * syntheticKeyShapeContextDatabase.csv for keyShapeContextDatabase.csv.
+	 */
+	public static String databaseName(String defaultName){
+		return DATABASE_PREFIX+Character.toUpperCase(defaultName.charAt(0))+defaultName.substring(1);
+	}
+
+
+
+	/** The silhouette of the key, upright with the bow at the top and the teeth on the left of the
+	 * blade, in the coordinates of an IMAGE_SIZE square image.
+	 */
+	public Shape createKeyShape(int keyIndex){
+		Random random = newRandom(keyIndex, 0);
+
+		//1. Lay out the blade, which needs a long straight right side for the blade to be found.
+		double centerX = IMAGE_SIZE/2 + uniform(random, -15, 15);
+		double bladeWidth = uniform(random, 46, 64);
+		double bladeLeft = centerX - bladeWidth/2;
+		double bladeRight = centerX + bladeWidth/2;
+		double tipY = uniform(random, 465, 480);
+		double bladeTop = tipY - uniform(random, 225, 250);
+		double neckHeight = uniform(random, 8, 28);
+		double bowBottom = bladeTop - neckHeight;
+		double bowTop = uniform(random, 15, 40);
+
+		Path2D.Double blade = new Path2D.Double();
+		double tipLength = uniform(random, 14, 30);
+		blade.moveTo(bladeLeft, bladeTop - 1);
+		blade.lineTo(bladeRight, bladeTop - 1);
+		blade.lineTo(bladeRight, tipY - uniform(random, 0, 6));
+		blade.lineTo(bladeRight - uniform(random, 4, 14), tipY);
+		blade.lineTo(bladeLeft, tipY - tipLength);
+		blade.closePath();
+		Area key = new Area(blade);
+
+		//2. The shoulders, a step or a chamfer out from the blade on both sides, which stop the key
+		//going further into the lock.
+		double leftShoulder = uniform(random, 4, 14);
+		double rightShoulder = uniform(random, 6, 18);
+		if(random.nextBoolean()){
+			key.add(new Area(new Rectangle2D.Double(bladeLeft - leftShoulder, bowBottom - 1,
+					bladeWidth + leftShoulder + rightShoulder, neckHeight + 1)));
+		}else{
+			Path2D.Double neck = new Path2D.Double();
+			neck.moveTo(bladeLeft - leftShoulder, bowBottom - 1);
+			neck.lineTo(bladeRight + rightShoulder, bowBottom - 1);
+			neck.lineTo(bladeRight, bladeTop);
+			neck.lineTo(bladeLeft, bladeTop);
+			neck.closePath();
+			key.add(new Area(neck));
+		}
+
+		//3. The bow, in one of several styles, with a hole for a key ring.
+		double bowWidth = uniform(random, 150, 250);
+		double bowHeight = bowBottom - bowTop;
+		key.add(createBow(random.nextInt(NUM_BOW_STYLES), centerX, bowTop, bowWidth, bowHeight, random));
+
+		double holeY = bowTop + uniform(random, 18, 32);
+		double holeRadius = uniform(random, 9, 18);
+		if(random.nextBoolean()){
+			key.subtract(new Area(new Ellipse2D.Double(centerX - holeRadius, holeY, 2*holeRadius, 2*holeRadius)));
+		}else{
+			Path2D.Double hole = new Path2D.Double();
+			hole.moveTo(centerX - 1.6*holeRadius, holeY + 1.4*holeRadius);
+			hole.lineTo(centerX - 0.6*holeRadius, holeY);
+			hole.lineTo(centerX + 0.6*holeRadius, holeY);
+			hole.lineTo(centerX + 1.6*holeRadius, holeY + 1.4*holeRadius);
+			hole.closePath();
+			key.subtract(new Area(hole));
+		}
+
+		//4. The cuts, V shaped notches in the left of the blade at evenly spaced pins.
+		int numCuts = 5 + random.nextInt(2);
+		double cutSpacing = uniform(random, 24, 30);
+		double firstCut = bladeTop + uniform(random, 18, 28);
+		double depthStep = (bladeWidth*0.45)/MAX_CUT_DEPTH;
+		for(int i=0; i<numCuts; i++){
+			double cutY = firstCut + i*cutSpacing;
+			double depth = (1 + random.nextInt(MAX_CUT_DEPTH))*depthStep;
+			double flat = uniform(random, 1, 4);
+			Path2D.Double cut = new Path2D.Double();
+			cut.moveTo(bladeLeft - 1, cutY - flat - depth);
+			cut.lineTo(bladeLeft + depth, cutY - flat);
+			cut.lineTo(bladeLeft + depth, cutY + flat);
+			cut.lineTo(bladeLeft - 1, cutY + flat + depth);
+			cut.closePath();
+			key.subtract(new Area(cut));
+		}
+
+		return key;
+	}
+
+
+
+	/** A photo of the key as the database's photos are taken: upright and evenly lit.
+	 */
+	public BufferedImage renderKey(int keyIndex){
+		return render(createKeyShape(keyIndex), newRandom(keyIndex, 0), false);
+	}
+
+
+
+	/** Another photo of the key, turned by up to about a degree, moved by a few pixels, lit
+	 * differently and with sensor noise, as a query would be photographed. Each variant is a
+	 * different photo.
+	 */
+	public BufferedImage renderPhoto(int keyIndex, int variant){
+		return render(createKeyShape(keyIndex), newRandom(keyIndex, variant + 1), true);
+	}
+
+
+
+	/** Finds the shape contexts of a photo of a key, as KeyContextCalculatorMain does.
+	 */
+	public static MultiResolutionShapeContext calculateShapeContext(BufferedImage photo){
+		ArrayList<Point> edges = ImageProcessor.getKeyEdges(photo);
+
+		return ShapeContextCalculator.calcMultiResolutionShapeContext(edges);
+	}
+
+
+
+	/** The shape contexts of the first numKeys keys, from their renderKey photos, calculated on the
+	 * pool.
+	 */
+	public ArrayList<MultiResolutionShapeContext> generateDatabase(int numKeys, ForkJoinPool pool){
+		return generateDatabase(numKeys, 0, 1, pool);
+	}
+
+
+
+	/** The shape contexts of the keys of one shard of the first numKeys keys, those whose key index
+	 * modulo numShards is shard. The other keys have null levels, as DataManager reads a shard.
+	 */
+	public ArrayList<MultiResolutionShapeContext> generateDatabase(int numKeys, int shard, int numShards,
+			ForkJoinPool pool){
+		ArrayList<MultiResolutionShapeContext> keys = new ArrayList<MultiResolutionShapeContext>();
+		ArrayList<Future<MultiResolutionShapeContext>> pending = submitKeys(0, numKeys, shard, numShards, pool);
+		for(Future<MultiResolutionShapeContext> key : pending){
+			keys.add(await(key));
+		}
+
+		return keys;
+	}
+
+
+
+	/** Saves the keys to the synthetic databases (named by databaseName) in DataManager's database
+	 * directory, replacing any there, so that DataManager reads them as it reads the default ones.
+	 */
+	public static void saveDatabase(ArrayList<MultiResolutionShapeContext> keys){
+		try {
+			DatabaseWriter writer = new DatabaseWriter(keys.size());
+			for(int i=0; i<keys.size(); i++){
+				writer.write(i, keys.get(i));
+			}
+			writer.close();
+		} catch (IOException e) {
+			System.out.println("Unable to save synthetic database to file.");
+		}
+	}
+
+
+
+	/** Generates the keys of one shard of the first numKeys keys and saves them to the synthetic
+	 * databases, as saveDatabase does, a few at a time, so that a database larger than the heap can
+	 * be generated. Each shard's databases can be generated on a different machine, for a ShardWorker
+	 * there to read.
+	 */
+	public void generateAndSaveDatabase(int numKeys, int shard, int numShards, ForkJoinPool pool){
+		try {
+			DatabaseWriter writer = new DatabaseWriter(numKeys);
+			for(int first=0; first<numKeys; first+=SAVE_CHUNK_SIZE){
+				int last = Math.min(numKeys, first + SAVE_CHUNK_SIZE);
+				ArrayList<Future<MultiResolutionShapeContext>> pending = submitKeys(first, last, shard, numShards, pool);
+				for(int i=first; i<last; i++){
+					writer.write(i, await(pending.get(i - first)));
+				}
+			}
+			writer.close();
+		} catch (IOException e) {
+			System.out.println("Unable to save synthetic database to file.");
+		}
+	}
+
+
+
+	/** Saves the renderKey photos of the first numKeys keys to DataManager's image directory, as
+	 * syntheticKey0.png and so on, and a query photo of each as syntheticKey0Photo.png.
+	 */
+	public void savePhotos(int numKeys){
+		for(int i=0; i<numKeys; i++){
+			try {
+				ImageIO.write(renderKey(i), "png", new File(DataManager.rawKeyPath+DATABASE_PREFIX+"Key"+i+".png"));
+				ImageIO.write(renderPhoto(i, 0), "png", new File(DataManager.rawKeyPath+DATABASE_PREFIX+"Key"+i+"Photo.png"));
+			} catch (IOException e) {
+				System.out.println("Unable to save synthetic key photo to file.");
+			}
+		}
+	}
+
+
+
+	/** Generates numKeys synthetic keys into the synthetic databases, and saves the photos of the
+	 * first few.
+	 *
+	 * Arguments: numKeys [numPhotos [shard numShards [seed]]]
+	 */
+	public static void main(String[] args){
+		int numKeys = Integer.parseInt(args[0]);
+		int numPhotos = (args.length > 1) ? Integer.parseInt(args[1]) : 0;
+		int shard = (args.length > 3) ? Integer.parseInt(args[2]) : 0;
+		int numShards = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+		long seed = (args.length > 4) ? Long.parseLong(args[4]) : DEFAULT_SEED;
+
+		SyntheticKeyGenerator generator = new SyntheticKeyGenerator(seed);
+		ForkJoinPool pool = new ForkJoinPool();
+		long start = System.nanoTime();
+		generator.generateAndSaveDatabase(numKeys, shard, numShards, pool);
+		pool.shutdown();
+		generator.savePhotos(Math.min(numKeys, numPhotos));
+
+		System.out.println("Generated "+numKeys+" synthetic keys (shard "+shard+" of "+numShards+") in "
+				+(System.nanoTime() - start)/1000000+" ms.");
+	}
+
+
+
+	/** Writes keys to the three synthetic databases, each key's levels and points together.
+	 */
+	private static class DatabaseWriter {
+		private final int numKeys;
+		private BufferedWriter fine;
+		private BufferedWriter coarse;
+		private BufferedWriter points;
+		private boolean hasHeaders = false;
+
+		DatabaseWriter(int numKeys) throws IOException {
+			this.numKeys = numKeys;
+			fine = open(DataManager.shapeContextDatabaseName);
+			coarse = open(DataManager.coarseShapeContextDatabaseName);
+			points = open(DataManager.pointDatabaseName);
+		}
+
+		void write(int keyIndex, MultiResolutionShapeContext key) throws IOException {
+			if(key.getFine() == null){
+				return;
+			}
+			//The headers take their dimensions from the first key written.
+			if(!hasHeaders){
+				DataManager.writeShapeContextHeader(fine, numKeys, key.getFine().length, key.getFine()[0].length,
+						key.getFine()[0][0].length);
+				DataManager.writeShapeContextHeader(coarse, numKeys, key.getCoarse().length,
+						key.getCoarse()[0].length, key.getCoarse()[0][0].length);
+				DataManager.writePointHeader(points, numKeys, key.getFinePoints().length);
+				hasHeaders = true;
+			}
+			DataManager.writeShapeContext(fine, keyIndex, key.getFine());
+			DataManager.writeShapeContext(coarse, keyIndex, key.getCoarse());
+			DataManager.writePoints(points, keyIndex, key.getFinePoints());
+		}
+
+		void close() throws IOException {
+			fine.close();
+			coarse.close();
+			points.close();
+		}
+
+		private static BufferedWriter open(String defaultName) throws IOException {
+			return new BufferedWriter(new FileWriter(DataManager.rawDatabasePath+databaseName(defaultName)));
+		}
+	}
+
+
+
+	private ArrayList<Future<MultiResolutionShapeContext>> submitKeys(int first, int last, int shard, int numShards,
+			ForkJoinPool pool){
+		ArrayList<Future<MultiResolutionShapeContext>> pending = new ArrayList<Future<MultiResolutionShapeContext>>();
+		for(int i=first; i<last; i++){
+			final int keyIndex = i;
+			if(keyIndex % numShards != shard){
+				pending.add(pool.submit(new Callable<MultiResolutionShapeContext>(){
+					public MultiResolutionShapeContext call(){
+						return new MultiResolutionShapeContext(null, null);
+					}
+				}));
+				continue;
+			}
+			pending.add(pool.submit(new Callable<MultiResolutionShapeContext>(){
+				public MultiResolutionShapeContext call(){
+					return calculateShapeContext(renderKey(keyIndex));
+				}
+			}));
+		}
+
+		return pending;
+	}
+
+
+
+	private static MultiResolutionShapeContext await(Future<MultiResolutionShapeContext> key){
+		try {
+			return key.get();
+		} catch (Exception e) {
+			throw new IllegalStateException("unable to generate synthetic key", e);
+		}
+	}
+
+
+
+	/** Draws the key, metallic grey on a light background. A photo is also turned, moved and lit
+	 * differently, and has sensor noise.
+	 */
+	private static BufferedImage render(Shape key, Random random, boolean isPhoto){
+		BufferedImage image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+		int light = isPhoto ? (int)uniform(random, -12, 6) : 0;
+		g.setColor(gray(248 + light));
+		g.fillRect(0, 0, IMAGE_SIZE, IMAGE_SIZE);
+
+		if(isPhoto){
+			AffineTransform transform = new AffineTransform();
+			transform.translate(uniform(random, -8, 8), uniform(random, -6, 6));
+			transform.rotate(uniform(random, -0.02, 0.02), IMAGE_SIZE/2, IMAGE_SIZE/2);
+			key = transform.createTransformedShape(key);
+		}
+		g.setPaint(new GradientPaint(0, 0, gray(195 + light), IMAGE_SIZE, IMAGE_SIZE, gray(160 + light)));
+		g.fill(key);
+		g.dispose();
+
+		if(isPhoto){
+			WritableRaster raster = image.getRaster();
+			int[] pixel = new int[3];
+			double noise = uniform(random, 2, 6);
+			for(int y=0; y<IMAGE_SIZE; y++){
+				for(int x=0; x<IMAGE_SIZE; x++){
+					raster.getPixel(x, y, pixel);
+					int offset = (int)Math.round(random.nextGaussian()*noise);
+					for(int c=0; c<pixel.length; c++){
+						pixel[c] = Math.max(0, Math.min(255, pixel[c] + offset));
+					}
+					raster.setPixel(x, y, pixel);
+				}
+			}
+		}
+
+		return image;
+	}
+
+
+
+	private static Area createBow(int style, double centerX, double top, double width, double height, Random random){
+		double left = centerX - width/2;
+		switch(style){
+		case 0:
+			//Round.
+			return new Area(new Ellipse2D.Double(left, top, width, height));
+		case 1:
+			//Rounded rectangle.
+			double arc = uniform(random, 20, 80);
+			return new Area(new RoundRectangle2D.Double(left, top, width, height, arc, arc));
+		case 2:
+			//Octagon.
+			double chamfer = uniform(random, 0.15, 0.3)*Math.min(width, height);
+			Path2D.Double octagon = new Path2D.Double();
+			octagon.moveTo(left + chamfer, top);
+			octagon.lineTo(left + width - chamfer, top);
+			octagon.lineTo(left + width, top + chamfer);
+			octagon.lineTo(left + width, top + height - chamfer);
+			octagon.lineTo(left + width - chamfer, top + height);
+			octagon.lineTo(left + chamfer, top + height);
+			octagon.lineTo(left, top + height - chamfer);
+			octagon.lineTo(left, top + chamfer);
+			octagon.closePath();
+			return new Area(octagon);
+		case 3:
+			//Narrow head over a wide body with stepped sides, as the checked in key's bow.
+			double headWidth = uniform(random, 0.35, 0.55)*width;
+			double headHeight = uniform(random, 0.2, 0.3)*height;
+			int numSteps = 2 + random.nextInt(3);
+			double stepHeight = (height - headHeight)/(2*numSteps + 1);
+			double stepWidth = uniform(random, 3, 8);
+			Path2D.Double stepped = new Path2D.Double();
+			stepped.moveTo(centerX - headWidth/2, top);
+			stepped.lineTo(centerX + headWidth/2, top);
+			double y = top + headHeight;
+			stepped.lineTo(left + width, y);
+			for(int i=0; i<2*numSteps + 1; i++){
+				double x = left + width - ((i % 2 == 0) ? 0 : stepWidth) - Math.max(0, i - numSteps)*2*stepWidth;
+				stepped.lineTo(x, y);
+				y += stepHeight;
+				stepped.lineTo(x, y);
+			}
+			y = top + height;
+			for(int i=2*numSteps; i>=0; i--){
+				double x = left + ((i % 2 == 0) ? 0 : stepWidth) + Math.max(0, i - numSteps)*2*stepWidth;
+				stepped.lineTo(x, y);
+				y -= stepHeight;
+				stepped.lineTo(x, y);
+			}
+			stepped.lineTo(left, top + headHeight);
+			stepped.closePath();
+			return new Area(stepped);
+		default:
+			//Pear shaped: a round top over a body narrowing to the shoulders.
+			Area pear = new Area(new Ellipse2D.Double(left, top, width, height*0.75));
+			Path2D.Double body = new Path2D.Double();
+			body.moveTo(left + width*0.05, top + height*0.4);
+			body.lineTo(left + width*0.95, top + height*0.4);
+			body.lineTo(left + width*0.7, top + height);
+			body.lineTo(left + width*0.3, top + height);
+			body.closePath();
+			pear.add(new Area(body));
+			return pear;
+		}
+	}
+
+
+
+	/** A random number generator for the key and photo alone, so that each is the same however
+	 * many others are generated, and in whatever order.
+	 */
+	private Random newRandom(int keyIndex, int photo){
+		return new Random(seed*0x9E3779B97F4A7C15L + keyIndex*0xC2B2AE3D27D4EB4FL + photo);
+	}
+
+
+
+	private static double uniform(Random random, double min, double max){
+		return min + random.nextDouble()*(max - min);
+	}
+
+
+
+	private static Color gray(int value){
+		value = Math.max(0, Math.min(255, value));
+		return new Color(value, value, value);
+	}
+
+
+}
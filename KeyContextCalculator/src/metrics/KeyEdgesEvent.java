@@ -0,0 +1,96 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/** JFR event of one ImageProcessor.getKeyEdges, with the image's size, the number of edge points
+ * after each step that selects them, and the time of every step. The steps are timed by the
+ * pipeline metrics' clock, so their times are 0 when those metrics are disabled.
+ */
+@Name("keycontextcalculator.KeyEdges")
+@Label("Key Edges")
+@Description("Finding the edges of a key in a photo")
+@Category({"Key Context Calculator", "Image"})
+@StackTrace(false)
+public class KeyEdgesEvent extends Event {
+
+
+	@Label("Request Id")
+	public long requestId;
+
+	@Label("Image Width")
+	public int imageWidth;
+
+	@Label("Image Height")
+	public int imageHeight;
+
+	@Label("Edge Count")
+	@Description("Edge points of the cleaned binary image")
+	public int edgeCount;
+
+	@Label("Right Edge Count")
+	public int rightEdgeCount;
+
+	@Label("Kept Edge Count")
+	@Description("Edge points left after removing those in the lower left quadrant")
+	public int keptEdgeCount;
+
+	@Label("Grayscale") @Timespan(Timespan.NANOSECONDS)
+	public long grayscaleTime;
+
+	@Label("Threshold") @Timespan(Timespan.NANOSECONDS)
+	public long thresholdTime;
+
+	@Label("Clean") @Timespan(Timespan.NANOSECONDS)
+	public long cleanTime;
+
+	@Label("Find Edges") @Timespan(Timespan.NANOSECONDS)
+	public long findEdgesTime;
+
+	@Label("Right Edge") @Timespan(Timespan.NANOSECONDS)
+	public long rightEdgeTime;
+
+	@Label("Angle Offset") @Timespan(Timespan.NANOSECONDS)
+	public long angleOffsetTime;
+
+	@Label("Blade Beginning") @Timespan(Timespan.NANOSECONDS)
+	public long bladeBeginningTime;
+
+	@Label("Key Center") @Timespan(Timespan.NANOSECONDS)
+	public long keyCenterTime;
+
+	@Label("Clean Edges") @Timespan(Timespan.NANOSECONDS)
+	public long cleanEdgesTime;
+
+
+
+	/** Begins the event for an image of the given size.
+	 */
+	public static KeyEdgesEvent start(int imageWidth, int imageHeight){
+		KeyEdgesEvent event = new KeyEdgesEvent();
+		event.imageWidth = imageWidth;
+		event.imageHeight = imageHeight;
+		event.begin();
+
+		return event;
+	}
+
+
+
+	/** Ends the event, and commits it if it is enabled and above its threshold.
+	 */
+	public void finish(){
+		end();
+		if(shouldCommit()){
+			requestId = RequestContext.getCurrent();
+			commit();
+		}
+	}
+
+
+}
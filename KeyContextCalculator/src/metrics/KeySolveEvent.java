@@ -0,0 +1,76 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/** JFR event of one comparison of the original with a database key, from the cost matrix through
+ * the Hungarian Method. There is one for every key scanned, so by default only those slower than
+ * the threshold are recorded.
+ */
+@Name("keycontextcalculator.KeySolve")
+@Label("Key Solve")
+@Description("Matching the original against one database key")
+@Category({"Key Context Calculator", "Matching"})
+@StackTrace(false)
+@Threshold("20 ms")
+public class KeySolveEvent extends Event {
+
+
+	@Label("Request Id")
+	public long requestId;
+
+	@Label("Key Id")
+	@Description("Index of the key in the database")
+	public int keyId;
+
+	@Label("Original Point Count")
+	public int originalPointCount;
+
+	@Label("Key Point Count")
+	public int keyPointCount;
+
+	@Label("Threshold Cost")
+	@Description("Cost above which the key was rejected early, infinite if none")
+	public double thresholdCost;
+
+	@Label("Cost")
+	@Description("Cost of the best assignment, infinite if the key was rejected early")
+	public double cost;
+
+	@Label("Pruned")
+	public boolean pruned;
+
+
+
+	public static KeySolveEvent start(int keyId, int originalPointCount, int keyPointCount, double thresholdCost){
+		KeySolveEvent event = new KeySolveEvent();
+		event.keyId = keyId;
+		event.originalPointCount = originalPointCount;
+		event.keyPointCount = keyPointCount;
+		event.thresholdCost = thresholdCost;
+		event.begin();
+
+		return event;
+	}
+
+
+
+	/** Ends the event, and commits it if it is enabled and above its threshold.
+	 */
+	public void finish(double cost){
+		end();
+		if(shouldCommit()){
+			this.cost = cost;
+			this.pruned = cost == Double.POSITIVE_INFINITY;
+			requestId = RequestContext.getCurrent();
+			commit();
+		}
+	}
+
+
+}
@@ -0,0 +1,136 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Histogram of latencies in nanoseconds, laid out as an HdrHistogram is: values below
+ * SUB_BUCKET_COUNT have a bucket each, and every power of two above is split into SUB_BUCKET_COUNT/2
+ * equal buckets. So a recorded value is known to within 1/32 of itself (about 3%), from nanoseconds
+ * up to Long.MAX_VALUE, in a fixed array of counts.
+ *
+ * Recording takes no lock: it increments one bucket's count, the total count and the sum, and raises
+ * the maximum if needed. Every recording thread updates the same total count, sum and maximum, so
+ * they contend on those, though only for an atomic add each. A percentile read while values are
+ * recorded may be off by those values.
+ */
+public class LatencyHistogram {
+
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+	//The highest bit of a long value is at most 62, so the shift is at most 63-SUB_BUCKET_BITS.
+	private static final int NUM_BUCKETS = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * HALF_SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+
+
+	/** Records a latency. Negative values, as from a clock going backwards, are recorded as 0.
+	 */
+	public void record(long nanos){
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(findBucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long currentMax;
+		while(value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)){
+			//Retry until the maximum is at least this value.
+		}
+	}
+
+
+
+	public long getCount(){
+		return count.get();
+	}
+
+
+
+	public double getMean(){
+		long n = count.get();
+		return (n == 0) ? 0 : (double)sum.get() / n;
+	}
+
+
+
+	public long getMax(){
+		return max.get();
+	}
+
+
+
+	/** The latency below or at which the given percentage of the recorded latencies are, as the
+	 * highest value of the bucket that percentile falls in, or 0 if none are recorded.
+	 *
+	 * @param percentile from 0 to 100.
+	 */
+	public long getValueAtPercentile(double percentile){
+		long n = count.get();
+		if(n == 0){
+			return 0;
+		}
+
+		long rank = Math.max(1, (long)Math.ceil(Math.min(100, percentile) / 100 * n));
+		long seen = 0;
+		for(int i=0; i<NUM_BUCKETS; i++){
+			seen += counts.get(i);
+			if(seen >= rank){
+				return Math.min(findHighestValue(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+
+
+	/** Clears every recorded latency.
+	 */
+	public void reset(){
+		for(int i=0; i<NUM_BUCKETS; i++){
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+
+
+	/** Values below SUB_BUCKET_COUNT are their own bucket. Above, the bucket is found from the value's
+	 * highest set bit and the SUB_BUCKET_BITS-1 bits below it.
+	 */
+	static int findBucket(long value){
+		if(value < SUB_BUCKET_COUNT){
+			return (int)value;
+		}
+
+		int highestBit = 63 - Long.numberOfLeadingZeros(value);
+		int shift = highestBit - (SUB_BUCKET_BITS - 1);
+		int subBucket = (int)(value >>> shift) - HALF_SUB_BUCKET_COUNT;
+
+		return SUB_BUCKET_COUNT + (shift - 1) * HALF_SUB_BUCKET_COUNT + subBucket;
+	}
+
+
+
+	/** The highest value which falls in the bucket.
+	 */
+	static long findHighestValue(int bucket){
+		if(bucket < SUB_BUCKET_COUNT){
+			return bucket;
+		}
+
+		int shift = (bucket - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+		long subBucket = (bucket - SUB_BUCKET_COUNT) % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT;
+
+		return (subBucket << shift) + (1L << shift) - 1;
+	}
+
+
+}
@@ -0,0 +1,64 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** JFR event of one phase of KeyMatcher's matching: screen, fine, refine or select, as the
+ * PipelineStages of the same names.
+ */
+@Name("keycontextcalculator.MatchPhase")
+@Label("Match Phase")
+@Description("One phase of matching a key against the database")
+@Category({"Key Context Calculator", "Matching"})
+@StackTrace(false)
+public class MatchPhaseEvent extends Event {
+
+
+	@Label("Request Id")
+	public long requestId;
+
+	@Label("Phase")
+	public String phase;
+
+	@Label("Database Size")
+	public int databaseSize;
+
+	@Label("Key Count")
+	@Description("Keys the phase considered")
+	public int keyCount;
+
+	@Label("Result Count")
+	@Description("Keys the phase kept, such as the candidates of the screen")
+	public int resultCount;
+
+
+
+	public static MatchPhaseEvent start(PipelineStage phase, int databaseSize){
+		MatchPhaseEvent event = new MatchPhaseEvent();
+		event.phase = phase.getDisplayName();
+		event.databaseSize = databaseSize;
+		event.begin();
+
+		return event;
+	}
+
+
+
+	/** Ends the event, and commits it if it is enabled and above its threshold.
+	 */
+	public void finish(int keyCount, int resultCount){
+		end();
+		if(shouldCommit()){
+			this.keyCount = keyCount;
+			this.resultCount = resultCount;
+			requestId = RequestContext.getCurrent();
+			commit();
+		}
+	}
+
+
+}
@@ -0,0 +1,39 @@
+package metrics;
+
+/** MatchingCountersMBean of the PipelineCounters.
+ */
+public class MatchingCounters implements MatchingCountersMBean {
+
+
+	public long getKeysScanned(){
+		return PipelineCounter.KEYS_SCANNED.get();
+	}
+
+
+
+	public long getKeysScreenedOut(){
+		return PipelineCounter.KEYS_SCREENED_OUT.get();
+	}
+
+
+
+	public long getKeysPruned(){
+		return PipelineCounter.KEYS_PRUNED.get();
+	}
+
+
+
+	public long getKeysSolved(){
+		return PipelineCounter.KEYS_SOLVED.get();
+	}
+
+
+
+	public void reset(){
+		for(PipelineCounter counter : PipelineCounter.values()){
+			counter.reset();
+		}
+	}
+
+
+}
@@ -0,0 +1,19 @@
+package metrics;
+
+/** JMX view of the PipelineCounters.
+ */
+public interface MatchingCountersMBean {
+
+
+	public long getKeysScanned();
+
+	public long getKeysScreenedOut();
+
+	public long getKeysPruned();
+
+	public long getKeysSolved();
+
+	public void reset();
+
+
+}
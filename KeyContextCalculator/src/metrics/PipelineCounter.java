@@ -0,0 +1,64 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counts of the keys KeyMatcher compares, and of how each comparison ends.
+ */
+public enum PipelineCounter {
+
+
+	/** Comparisons of the original with a key, at any level. */
+	KEYS_SCANNED("keysScanned"),
+	/** Keys screened at the coarse level which were not among the candidates kept. */
+	KEYS_SCREENED_OUT("keysScreenedOut"),
+	/** Comparisons stopped early, as the cost matrix or the Hungarian Method's lower bound already
+	 * showed the key could not be among the best. */
+	KEYS_PRUNED("keysPruned"),
+	/** Comparisons whose assignment the Hungarian Method solved fully. */
+	KEYS_SOLVED("keysSolved");
+
+	private final String displayName;
+	private final AtomicLong count = new AtomicLong();
+
+
+
+	private PipelineCounter(String displayName){
+		this.displayName = displayName;
+	}
+
+
+
+	public String getDisplayName(){
+		return displayName;
+	}
+
+
+
+	public long get(){
+		return count.get();
+	}
+
+
+
+	/** Adds the amount to the count, unless metrics are disabled.
+	 */
+	public void add(long amount){
+		if(PipelineMetrics.ENABLED){
+			count.addAndGet(amount);
+		}
+	}
+
+
+
+	public void increment(){
+		add(1);
+	}
+
+
+
+	void reset(){
+		count.set(0);
+	}
+
+
+}
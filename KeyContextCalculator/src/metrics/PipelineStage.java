@@ -0,0 +1,84 @@
+package metrics;
+
+/** The timed stages of finding, describing and matching a key, each with its own latency histogram.
+ */
+public enum PipelineStage {
+
+
+	/** ImageProcessor.getKeyEdges, from photo to the edges kept. */
+	KEY_EDGES("keyEdges"),
+	/** ImageProcessor.getKeyEdges step 1, conversion to grayscale. */
+	GRAYSCALE("grayscale"),
+	/** Step 2, Otsu's Method and thresholding. */
+	THRESHOLD("threshold"),
+	/** Step 3, removal of small blobs. */
+	CLEAN("clean"),
+	/** Step 4, edge extraction. */
+	FIND_EDGES("findEdges"),
+	/** Step 5, selection of the right edge. */
+	RIGHT_EDGE("rightEdge"),
+	/** Step 6, the key's slant. */
+	ANGLE_OFFSET("angleOffset"),
+	/** Step 7, the beginning of the blade. */
+	BLADE_BEGINNING("bladeBeginning"),
+	/** Step 8, the center of the key. */
+	KEY_CENTER("keyCenter"),
+	/** Step 9, removal of the edges in the lower left quadrant. */
+	CLEAN_EDGES("cleanEdges"),
+	/** ShapeContextCalculator.selectPoints, at either level. */
+	SELECT_POINTS("selectPoints"),
+	/** ShapeContextCalculator's log-polar histograms, at either level. */
+	LOG_POLAR_HISTOGRAMS("logPolarHistograms"),
+	/** KeyMatcher's coarse screening of the database for candidates. */
+	MATCH_SCREEN("matchScreen"),
+	/** KeyMatcher's matching of the candidates at the fine level. */
+	MATCH_FINE("matchFine"),
+	/** KeyMatcher's thin plate spline refinement of the best fine candidates. */
+	MATCH_REFINE("matchRefine"),
+	/** KeyMatcher's choice of the best key from the costs. */
+	MATCH_SELECT("matchSelect"),
+	/** The chi squared cost matrix of one comparison of two keys, at any level. */
+	COST_MATRIX("costMatrix"),
+	/** The Hungarian Method's assignment of one comparison of two keys, at any level. */
+	ASSIGNMENT("assignment");
+
+	private final String displayName;
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+
+
+	private PipelineStage(String displayName){
+		this.displayName = displayName;
+	}
+
+
+
+	public String getDisplayName(){
+		return displayName;
+	}
+
+
+
+	public LatencyHistogram getHistogram(){
+		return histogram;
+	}
+
+
+
+	/** Records the time since startNanos, a value of PipelineMetrics.now(), unless metrics are
+	 * disabled.
+	 *
+	 * @return the time recorded, in nanoseconds, or 0 if metrics are disabled.
+	 */
+	public long recordSince(long startNanos){
+		if(!PipelineMetrics.ENABLED){
+			return 0;
+		}
+
+		long nanos = System.nanoTime() - startNanos;
+		histogram.record(nanos);
+		return nanos;
+	}
+
+
+}
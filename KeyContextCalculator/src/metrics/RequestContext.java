@@ -0,0 +1,72 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** The id of the request the current thread is working on, so that the JFR events of the pipeline
+ * can be linked to the request they were recorded for. The servers set it for the duration of each
+ * request. Work done for several requests at once, such as a MatchBatcher's batch, has no request
+ * id, which is 0.
+ */
+public class RequestContext {
+
+
+	public static final long NO_REQUEST = 0;
+	/** HTTP header carrying the request id, so that a coordinator's id follows the request to its
+	 * shards.
+	 */
+	public static final String HEADER = "X-Request-Id";
+
+	private static final AtomicLong nextRequestId = new AtomicLong(1);
+	private static final ThreadLocal<Long> currentRequestId = new ThreadLocal<Long>();
+
+
+
+	/** A new request id, unique within this process.
+	 */
+	public static long newRequestId(){
+		return nextRequestId.getAndIncrement();
+	}
+
+
+
+	/** The request id given in a request's HEADER, or a new one if it has none or it is not a
+	 * positive number.
+	 */
+	public static long fromHeader(String header){
+		if(header != null){
+			try {
+				long requestId = Long.parseLong(header.trim());
+				if(requestId > 0){
+					return requestId;
+				}
+			} catch (NumberFormatException e) {
+				//Falls through to a new id.
+			}
+		}
+
+		return newRequestId();
+	}
+
+
+
+	public static void setCurrent(long requestId){
+		currentRequestId.set(requestId);
+	}
+
+
+
+	/** The current thread's request id, or NO_REQUEST.
+	 */
+	public static long getCurrent(){
+		Long requestId = currentRequestId.get();
+		return (requestId == null) ? NO_REQUEST : requestId;
+	}
+
+
+
+	public static void clear(){
+		currentRequestId.remove();
+	}
+
+
+}
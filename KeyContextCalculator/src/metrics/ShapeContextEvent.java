@@ -0,0 +1,62 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** JFR event of one shape context calculated by ShapeContextCalculator.
+ */
+@Name("keycontextcalculator.ShapeContext")
+@Label("Shape Context")
+@Description("Calculating the log-polar histograms of a key's points")
+@Category({"Key Context Calculator", "Descriptor"})
+@StackTrace(false)
+public class ShapeContextEvent extends Event {
+
+
+	@Label("Request Id")
+	public long requestId;
+
+	@Label("Edge Count")
+	@Description("Edge points the points were selected from, or -1 if the points were given")
+	public int edgeCount;
+
+	@Label("Point Count")
+	public int pointCount;
+
+	@Label("Radial Bins")
+	public int radialBins;
+
+	@Label("Log Bins")
+	public int logBins;
+
+
+
+	public static ShapeContextEvent start(int edgeCount, int pointCount, int radialBins, int logBins){
+		ShapeContextEvent event = new ShapeContextEvent();
+		event.edgeCount = edgeCount;
+		event.pointCount = pointCount;
+		event.radialBins = radialBins;
+		event.logBins = logBins;
+		event.begin();
+
+		return event;
+	}
+
+
+
+	/** Ends the event, and commits it if it is enabled and above its threshold.
+	 */
+	public void finish(){
+		end();
+		if(shouldCommit()){
+			requestId = RequestContext.getCurrent();
+			commit();
+		}
+	}
+
+
+}
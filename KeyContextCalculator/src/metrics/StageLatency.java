@@ -0,0 +1,65 @@
+package metrics;
+
+/** StageLatencyMBean of a PipelineStage.
+ */
+public class StageLatency implements StageLatencyMBean {
+
+
+	private final LatencyHistogram histogram;
+
+
+
+	public StageLatency(PipelineStage stage){
+		this.histogram = stage.getHistogram();
+	}
+
+
+
+	public long getCount(){
+		return histogram.getCount();
+	}
+
+
+
+	public double getMeanMicros(){
+		return histogram.getMean() / 1e3;
+	}
+
+
+
+	public double getP50Micros(){
+		return histogram.getValueAtPercentile(50) / 1e3;
+	}
+
+
+
+	public double getP90Micros(){
+		return histogram.getValueAtPercentile(90) / 1e3;
+	}
+
+
+
+	public double getP99Micros(){
+		return histogram.getValueAtPercentile(99) / 1e3;
+	}
+
+
+
+	public double getP999Micros(){
+		return histogram.getValueAtPercentile(99.9) / 1e3;
+	}
+
+
+
+	public double getMaxMicros(){
+		return histogram.getMax() / 1e3;
+	}
+
+
+
+	public void reset(){
+		histogram.reset();
+	}
+
+
+}
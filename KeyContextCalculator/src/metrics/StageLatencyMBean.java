@@ -0,0 +1,25 @@
+package metrics;
+
+/** JMX view of one stage's latency histogram. Latencies are in microseconds.
+ */
+public interface StageLatencyMBean {
+
+
+	public long getCount();
+
+	public double getMeanMicros();
+
+	public double getP50Micros();
+
+	public double getP90Micros();
+
+	public double getP99Micros();
+
+	public double getP999Micros();
+
+	public double getMaxMicros();
+
+	public void reset();
+
+
+}
@@ -0,0 +1,453 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import contextCalculator.AnytimeMatches;
+import contextCalculator.KeyDatabase;
+import contextCalculator.KeyMatch;
+import contextCalculator.KeyMatchingEngine;
+import contextCalculator.MatchBudget;
+import contextCalculator.MultiResolutionShapeContext;
+import data.DataManager;
+import metrics.PipelineMetrics;
+import metrics.RequestContext;
+
+/** Resident matching service, so that the key database is read once and the matching code is
+ * compiled by the JIT before the first lookup, rather than on every run of KeyContextCalculatorMain.
+ *
+ * POST /match with a photo of the key (any format ImageIO reads) finds its edges and shape contexts
+ * as KeyContextCalculatorMain does. POST /match with Content-Type text/csv takes a precomputed
+ * fine shape context instead, in the shape context database's format; it has no coarse level, so
+ * every key is matched at the fine level. POST /match with Content-Type SHAPE_CONTEXT_CONTENT_TYPE
+ * takes both levels, in MatchCache's binary format, as ShardCoordinator sends them. Either way the k
+ * (default DEFAULT_NUM_RESULTS) best keys are returned as text, one "key: i, cost: c" line each, best
+ * first. GET /health reports the number of keys and of matches in progress, and GET /metrics the
+ * latency of every stage of the pipeline and the matching counters, as PipelineMetrics.dump() gives
+ * them. The same metrics are registered as JMX MBeans when the server starts.
+ *
+ * At most maxConcurrentMatches matches run at once, as each is CPU bound. A match request beyond
+ * that is answered 503 at once rather than queued, so that clients can retry elsewhere. The request
+ * threads number one more than the limit, so that /health answers while every match runs.
+ *
+ * With a batch window, the matches in progress are matched together by a MatchBatcher, in batches
+ * of up to maxConcurrentMatches, on maxConcurrentMatches threads, and /health also reports how long
+ * queries waited for their batch. The window is 0 by default, which matches each request on its own
+ * request thread, so batching adds no latency unless it is enabled.
+ *
+ * With a MatchCache, an uploaded photo seen before reuses its shape contexts, and a query matched
+ * before against the same database reuses its matches. A request answered wholly from the cache does
+ * not take one of the match permits, and /health also reports the cache's hit rates.
+ *
+ * A match request with a budget parameter, in milliseconds, is matched anytime, as
+ * KeyMatchingEngine.findBestMatches(shapeContext, database, k, budget) does: the best keys matched
+ * within the budget are returned, counting the photo's processing, and the X-Keys-Matched header has
+ * the number of keys matched out of those which could be. Matches cut short are not cached, and
+ * anytime and screened matches are cached apart, so a budgeted request answered from the cache has
+ * matched every key.
+ *
+ * Each match request has a request id, taken from its RequestContext.HEADER if it has a numeric one
+ * or new otherwise, which is sent back in the same header and recorded in the request's JFR events.
+ */
+public class KeyMatchingServer {
+
+
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_MAX_CONCURRENT_MATCHES = 2;
+	public static final int DEFAULT_NUM_RESULTS = 5;
+	public static final int WARM_UP_MATCHES = 3;
+	public static final String SHAPE_CONTEXT_CONTENT_TYPE = "application/x-shape-context";
+	//The matching modes of MatchCache's results, as a coarse screen may rank keys differently from anytime matching.
+	private static final String SCREENED_MATCHES = "screened";
+	private static final String ANYTIME_MATCHES = "anytime";
+
+	private final KeyDatabase database;
+	private final KeyMatchingEngine engine = new KeyMatchingEngine();
+	private final int maxConcurrentMatches;
+	private final Semaphore matchPermits;
+	private final long batchWindowMillis;
+	private final MatchCache cache;
+	private final String databaseVersion;
+	private MatchBatcher batcher;
+	private HttpServer server;
+	private ExecutorService executor;
+
+
+
+	/** @param keyDatabase every key's shape contexts, as DataManager.getKeyMultiResolutionShapeContexts
+	 * reads them. The list is copied, but the keys' arrays are not, and must not be changed while the
+	 * server runs.
+	 * @param maxConcurrentMatches most matches run at once.
+	 */
+	public KeyMatchingServer(ArrayList<MultiResolutionShapeContext> keyDatabase, int maxConcurrentMatches){
+		this(keyDatabase, maxConcurrentMatches, 0, null);
+	}
+
+
+
+	/** As KeyMatchingServer(keyDatabase, maxConcurrentMatches), batching the matches when
+	 * batchWindowMillis is positive.
+	 *
+	 * @param batchWindowMillis longest a match waits for others to join its batch, or 0 to match
+	 * each request on its own.
+	 */
+	public KeyMatchingServer(ArrayList<MultiResolutionShapeContext> keyDatabase, int maxConcurrentMatches,
+			long batchWindowMillis){
+		this(keyDatabase, maxConcurrentMatches, batchWindowMillis, null);
+	}
+
+
+
+	/** As KeyMatchingServer(keyDatabase, maxConcurrentMatches, batchWindowMillis), caching shape
+	 * contexts and matches in the cache when it is not null. The cache's entries of other pipeline or
+	 * database versions are dropped.
+	 */
+	public KeyMatchingServer(ArrayList<MultiResolutionShapeContext> keyDatabase, int maxConcurrentMatches,
+			long batchWindowMillis, MatchCache cache){
+		if(maxConcurrentMatches < 1 || batchWindowMillis < 0){
+			throw new IllegalArgumentException("invalid server parameters");
+		}
+
+		this.database = new KeyDatabase("server", keyDatabase);
+		this.maxConcurrentMatches = maxConcurrentMatches;
+		this.matchPermits = new Semaphore(maxConcurrentMatches);
+		this.batchWindowMillis = batchWindowMillis;
+		this.cache = cache;
+		this.databaseVersion = (cache == null) ? null : MatchCache.hashDatabase(keyDatabase);
+		if(cache != null){
+			//Entries of other versions, left by an earlier server, would never be read again.
+			cache.retainDescriptors(MatchRequests.PIPELINE_VERSION);
+			cache.retainResults(databaseVersion);
+		}
+	}
+
+
+
+	/** Warms up the matching code and starts serving on the address. A port of 0 picks a free port,
+	 * which getAddress() then returns.
+	 */
+	public void start(InetSocketAddress address) throws IOException {
+		warmUp();
+		if(batchWindowMillis > 0){
+			batcher = new MatchBatcher(engine, database, batchWindowMillis, maxConcurrentMatches, maxConcurrentMatches);
+		}
+
+		server = HttpServer.create(address, 0);
+		executor = Executors.newFixedThreadPool(maxConcurrentMatches + 1);
+		server.setExecutor(executor);
+		server.createContext("/health", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				handleHealth(exchange);
+			}
+		});
+		server.createContext("/match", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				handleMatch(exchange);
+			}
+		});
+		server.createContext("/metrics", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				MatchRequests.sendText(exchange, 200, PipelineMetrics.dump());
+			}
+		});
+		PipelineMetrics.registerMBeans();
+		server.start();
+	}
+
+
+
+	/** Stops accepting requests, and waits up to delaySeconds for those in progress to finish.
+	 */
+	public void stop(int delaySeconds){
+		server.stop(delaySeconds);
+		executor.shutdown();
+		if(batcher != null){
+			batcher.shutdown();
+		}
+	}
+
+
+
+	public InetSocketAddress getAddress(){
+		return server.getAddress();
+	}
+
+
+
+	/** Matches keys of the database against the database, so that the JIT compiles the matching
+	 * code before the first request rather than during it.
+	 */
+	private void warmUp(){
+		int warmed = 0;
+		for(int i=0; i<database.size() && warmed<WARM_UP_MATCHES; i++){
+			MultiResolutionShapeContext key = database.getKey(i);
+			//A key with more points than another cannot be matched as a query.
+			if(key != null && key.getFine() != null && isCompatible(key)){
+				engine.findBestMatches(key, database, 1);
+				warmed++;
+			}
+		}
+	}
+
+
+
+	private void handleHealth(HttpExchange exchange) throws IOException {
+		int numKeys = database.getNumMatchableKeys();
+		int inProgress = maxConcurrentMatches - matchPermits.availablePermits();
+
+		String health = "OK\nkeys: "+numKeys+"\nmatches in progress: "+inProgress+"\n";
+		if(batcher != null){
+			health += "batches: "+batcher.getNumBatches()+"\nbatched matches: "+batcher.getNumQueries()
+					+"\ncoalesced matches: "+batcher.getNumCoalesced()
+					+"\nmean batch wait ms: "+batcher.getMeanWaitNanos()/1e6
+					+"\nmax batch wait ms: "+batcher.getMaxWaitNanos()/1e6+"\n";
+		}
+		if(cache != null){
+			health += cache.getStatistics();
+		}
+		MatchRequests.sendText(exchange, 200, health);
+	}
+
+
+
+	private void handleMatch(HttpExchange exchange) throws IOException {
+		if(!"POST".equals(exchange.getRequestMethod())){
+			exchange.getResponseHeaders().set("Allow", "POST");
+			MatchRequests.sendText(exchange, 405, "POST a key photo or shape context to /match\n");
+			return;
+		}
+
+		long requestId = RequestContext.fromHeader(exchange.getRequestHeaders().getFirst(RequestContext.HEADER));
+		RequestContext.setCurrent(requestId);
+		exchange.getResponseHeaders().set(RequestContext.HEADER, Long.toString(requestId));
+		boolean permitted = false;
+		try {
+			//1. Read the upload, and look for its shape contexts and matches in the cache.
+			int numResults = MatchRequests.parseNumResults(exchange.getRequestURI().getQuery(), DEFAULT_NUM_RESULTS);
+			long budgetMillis = parseBudget(exchange.getRequestURI().getQuery());
+			MatchBudget budget = (budgetMillis < 0) ? null : new MatchBudget(budgetMillis);
+			String matchingMode = (budget == null) ? SCREENED_MATCHES : ANYTIME_MATCHES;
+			byte[] body = MatchRequests.readBody(exchange.getRequestBody());
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			boolean isShapeContext = contentType != null && contentType.startsWith("text/csv");
+			boolean isBinaryShapeContext = contentType != null && contentType.startsWith(SHAPE_CONTEXT_CONTENT_TYPE);
+
+			String imageHash = null;
+			MultiResolutionShapeContext shapeContext = null;
+			if(isShapeContext){
+				shapeContext = MatchRequests.readShapeContext(body);
+				checkCompatible(shapeContext);
+			}else if(isBinaryShapeContext){
+				shapeContext = readBinaryShapeContext(body);
+			}else if(cache != null){
+				imageHash = MatchCache.hashBytes(body);
+				shapeContext = cache.getDescriptor(imageHash, MatchRequests.PIPELINE_VERSION);
+				if(shapeContext != null && !isCompatible(shapeContext)){
+					shapeContext = null;
+				}
+			}
+
+			String descriptorHash = null;
+			String keysMatched = null;
+			ArrayList<KeyMatch> matches = null;
+			if(shapeContext != null && cache != null){
+				descriptorHash = MatchCache.hashShapeContext(shapeContext);
+				matches = cache.getResults(descriptorHash, databaseVersion, matchingMode, numResults);
+			}
+
+			//2. Otherwise find the shape contexts of the photo, and rank the keys.
+			if(matches == null){
+				if(!matchPermits.tryAcquire()){
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					MatchRequests.sendText(exchange, 503, "busy, "+maxConcurrentMatches+" matches in progress\n");
+					return;
+				}
+				permitted = true;
+
+				if(shapeContext == null){
+					shapeContext = MatchRequests.calculateShapeContext(body);
+					if(cache != null){
+						cache.putDescriptor(imageHash, MatchRequests.PIPELINE_VERSION, shapeContext);
+						descriptorHash = MatchCache.hashShapeContext(shapeContext);
+						matches = cache.getResults(descriptorHash, databaseVersion, matchingMode, numResults);
+					}
+				}
+				if(matches == null && budget != null){
+					AnytimeMatches anytimeMatches = engine.findBestMatches(shapeContext, database, numResults, budget);
+					matches = anytimeMatches.getMatches();
+					keysMatched = anytimeMatches.getNumKeysMatched()+"/"+anytimeMatches.getNumKeys();
+					if(cache != null && anytimeMatches.isComplete()){
+						cache.putResults(descriptorHash, databaseVersion, matchingMode, numResults, matches);
+					}
+				}else if(matches == null){
+					if(batcher == null){
+						matches = engine.findBestMatches(shapeContext, database, numResults);
+					}else{
+						//Checked before it joins a batch, which it would otherwise fail as a whole.
+						database.checkCompatible(shapeContext);
+						matches = awaitBatch(batcher.submit(shapeContext, numResults));
+					}
+					if(cache != null){
+						cache.putResults(descriptorHash, databaseVersion, matchingMode, numResults, matches);
+					}
+				}
+			}
+
+			if(budget != null){
+				//Only complete anytime matches are cached, so an answer from the cache matched every key.
+				if(keysMatched == null){
+					int numKeys = database.getNumMatchableKeys();
+					keysMatched = numKeys+"/"+numKeys;
+				}
+				exchange.getResponseHeaders().set("X-Keys-Matched", keysMatched);
+			}
+
+			StringBuilder response = new StringBuilder();
+			for(KeyMatch match : matches){
+				response.append(match).append('\n');
+			}
+			MatchRequests.sendText(exchange, 200, response.toString());
+
+		} catch (IllegalArgumentException e) {
+			MatchRequests.sendText(exchange, 400, e.getMessage()+"\n");
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			MatchRequests.sendText(exchange, 500, "unable to match key\n");
+		} finally {
+			if(permitted){
+				matchPermits.release();
+			}
+			RequestContext.clear();
+		}
+	}
+
+
+
+	/** Waits for a batched match, rethrowing its failure.
+	 */
+	private static ArrayList<KeyMatch> awaitBatch(Future<ArrayList<KeyMatch>> matches){
+		try {
+			return matches.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("batched match failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for a batched match", e);
+		}
+	}
+
+
+
+	/** Reads an uploaded shape context in MatchCache's binary format. Its levels must have the same
+	 * number of bins as the database's.
+	 */
+	private MultiResolutionShapeContext readBinaryShapeContext(byte[] body){
+		MultiResolutionShapeContext shapeContext;
+		try {
+			shapeContext = MatchCache.readDescriptor(new DataInputStream(new ByteArrayInputStream(body)), body.length);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("malformed shape context: "+e);
+		}
+
+		if(shapeContext.getFine() == null || shapeContext.getFine().length == 0){
+			throw new IllegalArgumentException("upload has no shape context");
+		}
+		if(shapeContext.getCoarse() != null && shapeContext.getCoarse().length == 0){
+			throw new IllegalArgumentException("upload has an empty coarse shape context");
+		}
+		checkCompatible(shapeContext);
+
+		return shapeContext;
+	}
+
+
+
+	/** Checks that the uploaded levels have bins, and can be compared with the database's keys, as
+	 * KeyDatabase.checkCompatible checks.
+	 */
+	private void checkCompatible(MultiResolutionShapeContext uploaded){
+		for(int[][][] level : new int[][][][]{uploaded.getCoarse(), uploaded.getFine()}){
+			if(level != null && (level[0].length == 0 || level[0][0].length == 0)){
+				throw new IllegalArgumentException("shape context has no bins");
+			}
+		}
+		database.checkCompatible(uploaded);
+	}
+
+
+
+	/** Whether cached shape contexts can be compared with the database's keys. Those of a disk tier
+	 * written by a server with other settings cannot, and are found again instead.
+	 */
+	private boolean isCompatible(MultiResolutionShapeContext cached){
+		try {
+			database.checkCompatible(cached);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+
+
+	/** The budget parameter, in milliseconds, or -1 if there is none.
+	 */
+	private static long parseBudget(String query){
+		if(query != null){
+			for(String parameter : query.split("&")){
+				if(parameter.startsWith("budget=")){
+					try {
+						long budget = Long.parseLong(parameter.substring(7));
+						if(budget >= 0){
+							return budget;
+						}
+					} catch (NumberFormatException e) {
+						//Falls through to the error below.
+					}
+					throw new IllegalArgumentException("budget must be a non-negative number of milliseconds");
+				}
+			}
+		}
+
+		return -1;
+	}
+
+
+
+	/** Serves the key database on localhost.
+	 *
+	 * @param args optionally the port (default DEFAULT_PORT), the most matches run at once (default
+	 * DEFAULT_MAX_CONCURRENT_MATCHES), the batch window in milliseconds (default 0, no batching) and
+	 * the directory of the cache's disk tier (default none, the cache is kept in memory only).
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		int maxConcurrentMatches = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_MAX_CONCURRENT_MATCHES;
+		long batchWindowMillis = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+		File cacheDirectory = (args.length > 3) ? new File(args[3]) : null;
+
+		ArrayList<MultiResolutionShapeContext> keyDatabase = DataManager.getKeyMultiResolutionShapeContexts();
+		MatchCache cache = new MatchCache(MatchCache.DEFAULT_MAX_DESCRIPTORS, MatchCache.DEFAULT_MAX_RESULTS, cacheDirectory);
+		KeyMatchingServer server = new KeyMatchingServer(keyDatabase, maxConcurrentMatches, batchWindowMillis, cache);
+		server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+		System.out.println("Matching keys on http://"+server.getAddress().getHostString()+":"
+				+server.getAddress().getPort()+"/match");
+	}
+
+
+}
@@ -0,0 +1,264 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import contextCalculator.KeyDatabase;
+import contextCalculator.KeyMatch;
+import contextCalculator.KeyMatchingEngine;
+import contextCalculator.MultiResolutionShapeContext;
+
+/** Micro-batching front end for matching. Queries submitted within windowMillis of the first one
+ * waiting (or until maxBatchSize are waiting) are matched together by the engine in one pass over the
+ * database, and each query's future is completed with its own matches. Identical queries in a batch,
+ * such as a client retrying, are coalesced and matched once.
+ *
+ * A batch is matched on the batcher's pool of numThreads threads: its coarse pass is split into one
+ * run of keys per thread, and each query's fine level is matched on its own. Queries submitted while
+ * a batch runs wait for the next one. The window adds up to windowMillis to a query's latency when
+ * the load is light; the time each query waited for its batch to start is kept, so that this cost
+ * can be measured against the throughput gained.
+ */
+public class MatchBatcher {
+
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 16;
+
+	private final KeyMatchingEngine engine;
+	private final KeyDatabase database;
+	private final long windowNanos;
+	private final int maxBatchSize;
+	private final int numThreads;
+	private final ExecutorService matchPool;
+	private final LinkedBlockingQueue<PendingQuery> pending = new LinkedBlockingQueue<PendingQuery>();
+	private final Thread worker;
+	private volatile boolean running = true;
+
+	private final AtomicLong numBatches = new AtomicLong();
+	private final AtomicLong numQueries = new AtomicLong();
+	private final AtomicLong numCoalesced = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+
+
+	/** A submitted query, waiting for its batch.
+	 */
+	private static class PendingQuery {
+		private final MultiResolutionShapeContext shapeContext;
+		private final int k;
+		private final long submitNanos = System.nanoTime();
+		private final CompletableFuture<ArrayList<KeyMatch>> result = new CompletableFuture<ArrayList<KeyMatch>>();
+
+		PendingQuery(MultiResolutionShapeContext shapeContext, int k){
+			this.shapeContext = shapeContext;
+			this.k = k;
+		}
+	}
+
+
+
+	/** Starts the batcher's thread and its match pool.
+	 *
+	 * @param engine matches the batches, with its settings.
+	 * @param database the keys every query is matched against. Its queries must be compatible with it,
+	 * as KeyDatabase.checkCompatible checks, or the whole batch fails.
+	 * @param windowMillis longest a query waits for others to join its batch.
+	 * @param maxBatchSize most queries matched in one batch.
+	 * @param numThreads threads a batch is matched on.
+	 */
+	public MatchBatcher(KeyMatchingEngine engine, KeyDatabase database, long windowMillis, int maxBatchSize,
+			int numThreads){
+		if(windowMillis < 0 || maxBatchSize < 1 || numThreads < 1){
+			throw new IllegalArgumentException("invalid batching parameters");
+		}
+
+		this.engine = engine;
+		this.database = database;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.maxBatchSize = maxBatchSize;
+		this.numThreads = numThreads;
+		this.matchPool = Executors.newFixedThreadPool(numThreads, new ThreadFactory(){
+			public Thread newThread(Runnable task){
+				Thread thread = new Thread(task, "match-pool");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		worker = new Thread(new Runnable(){
+			public void run(){
+				runBatches();
+			}
+		}, "match-batcher");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+
+
+	/** Queues the query for the next batch. The future completes with the k best keys, best first,
+	 * as engine.findBestMatches(shapeContext, database, k) finds them.
+	 */
+	public CompletableFuture<ArrayList<KeyMatch>> submit(MultiResolutionShapeContext shapeContext, int k){
+		PendingQuery query = new PendingQuery(shapeContext, k);
+		if(!running){
+			query.result.completeExceptionally(new IllegalStateException("batcher is shut down"));
+			return query.result;
+		}
+		pending.add(query);
+
+		return query.result;
+	}
+
+
+
+	/** Stops the batcher's thread and its match pool once the current batch is done. Queries not yet
+	 * in a batch fail with an IllegalStateException.
+	 */
+	public void shutdown(){
+		running = false;
+		worker.interrupt();
+		matchPool.shutdown();
+	}
+
+
+
+	public long getNumBatches(){
+		return numBatches.get();
+	}
+
+
+
+	public long getNumQueries(){
+		return numQueries.get();
+	}
+
+
+
+	/** Number of queries answered with the result of an identical query in the same batch.
+	 */
+	public long getNumCoalesced(){
+		return numCoalesced.get();
+	}
+
+
+
+	/** Mean time, in nanoseconds, queries waited from being submitted until their batch started.
+	 */
+	public double getMeanWaitNanos(){
+		long queries = numQueries.get();
+		return (queries == 0) ? 0 : (double)totalWaitNanos.get() / queries;
+	}
+
+
+
+	/** Longest time, in nanoseconds, a query waited from being submitted until its batch started.
+	 */
+	public long getMaxWaitNanos(){
+		return maxWaitNanos.get();
+	}
+
+
+
+	private void runBatches(){
+		ArrayList<PendingQuery> batch = new ArrayList<PendingQuery>();
+		try {
+			while(running){
+				//1. Wait for a query, then for others to join it until the window closes or the
+				//batch is full.
+				batch.add(pending.take());
+				long deadline = batch.get(0).submitNanos + windowNanos;
+				while(batch.size() < maxBatchSize){
+					long remaining = deadline - System.nanoTime();
+					PendingQuery query = (remaining > 0) ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+					if(query == null){
+						break;
+					}
+					batch.add(query);
+				}
+
+				runBatch(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			//Shut down.
+		}
+
+		IllegalStateException shutDown = new IllegalStateException("batcher is shut down");
+		for(PendingQuery query : batch){
+			query.result.completeExceptionally(shutDown);
+		}
+		PendingQuery query;
+		while((query = pending.poll()) != null){
+			query.result.completeExceptionally(shutDown);
+		}
+	}
+
+
+
+	private void runBatch(ArrayList<PendingQuery> batch){
+		long startNanos = System.nanoTime();
+		for(PendingQuery query : batch){
+			long wait = startNanos - query.submitNanos;
+			totalWaitNanos.addAndGet(wait);
+			long max;
+			while(wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait)){
+				//Retry until the maximum is at least this wait.
+			}
+		}
+		numBatches.incrementAndGet();
+		numQueries.addAndGet(batch.size());
+
+		try {
+			//1. Coalesce identical queries, matching each distinct one for the most results any of
+			//its copies asked for.
+			ArrayList<MultiResolutionShapeContext> distinct = new ArrayList<MultiResolutionShapeContext>();
+			int[] distinctIndex = new int[batch.size()];
+			int maxK = 0;
+			for(int q=0; q<batch.size(); q++){
+				MultiResolutionShapeContext shapeContext = batch.get(q).shapeContext;
+				maxK = Math.max(maxK, batch.get(q).k);
+				distinctIndex[q] = -1;
+				for(int d=0; d<distinct.size() && distinctIndex[q]<0; d++){
+					if(isSame(distinct.get(d), shapeContext)){
+						distinctIndex[q] = d;
+						numCoalesced.incrementAndGet();
+					}
+				}
+				if(distinctIndex[q] < 0){
+					distinctIndex[q] = distinct.size();
+					distinct.add(shapeContext);
+				}
+			}
+
+			//2. Match them in one pass, and give each query its share of the results. The top k of
+			//a query are the first k of the top maxK, as the ranking does not depend on k.
+			ArrayList<ArrayList<KeyMatch>> matches = engine.findBestMatches(distinct, database, maxK, matchPool, numThreads);
+			for(int q=0; q<batch.size(); q++){
+				ArrayList<KeyMatch> all = matches.get(distinctIndex[q]);
+				batch.get(q).result.complete(new ArrayList<KeyMatch>(all.subList(0, Math.min(batch.get(q).k, all.size()))));
+			}
+
+		} catch (RuntimeException e) {
+			for(PendingQuery query : batch){
+				query.result.completeExceptionally(e);
+			}
+		}
+	}
+
+
+
+	private static boolean isSame(MultiResolutionShapeContext a, MultiResolutionShapeContext b){
+		return a == b || (Arrays.deepEquals(a.getFine(), b.getFine()) && Arrays.deepEquals(a.getCoarse(), b.getCoarse()));
+	}
+
+
+}
@@ -0,0 +1,725 @@
+package server;
+
+import java.awt.Point;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import contextCalculator.KeyMatch;
+import contextCalculator.MultiResolutionShapeContext;
+
+/** Two-level, content-addressed cache for the matching server, so that a key photographed again,
+ * or an upload retried, does not rerun the whole chain from edges to matches.
+ *
+ * The first level maps the SHA-256 hash of an uploaded photo, together with the version of the
+ * pipeline which found them, to its shape contexts, so that a server whose settings have changed
+ * does not reuse another's shape contexts from disk. The second maps
+ * the hash of a query's shape contexts, together with the database version, the matching mode and the
+ * number of results, to the ranked matches. Modes which rank the keys differently, such as screened
+ * and exhaustive matching, so never share results. The database version is a hash of the database's contents
+ * (hashDatabase()), so results for a changed database are never returned, and a restarted server
+ * with the same database can reuse results from disk.
+ *
+ * Each level keeps its most recently used entries in memory, up to its maximum, and evicts the least
+ * recently used beyond it. With a directory, every entry is also written to disk, and an entry
+ * missing from memory is looked for there before it counts as a miss. Each level keeps about its
+ * maximum of files on disk, deleting the least recently used by modification time beyond it, and
+ * retainDescriptors() and retainResults() delete those of other versions, which would never be read
+ * again. Files are written whole to a temporary file
+ * and then moved into place, so a crash cannot leave a partial entry, and a file which cannot be read
+ * anyway counts as a miss and is deleted. The disk is read and written outside the cache's lock, so
+ * that one request's disk access does not hold up the others'.
+ */
+public class MatchCache {
+
+
+	public static final int DEFAULT_MAX_DESCRIPTORS = 256;
+	public static final int DEFAULT_MAX_RESULTS = 1024;
+	//Shape contexts take about 60KB each on disk, and rankings well under 1KB.
+	public static final int DEFAULT_MAX_DISK_DESCRIPTORS = 4096;
+	public static final int DEFAULT_MAX_DISK_RESULTS = 65536;
+
+	//Most frequencies read for one shape context, so that a corrupt file or request cannot exhaust the heap.
+	private static final long MAX_SHAPE_CONTEXT_FREQUENCIES = 1 << 24;
+
+	private final LruMap<String, MultiResolutionShapeContext> descriptors;
+	private final LruMap<String, ArrayList<KeyMatch>> results;
+	private final DiskTier descriptorDisk;
+	private final DiskTier resultDisk;
+
+	private long descriptorHits;
+	private long descriptorDiskHits;
+	private long descriptorMisses;
+	private long resultHits;
+	private long resultDiskHits;
+	private long resultMisses;
+
+
+
+	/** LinkedHashMap in access order which evicts its least recently used entry beyond maxEntries.
+	 */
+	private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+		private long evictions;
+
+		LruMap(int maxEntries){
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest){
+			if(size() > maxEntries){
+				evictions++;
+				return true;
+			}
+			return false;
+		}
+	}
+
+
+
+	/** The files of one level on disk, which deletes the least recently modified of them once there
+	 * are more than maxEntries. Files are counted as they are written rather than listed each time,
+	 * so the count is only about right if other processes share the directory.
+	 */
+	private static class DiskTier {
+		private final File directory;
+		private final int maxEntries;
+		private int numEntries;
+		private long evictions;
+
+		DiskTier(File directory, int maxEntries){
+			this.directory = directory;
+			this.maxEntries = maxEntries;
+			directory.mkdirs();
+			numEntries = listEntries().size();
+		}
+
+		/** Counts the file as an entry if it is not one already, and deletes the oldest entries if
+		 * that makes too many. It is called before the file is written.
+		 */
+		void add(File file){
+			if(file.exists()){
+				return;
+			}
+			int numExcess;
+			synchronized(this){
+				numEntries++;
+				//Trims to three quarters of the maximum, so that the directory is listed only once in
+				//many writes.
+				numExcess = (numEntries > maxEntries) ? numEntries - maxEntries*3/4 : 0;
+				numEntries -= numExcess;
+				evictions += numExcess;
+			}
+			if(numExcess > 0){
+				ArrayList<File> entries = listEntries();
+				Collections.sort(entries, new Comparator<File>(){
+					public int compare(File a, File b){
+						return Long.compare(a.lastModified(), b.lastModified());
+					}
+				});
+				for(int i=0; i<numExcess && i<entries.size(); i++){
+					entries.get(i).delete();
+				}
+			}
+		}
+
+		/** Marks the file as just used, so that it is evicted last.
+		 */
+		void touch(File file){
+			file.setLastModified(System.currentTimeMillis());
+		}
+
+		/** Deletes every entry whose name does not start with the prefix.
+		 */
+		void retain(String prefix){
+			int numDeleted = 0;
+			for(File file : listEntries()){
+				if(!file.getName().startsWith(prefix) && file.delete()){
+					numDeleted++;
+				}
+			}
+			synchronized(this){
+				numEntries = Math.max(0, numEntries - numDeleted);
+			}
+		}
+
+		synchronized long getEvictions(){
+			return evictions;
+		}
+
+		/** The files of the directory, without the temporary files being written.
+		 */
+		private ArrayList<File> listEntries(){
+			ArrayList<File> entries = new ArrayList<File>();
+			File[] files = directory.listFiles();
+			if(files != null){
+				for(File file : files){
+					if(!file.getName().endsWith(".tmp")){
+						entries.add(file);
+					}
+				}
+			}
+			return entries;
+		}
+	}
+
+
+
+	/** As MatchCache(maxDescriptors, maxResults, directory, DEFAULT_MAX_DISK_DESCRIPTORS,
+	 * DEFAULT_MAX_DISK_RESULTS).
+	 */
+	public MatchCache(int maxDescriptors, int maxResults, File directory){
+		this(maxDescriptors, maxResults, directory, DEFAULT_MAX_DISK_DESCRIPTORS, DEFAULT_MAX_DISK_RESULTS);
+	}
+
+
+
+	/** @param maxDescriptors most shape contexts kept in memory.
+	 * @param maxResults most rankings kept in memory.
+	 * @param directory where the disk tier is kept, or null for none. It is created if missing.
+	 * @param maxDiskDescriptors about the most shape contexts kept on disk.
+	 * @param maxDiskResults about the most rankings kept on disk.
+	 */
+	public MatchCache(int maxDescriptors, int maxResults, File directory, int maxDiskDescriptors, int maxDiskResults){
+		if(maxDescriptors < 0 || maxResults < 0 || maxDiskDescriptors < 0 || maxDiskResults < 0){
+			throw new IllegalArgumentException("cache sizes must not be negative");
+		}
+
+		descriptors = new LruMap<String, MultiResolutionShapeContext>(maxDescriptors);
+		results = new LruMap<String, ArrayList<KeyMatch>>(maxResults);
+		if(directory != null){
+			descriptorDisk = new DiskTier(new File(directory, "descriptors"), maxDiskDescriptors);
+			resultDisk = new DiskTier(new File(directory, "results"), maxDiskResults);
+		}else{
+			descriptorDisk = null;
+			resultDisk = null;
+		}
+	}
+
+
+
+	/** Returns the shape contexts cached for the photo with the given hash found by the pipeline
+	 * version, or null.
+	 *
+	 * @param pipelineVersion fingerprint of the settings the shape contexts are found with.
+	 */
+	public MultiResolutionShapeContext getDescriptor(String imageHash, String pipelineVersion){
+		String key = pipelineVersion+"-"+imageHash;
+		synchronized(this){
+			MultiResolutionShapeContext shapeContext = descriptors.get(key);
+			if(shapeContext != null){
+				descriptorHits++;
+				return shapeContext;
+			}
+		}
+
+		File file = (descriptorDisk == null) ? null : new File(descriptorDisk.directory, key+".bin");
+		MultiResolutionShapeContext shapeContext = (file == null) ? null : readDescriptor(file);
+		if(shapeContext != null){
+			descriptorDisk.touch(file);
+		}
+		synchronized(this){
+			if(shapeContext != null){
+				descriptorDiskHits++;
+				descriptors.put(key, shapeContext);
+			}else{
+				descriptorMisses++;
+			}
+		}
+
+		return shapeContext;
+	}
+
+
+
+	public void putDescriptor(String imageHash, String pipelineVersion, MultiResolutionShapeContext shapeContext){
+		String key = pipelineVersion+"-"+imageHash;
+		synchronized(this){
+			descriptors.put(key, shapeContext);
+		}
+		if(descriptorDisk != null){
+			File file = new File(descriptorDisk.directory, key+".bin");
+			descriptorDisk.add(file);
+			writeDescriptor(file, shapeContext);
+		}
+	}
+
+
+
+	/** Returns the k best matches cached for the query with the given hash against the database
+	 * version in the matching mode, or null.
+	 *
+	 * @param mode how the matches were found, such as "screened" or "anytime".
+	 */
+	public ArrayList<KeyMatch> getResults(String descriptorHash, String databaseVersion, String mode, int k){
+		String key = databaseVersion+"-"+descriptorHash+"-"+mode+"-"+k;
+		synchronized(this){
+			ArrayList<KeyMatch> matches = results.get(key);
+			if(matches != null){
+				resultHits++;
+				return matches;
+			}
+		}
+
+		File file = (resultDisk == null) ? null : new File(resultDisk.directory, key+".csv");
+		ArrayList<KeyMatch> matches = (file == null) ? null : readResults(file);
+		if(matches != null){
+			resultDisk.touch(file);
+		}
+		synchronized(this){
+			if(matches != null){
+				resultDiskHits++;
+				results.put(key, matches);
+			}else{
+				resultMisses++;
+			}
+		}
+
+		return matches;
+	}
+
+
+
+	public void putResults(String descriptorHash, String databaseVersion, String mode, int k, ArrayList<KeyMatch> matches){
+		String key = databaseVersion+"-"+descriptorHash+"-"+mode+"-"+k;
+		synchronized(this){
+			results.put(key, matches);
+		}
+		if(resultDisk != null){
+			File file = new File(resultDisk.directory, key+".csv");
+			resultDisk.add(file);
+			writeResults(file, matches);
+		}
+	}
+
+
+
+	/** Drops every cached shape context found by another pipeline version, in memory and on disk.
+	 * They are never returned for this version anyway, so this only frees the space they take.
+	 */
+	public void retainDescriptors(String pipelineVersion){
+		synchronized(this){
+			retainKeys(descriptors, pipelineVersion+"-");
+		}
+		if(descriptorDisk != null){
+			descriptorDisk.retain(pipelineVersion+"-");
+		}
+	}
+
+
+
+	/** Drops every cached ranking of another database version, in memory and on disk. Results are
+	 * keyed by the database version, so this is not needed for correctness when the database changes,
+	 * but frees the space the old version's results take.
+	 */
+	public void retainResults(String databaseVersion){
+		synchronized(this){
+			retainKeys(results, databaseVersion+"-");
+		}
+		if(resultDisk != null){
+			resultDisk.retain(databaseVersion+"-");
+		}
+	}
+
+
+
+	private static void retainKeys(LruMap<String, ?> map, String prefix){
+		Iterator<String> keys = map.keySet().iterator();
+		while(keys.hasNext()){
+			if(!keys.next().startsWith(prefix)){
+				keys.remove();
+			}
+		}
+	}
+
+
+
+	/** Hit rates and counts of both levels, one per line, for the health endpoint.
+	 */
+	public synchronized String getStatistics(){
+		return "descriptor cache hit rate: "+findHitRate(descriptorHits+descriptorDiskHits, descriptorMisses)
+				+" (memory "+descriptorHits+", disk "+descriptorDiskHits+", misses "+descriptorMisses
+				+", evictions "+descriptors.evictions+", disk evictions "+getEvictions(descriptorDisk)+")\n"
+				+"result cache hit rate: "+findHitRate(resultHits+resultDiskHits, resultMisses)
+				+" (memory "+resultHits+", disk "+resultDiskHits+", misses "+resultMisses
+				+", evictions "+results.evictions+", disk evictions "+getEvictions(resultDisk)+")\n";
+	}
+
+
+
+	private static long getEvictions(DiskTier disk){
+		return (disk == null) ? 0 : disk.getEvictions();
+	}
+
+
+
+	public synchronized double getDescriptorHitRate(){
+		return findHitRate(descriptorHits+descriptorDiskHits, descriptorMisses);
+	}
+
+
+
+	public synchronized double getResultHitRate(){
+		return findHitRate(resultHits+resultDiskHits, resultMisses);
+	}
+
+
+
+	private static double findHitRate(long hits, long misses){
+		return (hits+misses == 0) ? 0 : (double)hits / (hits+misses);
+	}
+
+
+
+	/** The SHA-256 hash of the bytes, in hexadecimal.
+	 */
+	public static String hashBytes(byte[] bytes){
+		MessageDigest digest = createDigest();
+		digest.update(bytes);
+
+		return toHex(digest.digest());
+	}
+
+
+
+	/** The SHA-256 hash of both levels of the shape context, in hexadecimal.
+	 */
+	public static String hashShapeContext(MultiResolutionShapeContext shapeContext){
+		MessageDigest digest = createDigest();
+		updateDigest(digest, shapeContext.getCoarse());
+		updateDigest(digest, shapeContext.getFine());
+
+		return toHex(digest.digest());
+	}
+
+
+
+	/** The SHA-256 hash of every key's shape contexts, in order, in hexadecimal. It changes whenever
+	 * a key is added, removed or changed, so it serves as the database's version.
+	 */
+	public static String hashDatabase(ArrayList<MultiResolutionShapeContext> keyDatabase){
+		MessageDigest digest = createDigest();
+		for(MultiResolutionShapeContext key : keyDatabase){
+			updateDigest(digest, (key == null) ? null : key.getCoarse());
+			updateDigest(digest, (key == null) ? null : key.getFine());
+		}
+
+		return toHex(digest.digest());
+	}
+
+
+
+	private static MessageDigest createDigest(){
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			//Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+
+	/** Adds the shape context's dimensions and frequencies to the digest. A null shape context adds
+	 * a marker, so that it hashes differently from an empty one.
+	 */
+	private static void updateDigest(MessageDigest digest, int[][][] shapeContext){
+		if(shapeContext == null){
+			digest.update((byte)0);
+			return;
+		}
+
+		digest.update((byte)1);
+		byte[] row = null;
+		for(int[][] histogram : shapeContext){
+			for(int[] bins : histogram){
+				if(row == null || row.length != bins.length*4+4){
+					row = new byte[bins.length*4+4];
+				}
+				putInt(row, 0, bins.length);
+				for(int i=0; i<bins.length; i++){
+					putInt(row, i*4+4, bins[i]);
+				}
+				digest.update(row);
+			}
+			digest.update((byte)2);
+		}
+	}
+
+
+
+	private static void putInt(byte[] bytes, int offset, int value){
+		bytes[offset] = (byte)(value >>> 24);
+		bytes[offset+1] = (byte)(value >>> 16);
+		bytes[offset+2] = (byte)(value >>> 8);
+		bytes[offset+3] = (byte)value;
+	}
+
+
+
+	private static String toHex(byte[] bytes){
+		StringBuilder hex = new StringBuilder();
+		for(byte b : bytes){
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+
+		return hex.toString();
+	}
+
+
+
+	static void writeDescriptor(File file, MultiResolutionShapeContext shapeContext){
+		try {
+			File temporary = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			try {
+				writeDescriptor(out, shapeContext);
+			} finally {
+				out.close();
+			}
+			moveIntoPlace(temporary, file);
+		} catch (IOException e) {
+			System.out.println("Unable to save cached shape context to file.");
+		}
+	}
+
+
+
+	/** Reads a cached shape context, or returns null if there is none or it cannot be read, in which
+	 * case the file is deleted.
+	 */
+	static MultiResolutionShapeContext readDescriptor(File file){
+		if(!file.isFile()){
+			return null;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				return readDescriptor(in, file.length());
+			} finally {
+				in.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Unable to read cached shape context from file.");
+			file.delete();
+			return null;
+		}
+	}
+
+
+
+	/** Writes both levels of the shape context and its fine points in the disk tier's binary format,
+	 * which is also how the shard coordinator sends queries to its workers.
+	 */
+	public static void writeDescriptor(DataOutputStream out, MultiResolutionShapeContext shapeContext) throws IOException {
+		writeShapeContext(out, shapeContext.getCoarse());
+		writeShapeContext(out, shapeContext.getFine());
+
+		Point[] points = shapeContext.getFinePoints();
+		out.writeInt((points == null) ? -1 : points.length);
+		if(points != null){
+			for(Point p : points){
+				out.writeInt(p.x);
+				out.writeInt(p.y);
+			}
+		}
+		out.flush();
+	}
+
+
+
+	/** Reads a shape context written by writeDescriptor(DataOutputStream, MultiResolutionShapeContext).
+	 */
+	public static MultiResolutionShapeContext readDescriptor(DataInputStream in) throws IOException {
+		return readDescriptor(in, Long.MAX_VALUE);
+	}
+
+
+
+	/** As readDescriptor(in), from at most length bytes. Every dimension is checked against the bytes
+	 * left before anything is allocated for it, so that a few bytes of a corrupt file or request
+	 * cannot claim an array larger than the heap.
+	 */
+	public static MultiResolutionShapeContext readDescriptor(DataInputStream in, long length) throws IOException {
+		long[] remaining = {length};
+		int[][][] coarse = readShapeContext(in, remaining);
+		int[][][] fine = readShapeContext(in, remaining);
+
+		int numPoints = in.readInt();
+		claimInts(1, remaining);
+		Point[] points = null;
+		if(numPoints >= 0){
+			claimInts(2L*numPoints, remaining);
+			points = new Point[numPoints];
+			for(int i=0; i<numPoints; i++){
+				points[i] = new Point(in.readInt(), in.readInt());
+			}
+		}
+
+		return new MultiResolutionShapeContext(coarse, fine, points);
+	}
+
+
+
+	/** Writes the dimensions (numPoints -1 for null) and then the frequencies.
+	 */
+	private static void writeShapeContext(DataOutputStream out, int[][][] shapeContext) throws IOException {
+		if(shapeContext == null){
+			out.writeInt(-1);
+			return;
+		}
+
+		out.writeInt(shapeContext.length);
+		out.writeInt((shapeContext.length == 0) ? 0 : shapeContext[0].length);
+		out.writeInt((shapeContext.length == 0 || shapeContext[0].length == 0) ? 0 : shapeContext[0][0].length);
+		for(int[][] histogram : shapeContext){
+			for(int[] bins : histogram){
+				for(int frequency : bins){
+					out.writeInt(frequency);
+				}
+			}
+		}
+	}
+
+
+
+	/** Reads a shape context written by writeShapeContext, from the remaining bytes, which it takes
+	 * its size from.
+	 */
+	private static int[][][] readShapeContext(DataInputStream in, long[] remaining) throws IOException {
+		int numPoints = in.readInt();
+		claimInts(1, remaining);
+		if(numPoints < 0){
+			return null;
+		}
+
+		int numRadialBins = in.readInt();
+		int numAngularBins = in.readInt();
+		claimInts(2, remaining);
+		//Only an empty shape context is written without bins.
+		boolean hasBins = numRadialBins > 0 && numAngularBins > 0;
+		if(numPoints > 0 ? !hasBins : (numRadialBins < 0 || numAngularBins < 0)){
+			throw new IOException("shape context is malformed");
+		}
+		claimInts((long)numPoints*numRadialBins*numAngularBins, remaining);
+
+		int[][][] shapeContext = new int[numPoints][numRadialBins][numAngularBins];
+		for(int[][] histogram : shapeContext){
+			for(int[] bins : histogram){
+				for(int i=0; i<bins.length; i++){
+					bins[i] = in.readInt();
+				}
+			}
+		}
+
+		return shapeContext;
+	}
+
+
+
+	/** Takes numInts ints from the remaining bytes, or throws if there are not that many left or they
+	 * are more than one shape context may have.
+	 */
+	private static void claimInts(long numInts, long[] remaining) throws IOException {
+		if(numInts > MAX_SHAPE_CONTEXT_FREQUENCIES || numInts*4 > remaining[0]){
+			throw new IOException("shape context is malformed or too large");
+		}
+		remaining[0] -= numInts*4;
+	}
+
+
+
+	static void writeResults(File file, ArrayList<KeyMatch> matches){
+		try {
+			File temporary = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			BufferedWriter bw = new BufferedWriter(new FileWriter(temporary));
+			try {
+				for(KeyMatch match : matches){
+					//In order of: keyIndex, cost.
+					bw.write(""+match.getKeyIndex()+","+match.getCost()+"\n");
+				}
+			} finally {
+				bw.close();
+			}
+			moveIntoPlace(temporary, file);
+		} catch (IOException e) {
+			System.out.println("Unable to save cached matches to file.");
+		}
+	}
+
+
+
+	/** Reads cached matches, or returns null if there are none or they cannot be read, in which case
+	 * the file is deleted.
+	 */
+	static ArrayList<KeyMatch> readResults(File file){
+		if(!file.isFile()){
+			return null;
+		}
+
+		ArrayList<KeyMatch> matches = new ArrayList<KeyMatch>();
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while((line = br.readLine()) != null){
+					String[] values = line.split(",");
+					if(values.length != 2){
+						throw new IOException("cached match has "+values.length+" values");
+					}
+					matches.add(new KeyMatch(Integer.parseInt(values[0]), Double.parseDouble(values[1])));
+				}
+			} finally {
+				br.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Unable to read cached matches from file.");
+			file.delete();
+			return null;
+		}
+
+		return matches;
+	}
+
+
+
+	/** Replaces the file with the temporary one in one step, so that readers see either the old file
+	 * or the whole new one. The temporary file is deleted if it cannot be moved.
+	 */
+	private static void moveIntoPlace(File temporary, File file) throws IOException {
+		try {
+			try {
+				Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			temporary.delete();
+		}
+	}
+
+
+}
@@ -0,0 +1,146 @@
+package server;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import contextCalculator.ImageProcessor;
+import contextCalculator.MultiResolutionShapeContext;
+import contextCalculator.ShapeContextCalculator;
+import data.DataManager;
+
+/** Reading /match requests and sending text answers, the same for KeyMatchingServer and
+ * ShardCoordinator. A malformed request is an IllegalArgumentException, which both answer 400.
+ */
+final class MatchRequests {
+
+
+	//Largest request body read, so that one upload cannot exhaust the heap.
+	static final int MAX_UPLOAD_BYTES = 32*1024*1024;
+	//Most frequencies of an uploaded text shape context, which is sparse, so its size does not bound them.
+	static final long MAX_UPLOAD_FREQUENCIES = 1 << 20;
+	//Raised whenever calculateShapeContext's output changes in a way its calculators' settings do not
+	//show, such as in edge detection.
+	private static final int PIPELINE_REVISION = 1;
+
+	/** Fingerprint of the settings calculateShapeContext finds shape contexts with, which cached shape
+	 * contexts are kept under.
+	 */
+	static final String PIPELINE_VERSION = MatchCache.hashBytes(("revision "+PIPELINE_REVISION
+			+", coarse "+describe(ShapeContextCalculator.DEFAULT_COARSE)+", fine "+describe(ShapeContextCalculator.DEFAULT))
+			.getBytes(StandardCharsets.UTF_8));
+
+
+
+	private MatchRequests(){
+	}
+
+
+
+	/** Finds the shape contexts of an uploaded photo of the key. An upload that ImageIO cannot read,
+	 * such as a truncated JPEG, is the client's error.
+	 */
+	static MultiResolutionShapeContext calculateShapeContext(byte[] body){
+		BufferedImage image;
+		try {
+			image = ImageIO.read(new ByteArrayInputStream(body));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("upload is not a readable image: "+e.getMessage());
+		}
+		if(image == null){
+			throw new IllegalArgumentException("upload is not an image in a readable format");
+		}
+		ArrayList<Point> edges = ImageProcessor.getKeyEdges(image);
+
+		return ShapeContextCalculator.calcMultiResolutionShapeContext(edges);
+	}
+
+
+
+	private static String describe(ShapeContextCalculator calculator){
+		return calculator.getNumPoints()+" points "+calculator.getPointSelection()+", "+calculator.getNumRadialBins()
+				+"x"+calculator.getNumLogBins()+" bins, log scale "+calculator.getLogScaleFactor();
+	}
+
+
+
+	/** Reads an uploaded fine shape context, the first key of the upload in the shape context
+	 * database's format. Its bins are not checked against any database's.
+	 */
+	static MultiResolutionShapeContext readShapeContext(byte[] body) throws IOException {
+		try {
+			return new MultiResolutionShapeContext(null, DataManager.readFirstShapeContext(new BufferedReader(
+					new InputStreamReader(new ByteArrayInputStream(body), "UTF-8")), MAX_UPLOAD_FREQUENCIES));
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("malformed shape context: "+e.getMessage());
+		}
+	}
+
+
+
+	/** The k parameter, or defaultNumResults if there is none.
+	 */
+	static int parseNumResults(String query, int defaultNumResults){
+		if(query != null){
+			for(String parameter : query.split("&")){
+				if(parameter.startsWith("k=")){
+					try {
+						int k = Integer.parseInt(parameter.substring(2));
+						if(k > 0){
+							return k;
+						}
+					} catch (NumberFormatException e) {
+						//Falls through to the error below.
+					}
+					throw new IllegalArgumentException("k must be a positive integer");
+				}
+			}
+		}
+
+		return defaultNumResults;
+	}
+
+
+
+	/** Reads the request body, up to MAX_UPLOAD_BYTES.
+	 */
+	static byte[] readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = in.read(buffer)) != -1){
+			out.write(buffer, 0, read);
+			if(out.size() > MAX_UPLOAD_BYTES){
+				throw new IllegalArgumentException("upload is larger than "+MAX_UPLOAD_BYTES+" bytes");
+			}
+		}
+		in.close();
+
+		return out.toByteArray();
+	}
+
+
+
+	static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] bytes = text.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+
+}
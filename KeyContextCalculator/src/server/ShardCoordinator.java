@@ -0,0 +1,401 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import contextCalculator.KeyMatch;
+import contextCalculator.MultiResolutionShapeContext;
+import metrics.PipelineMetrics;
+import metrics.RequestContext;
+
+/** Front end of a sharded deployment, for a key database too large for one process. Each shard of
+ * the database is served by a ShardWorker. The coordinator finds the shape contexts of an uploaded
+ * photo once, sends them to every shard at the same time, and merges the shards' k best keys into
+ * the k best of the database.
+ *
+ * Every shard screens its own keys at the coarse level, so the keys refined at the fine level include
+ * those a single process would refine, and the merged matches are at least as good.
+ *
+ * A shard that has not answered within the shard timeout, or that fails, is left out, and the matches
+ * of the shards that answered are returned. The X-Shards-Answered header then has fewer shards than
+ * the total, and /health counts such partial results. Only when no shard answers does /match fail,
+ * with 504.
+ *
+ * POST /match takes a photo of the key or a fine shape context in text/csv, as KeyMatchingServer does,
+ * with the same ?k= parameter and response. GET /metrics dumps the pipeline metrics of the
+ * coordinator's own stages, those of finding a photo's shape contexts. The request id, as
+ * KeyMatchingServer assigns it, is passed on to the shards, so their JFR events carry the same id.
+ */
+public class ShardCoordinator {
+
+
+	public static final long DEFAULT_SHARD_TIMEOUT_MILLIS = 2000;
+
+	private final ArrayList<URL> shards;
+	private final long shardTimeoutMillis;
+	private final int maxConcurrentMatches;
+	private final Semaphore matchPermits;
+	private final ExecutorService fanOut;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	private final AtomicLong numQueries = new AtomicLong();
+	private final AtomicLong numPartial = new AtomicLong();
+	private final AtomicLong numShardTimeouts = new AtomicLong();
+	private final AtomicLong numShardFailures = new AtomicLong();
+
+
+
+	/** The merged matches of a query, and how many shards they came from.
+	 */
+	public static class ShardedMatches {
+		private final ArrayList<KeyMatch> matches;
+		private final int numShardsAnswered;
+		private final int numShards;
+
+		ShardedMatches(ArrayList<KeyMatch> matches, int numShardsAnswered, int numShards){
+			this.matches = matches;
+			this.numShardsAnswered = numShardsAnswered;
+			this.numShards = numShards;
+		}
+
+		/** The k best keys of the shards that answered, best first.
+		 */
+		public ArrayList<KeyMatch> getMatches(){
+			return matches;
+		}
+
+		public int getNumShardsAnswered(){
+			return numShardsAnswered;
+		}
+
+		public int getNumShards(){
+			return numShards;
+		}
+
+		/** Whether any shard was left out, so that a better key may have been missed.
+		 */
+		public boolean isPartial(){
+			return numShardsAnswered < numShards;
+		}
+	}
+
+
+
+	/** A shard's answer that the coordinator cannot use, with the status the shard answered.
+	 */
+	private static class ShardException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final int status;
+
+		ShardException(int status, String message){
+			super(message);
+			this.status = status;
+		}
+	}
+
+
+
+	/** @param shards the /match URL of every shard's worker.
+	 * @param shardTimeoutMillis longest the coordinator waits for the shards to answer a query.
+	 * @param maxConcurrentMatches most uploads processed at once.
+	 */
+	public ShardCoordinator(ArrayList<URL> shards, long shardTimeoutMillis, int maxConcurrentMatches){
+		if(shards.isEmpty() || shardTimeoutMillis < 1 || maxConcurrentMatches < 1){
+			throw new IllegalArgumentException("invalid coordinator parameters");
+		}
+
+		this.shards = shards;
+		this.shardTimeoutMillis = shardTimeoutMillis;
+		this.maxConcurrentMatches = maxConcurrentMatches;
+		this.matchPermits = new Semaphore(maxConcurrentMatches);
+		this.fanOut = Executors.newCachedThreadPool(new ThreadFactory(){
+			public Thread newThread(Runnable task){
+				Thread thread = new Thread(task, "shard-request");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+
+	/** Starts serving on the address. A port of 0 picks a free port, which getAddress() then returns.
+	 */
+	public void start(InetSocketAddress address) throws IOException {
+		server = HttpServer.create(address, 0);
+		executor = Executors.newFixedThreadPool(maxConcurrentMatches + 1);
+		server.setExecutor(executor);
+		server.createContext("/health", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				handleHealth(exchange);
+			}
+		});
+		server.createContext("/match", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				handleMatch(exchange);
+			}
+		});
+		server.createContext("/metrics", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				MatchRequests.sendText(exchange, 200, PipelineMetrics.dump());
+			}
+		});
+		PipelineMetrics.registerMBeans();
+		server.start();
+	}
+
+
+
+	/** Stops accepting requests, and waits up to delaySeconds for those in progress to finish.
+	 */
+	public void stop(int delaySeconds){
+		server.stop(delaySeconds);
+		executor.shutdown();
+		fanOut.shutdownNow();
+	}
+
+
+
+	public InetSocketAddress getAddress(){
+		return server.getAddress();
+	}
+
+
+
+	/** Sends the shape contexts to every shard, and merges the k best keys of those that answer within
+	 * the shard timeout.
+	 *
+	 * @throws IllegalArgumentException if a shard rejects the query as malformed.
+	 */
+	public ShardedMatches findBestMatches(MultiResolutionShapeContext shapeContext, final int k) throws IOException {
+		//1. Encode the query once, and send it to every shard at the same time.
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		MatchCache.writeDescriptor(new DataOutputStream(encoded), shapeContext);
+		final byte[] body = encoded.toByteArray();
+		final long requestId = RequestContext.getCurrent();
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shardTimeoutMillis);
+		ArrayList<Future<ArrayList<KeyMatch>>> answers = new ArrayList<Future<ArrayList<KeyMatch>>>();
+		for(final URL shard : shards){
+			answers.add(fanOut.submit(new Callable<ArrayList<KeyMatch>>(){
+				public ArrayList<KeyMatch> call() throws IOException {
+					return requestMatches(shard, body, k, requestId);
+				}
+			}));
+		}
+
+		//2. Collect the answers until the deadline, leaving out the shards that fail or are too slow.
+		ArrayList<KeyMatch> merged = new ArrayList<KeyMatch>();
+		int numAnswered = 0;
+		for(Future<ArrayList<KeyMatch>> answer : answers){
+			try {
+				merged.addAll(answer.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+				numAnswered++;
+			} catch (TimeoutException e) {
+				answer.cancel(true);
+				numShardTimeouts.incrementAndGet();
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof ShardException && ((ShardException)e.getCause()).status == 400){
+					throw new IllegalArgumentException(e.getCause().getMessage());
+				}
+				numShardFailures.incrementAndGet();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while waiting for the shards", e);
+			}
+		}
+
+		//3. Merge the shards' best keys, which are disjoint, into the k best overall.
+		Collections.sort(merged, new Comparator<KeyMatch>(){
+			public int compare(KeyMatch a, KeyMatch b){
+				int byCost = Double.compare(a.getCost(), b.getCost());
+				return (byCost != 0) ? byCost : Integer.compare(a.getKeyIndex(), b.getKeyIndex());
+			}
+		});
+		ArrayList<KeyMatch> best = new ArrayList<KeyMatch>(merged.subList(0, Math.min(k, merged.size())));
+
+		numQueries.incrementAndGet();
+		if(numAnswered < shards.size()){
+			numPartial.incrementAndGet();
+		}
+
+		return new ShardedMatches(best, numAnswered, shards.size());
+	}
+
+
+
+	/** Posts the encoded shape contexts to a shard, with the request id if there is one, and reads
+	 * its "key: i, cost: c" lines.
+	 */
+	private ArrayList<KeyMatch> requestMatches(URL shard, byte[] body, int k, long requestId) throws IOException {
+		URL query = new URL(shard+((shard.getQuery() == null) ? "?" : "&")+"k="+k);
+		HttpURLConnection connection = (HttpURLConnection)query.openConnection();
+		connection.setConnectTimeout((int)shardTimeoutMillis);
+		connection.setReadTimeout((int)shardTimeoutMillis);
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", KeyMatchingServer.SHAPE_CONTEXT_CONTENT_TYPE);
+		if(requestId != RequestContext.NO_REQUEST){
+			connection.setRequestProperty(RequestContext.HEADER, Long.toString(requestId));
+		}
+		connection.setFixedLengthStreamingMode(body.length);
+
+		try {
+			OutputStream out = connection.getOutputStream();
+			out.write(body);
+			out.close();
+
+			int status = connection.getResponseCode();
+			if(status != 200){
+				InputStream error = connection.getErrorStream();
+				String message = (error == null) ? "" : readText(error).trim();
+				throw new ShardException(status, message);
+			}
+
+			ArrayList<KeyMatch> matches = new ArrayList<KeyMatch>();
+			for(String line : readText(connection.getInputStream()).split("\n")){
+				if(line.isEmpty()){
+					continue;
+				}
+				//Line has form: "key: i, cost: c" .
+				int comma = line.indexOf(", cost: ");
+				if(!line.startsWith("key: ") || comma < 0){
+					throw new ShardException(status, "unexpected answer from shard: "+line);
+				}
+				matches.add(new KeyMatch(Integer.parseInt(line.substring(5, comma)),
+						Double.parseDouble(line.substring(comma + 8))));
+			}
+
+			return matches;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+
+
+	private void handleHealth(HttpExchange exchange) throws IOException {
+		String health = "OK\nshards: "+shards.size()+"\nqueries: "+numQueries.get()
+				+"\npartial results: "+numPartial.get()+"\nshard timeouts: "+numShardTimeouts.get()
+				+"\nshard failures: "+numShardFailures.get()+"\n";
+		MatchRequests.sendText(exchange, 200, health);
+	}
+
+
+
+	private void handleMatch(HttpExchange exchange) throws IOException {
+		if(!"POST".equals(exchange.getRequestMethod())){
+			exchange.getResponseHeaders().set("Allow", "POST");
+			MatchRequests.sendText(exchange, 405, "POST a key photo or shape context to /match\n");
+			return;
+		}
+		if(!matchPermits.tryAcquire()){
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			MatchRequests.sendText(exchange, 503, "busy, "+maxConcurrentMatches+" matches in progress\n");
+			return;
+		}
+
+		long requestId = RequestContext.fromHeader(exchange.getRequestHeaders().getFirst(RequestContext.HEADER));
+		RequestContext.setCurrent(requestId);
+		exchange.getResponseHeaders().set(RequestContext.HEADER, Long.toString(requestId));
+		try {
+			//1. Read the query's shape contexts from the upload.
+			int numResults = MatchRequests.parseNumResults(exchange.getRequestURI().getQuery(), KeyMatchingServer.DEFAULT_NUM_RESULTS);
+			byte[] body = MatchRequests.readBody(exchange.getRequestBody());
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			MultiResolutionShapeContext shapeContext = (contentType != null && contentType.startsWith("text/csv"))
+					? MatchRequests.readShapeContext(body) : MatchRequests.calculateShapeContext(body);
+
+			//2. Rank the keys of every shard.
+			ShardedMatches matches = findBestMatches(shapeContext, numResults);
+			exchange.getResponseHeaders().set("X-Shards-Answered", matches.getNumShardsAnswered()+"/"+matches.getNumShards());
+			if(matches.getNumShardsAnswered() == 0){
+				MatchRequests.sendText(exchange, 504, "no shard answered within "+shardTimeoutMillis+" ms\n");
+				return;
+			}
+
+			StringBuilder response = new StringBuilder();
+			for(KeyMatch match : matches.getMatches()){
+				response.append(match).append('\n');
+			}
+			MatchRequests.sendText(exchange, 200, response.toString());
+
+		} catch (IllegalArgumentException e) {
+			MatchRequests.sendText(exchange, 400, e.getMessage()+"\n");
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			MatchRequests.sendText(exchange, 500, "unable to match key\n");
+		} finally {
+			matchPermits.release();
+			RequestContext.clear();
+		}
+	}
+
+
+
+	private static String readText(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = in.read(buffer)) != -1){
+			out.write(buffer, 0, read);
+		}
+		in.close();
+
+		return out.toString("UTF-8");
+	}
+
+
+
+	/** Coordinates shards on localhost.
+	 *
+	 * @param args the port, the shard timeout in milliseconds, and the /match URL of every shard's
+	 * worker, such as http://127.0.0.1:8081/match.
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 3){
+			System.out.println("usage: ShardCoordinator port shardTimeoutMillis shardUrl...");
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		long shardTimeoutMillis = Long.parseLong(args[1]);
+		ArrayList<URL> shards = new ArrayList<URL>();
+		for(int i=2; i<args.length; i++){
+			shards.add(new URL(args[i]));
+		}
+
+		ShardCoordinator coordinator = new ShardCoordinator(shards, shardTimeoutMillis,
+				KeyMatchingServer.DEFAULT_MAX_CONCURRENT_MATCHES);
+		coordinator.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+		System.out.println("Coordinating "+shards.size()+" shards on http://"+coordinator.getAddress().getHostString()
+				+":"+coordinator.getAddress().getPort()+"/match");
+	}
+
+
+}
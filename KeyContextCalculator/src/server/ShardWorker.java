@@ -0,0 +1,49 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+import contextCalculator.MultiResolutionShapeContext;
+import data.DataManager;
+
+/** Serves one shard of the key database to a ShardCoordinator. The database is split by key index,
+ * the shard holding the keys whose index modulo the number of shards is its own, so that the shards
+ * are the same size to within one key and the indices they answer with are the database's.
+ *
+ * Only the shard's keys are read into memory. The worker is a KeyMatchingServer, so it also answers
+ * photos and /health on its own.
+ */
+public class ShardWorker {
+
+
+	/** Serves a shard on localhost.
+	 *
+	 * @param args the port, the shard (from 0), the number of shards and optionally the most matches
+	 * run at once (default KeyMatchingServer.DEFAULT_MAX_CONCURRENT_MATCHES).
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 3){
+			System.out.println("usage: ShardWorker port shard numShards [maxConcurrentMatches]");
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		int shard = Integer.parseInt(args[1]);
+		int numShards = Integer.parseInt(args[2]);
+		int maxConcurrentMatches = (args.length > 3) ? Integer.parseInt(args[3])
+				: KeyMatchingServer.DEFAULT_MAX_CONCURRENT_MATCHES;
+		if(numShards < 1 || shard < 0 || shard >= numShards){
+			throw new IllegalArgumentException("shard must be from 0 to numShards-1");
+		}
+
+		ArrayList<MultiResolutionShapeContext> keyDatabase = DataManager.getKeyMultiResolutionShapeContexts(shard, numShards);
+		KeyMatchingServer server = new KeyMatchingServer(keyDatabase, maxConcurrentMatches);
+		server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+		System.out.println("Matching shard "+shard+" of "+numShards+" on http://"+server.getAddress().getHostString()
+				+":"+server.getAddress().getPort()+"/match");
+	}
+
+
+}
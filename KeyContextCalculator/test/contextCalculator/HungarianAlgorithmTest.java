@@ -0,0 +1,188 @@
+package contextCalculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/** Tests execute against trying every assignment, and executeBounded against execute.
+ */
+public class HungarianAlgorithmTest {
+
+
+	private static final double TOLERANCE = 1e-9;
+
+
+
+	@Test
+	public void executeFindsMinimumCostOnSquareMatrices(){
+		Random random = new Random(1);
+		for(int trial=0; trial<200; trial++){
+			int n = 1 + random.nextInt(7);
+			double[][] costMatrix = createCostMatrix(random, n, n);
+
+			int[] assignment = new HungarianAlgorithm(costMatrix).execute();
+
+			assertValid(costMatrix, assignment);
+			assertEquals(findMinimumCost(costMatrix), sumCosts(costMatrix, assignment), TOLERANCE);
+		}
+	}
+
+
+
+	@Test
+	public void executeFindsMinimumCostWhenRowsAndColumnsDiffer(){
+		Random random = new Random(2);
+		for(int trial=0; trial<200; trial++){
+			int rows = 1 + random.nextInt(7);
+			int cols = 1 + random.nextInt(7);
+			if(rows == cols){
+				cols++;
+			}
+			double[][] costMatrix = createCostMatrix(random, rows, cols);
+
+			int[] assignment = new HungarianAlgorithm(costMatrix).execute();
+
+			assertValid(costMatrix, assignment);
+			assertEquals(findMinimumCost(costMatrix), sumCosts(costMatrix, assignment), TOLERANCE);
+		}
+	}
+
+
+
+	/** At or above the minimum cost, executeBounded must solve the matrix as execute does. Below it,
+	 * it may give up, but must not return a worse assignment.
+	 */
+	@Test
+	public void executeBoundedAgreesWithExecute(){
+		Random random = new Random(3);
+		double[] fractions = {0, 0.5, 0.99, 1, 1.01, 2};
+		for(int trial=0; trial<300; trial++){
+			int rows = 1 + random.nextInt(40);
+			int cols = (trial % 2 == 0) ? rows : 1 + random.nextInt(40);
+			double[][] costMatrix = createCostMatrix(random, rows, cols);
+			double minimumCost = sumCosts(costMatrix, new HungarianAlgorithm(costMatrix).execute());
+
+			for(double fraction : fractions){
+				double threshold = minimumCost * fraction;
+				int[] assignment = new HungarianAlgorithm(costMatrix).executeBounded(threshold);
+
+				if(fraction >= 1){
+					assertNotNull(assignment, rows+"x"+cols+" pruned at "+fraction+" of its minimum cost");
+				}
+				if(assignment != null){
+					assertValid(costMatrix, assignment);
+					assertEquals(minimumCost, sumCosts(costMatrix, assignment), TOLERANCE);
+				}
+			}
+			assertNotNull(new HungarianAlgorithm(costMatrix).executeBounded(Double.POSITIVE_INFINITY));
+		}
+	}
+
+
+
+	@Test
+	public void lowerBoundNeverExceedsMinimumCost(){
+		Random random = new Random(4);
+		for(int trial=0; trial<100; trial++){
+			int rows = 1 + random.nextInt(7);
+			int cols = 1 + random.nextInt(7);
+			double[][] costMatrix = createCostMatrix(random, rows, cols);
+
+			HungarianAlgorithm hungarian = new HungarianAlgorithm(costMatrix);
+			hungarian.execute();
+
+			assertTrue(hungarian.getLowerBound() <= findMinimumCost(costMatrix) + TOLERANCE);
+		}
+	}
+
+
+
+	private static double[][] createCostMatrix(Random random, int rows, int cols){
+		double[][] costMatrix = new double[rows][cols];
+		for(int i=0; i<rows; i++){
+			for(int j=0; j<cols; j++){
+				costMatrix[i][j] = random.nextDouble() * 10;
+			}
+		}
+
+		return costMatrix;
+	}
+
+
+
+	/** Every column is assigned at most once, and min(rows, cols) rows are assigned.
+	 */
+	private static void assertValid(double[][] costMatrix, int[] assignment){
+		int cols = costMatrix[0].length;
+		assertEquals(costMatrix.length, assignment.length);
+
+		boolean[] isAssigned = new boolean[cols];
+		int numAssigned = 0;
+		for(int job : assignment){
+			if(job >= 0){
+				assertTrue(job < cols && !isAssigned[job]);
+				isAssigned[job] = true;
+				numAssigned++;
+			}
+		}
+		assertEquals(Math.min(costMatrix.length, cols), numAssigned);
+	}
+
+
+
+	private static double sumCosts(double[][] costMatrix, int[] assignment){
+		double cost = 0;
+		for(int i=0; i<assignment.length; i++){
+			if(assignment[i] >= 0){
+				cost += costMatrix[i][assignment[i]];
+			}
+		}
+
+		return cost;
+	}
+
+
+
+	/** Tries every assignment of the smaller side to the larger.
+	 */
+	private static double findMinimumCost(double[][] costMatrix){
+		int rows = costMatrix.length;
+		int cols = costMatrix[0].length;
+		if(rows <= cols){
+			return findMinimumCost(costMatrix, 0, new boolean[cols]);
+		}
+
+		double[][] transposed = new double[cols][rows];
+		for(int i=0; i<rows; i++){
+			for(int j=0; j<cols; j++){
+				transposed[j][i] = costMatrix[i][j];
+			}
+		}
+		return findMinimumCost(transposed, 0, new boolean[rows]);
+	}
+
+
+
+	private static double findMinimumCost(double[][] costMatrix, int row, boolean[] isUsed){
+		if(row == costMatrix.length){
+			return 0;
+		}
+
+		double minimum = Double.POSITIVE_INFINITY;
+		for(int j=0; j<isUsed.length; j++){
+			if(!isUsed[j]){
+				isUsed[j] = true;
+				minimum = Math.min(minimum, costMatrix[row][j] + findMinimumCost(costMatrix, row+1, isUsed));
+				isUsed[j] = false;
+			}
+		}
+
+		return minimum;
+	}
+
+
+}
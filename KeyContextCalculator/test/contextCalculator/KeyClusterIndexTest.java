@@ -0,0 +1,51 @@
+package contextCalculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/** Tests that keys and queries without points are left out of the index rather than failing it.
+ */
+public class KeyClusterIndexTest {
+
+
+	@Test
+	public void shapeContextsWithoutPointsHaveNoCandidates(){
+		Random random = new Random(1);
+		ArrayList<int[][][]> keyDatabase = new ArrayList<int[][][]>();
+		for(int i=0; i<10; i++){
+			keyDatabase.add((i == 3) ? new int[0][0][0] : createShapeContext(random, 10));
+		}
+		keyDatabase.add(null);
+
+		KeyClusterIndex index = KeyClusterIndex.build(keyDatabase, 3, 10, 1);
+		index.insert(11, new int[0][0][0]);
+
+		assertTrue(index.findCandidates(new int[0][0][0], 3).isEmpty());
+		assertTrue(index.findBestMatches(new int[0][0][0], keyDatabase, 3, 2).isEmpty());
+		ArrayList<Integer> candidates = index.findCandidates(createShapeContext(random, 10), 3);
+		assertEquals(9, candidates.size());
+		assertTrue(!candidates.contains(3) && !candidates.contains(11));
+	}
+
+
+
+	private static int[][][] createShapeContext(Random random, int numPoints){
+		int[][][] shapeContext = new int[numPoints][5][12];
+		for(int[][] histogram : shapeContext){
+			for(int[] bins : histogram){
+				for(int i=0; i<bins.length; i++){
+					bins[i] = random.nextInt(4);
+				}
+			}
+		}
+
+		return shapeContext;
+	}
+
+
+}
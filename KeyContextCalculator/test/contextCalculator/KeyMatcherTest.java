@@ -0,0 +1,203 @@
+package contextCalculator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+/** Tests that matching with thresholds finds the same best keys as matching every key in full.
+ */
+public class KeyMatcherTest {
+
+
+	private static final double TOLERANCE = 1e-9;
+
+
+
+	@Test
+	public void findBestMatchesAgreesWithMatchingEveryKey(){
+		Random random = new Random(1);
+		for(int trial=0; trial<20; trial++){
+			int[][][] original = createShapeContext(random, 5 + random.nextInt(20));
+			ArrayList<int[][][]> keyDatabase = createDatabase(random, 30);
+			int k = 1 + random.nextInt(5);
+
+			ArrayList<KeyMatch> expected = new ArrayList<KeyMatch>();
+			for(int i=0; i<keyDatabase.size(); i++){
+				expected.add(new KeyMatch(i, KeyMatcher.calculateMinCostMatrix(original, keyDatabase.get(i))));
+			}
+
+			assertSameMatches(findBest(expected, k), KeyMatcher.findBestMatches(original, keyDatabase, k));
+		}
+	}
+
+
+
+	/** Dual-profile matching skips the second profile of keys the first rules out, which must not
+	 * change the best keys from those of the summed full costs.
+	 */
+	@Test
+	public void findBestFusedMatchesAgreesWithSummingEveryKey(){
+		Random random = new Random(2);
+		for(int trial=0; trial<20; trial++){
+			int[][][] firstOriginal = createShapeContext(random, 5 + random.nextInt(20));
+			int[][][] secondOriginal = createShapeContext(random, 5 + random.nextInt(20));
+			ArrayList<int[][][]> firstDatabase = createDatabase(random, 30);
+			ArrayList<int[][][]> secondDatabase = createDatabase(random, 30);
+			int k = 1 + random.nextInt(5);
+
+			ArrayList<Integer> order = new ArrayList<Integer>();
+			ArrayList<KeyMatch> expected = new ArrayList<KeyMatch>();
+			for(int i=0; i<firstDatabase.size(); i++){
+				order.add(i);
+				expected.add(new KeyMatch(i, KeyMatcher.calculateMinCostMatrix(firstOriginal, firstDatabase.get(i))
+						+ KeyMatcher.calculateMinCostMatrix(secondOriginal, secondDatabase.get(i))));
+			}
+
+			assertSameMatches(findBest(expected, k), KeyMatcher.findBestFusedMatches(firstOriginal, secondOriginal,
+					firstDatabase, secondDatabase, order, k));
+		}
+	}
+
+
+
+	/** A batch, whether split over a pool or run on the calling thread, must give each query the
+	 * matches it gets on its own.
+	 */
+	@Test
+	public void batchedFindBestMatchesAgreesWithEachQuery(){
+		Random random = new Random(3);
+		ArrayList<MultiResolutionShapeContext> keyDatabase = new ArrayList<MultiResolutionShapeContext>();
+		for(int i=0; i<40; i++){
+			//Some keys are missing, and some have no coarse level, so are only matched at the fine level.
+			keyDatabase.add((i % 13 == 5) ? null : new MultiResolutionShapeContext(
+					(i % 7 == 3) ? null : createShapeContext(random, 5 + random.nextInt(10)),
+					createShapeContext(random, 15 + random.nextInt(15))));
+		}
+		ArrayList<MultiResolutionShapeContext> originals = new ArrayList<MultiResolutionShapeContext>();
+		for(int q=0; q<6; q++){
+			originals.add(new MultiResolutionShapeContext((q == 2) ? null : createShapeContext(random, 5),
+					createShapeContext(random, 15)));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			for(int numTasks=1; numTasks<=4; numTasks++){
+				ArrayList<ArrayList<KeyMatch>> pooled = KeyMatcher.findBestMatches(originals, keyDatabase, 5, 3, pool, numTasks);
+				ArrayList<ArrayList<KeyMatch>> inline = KeyMatcher.findBestMatches(originals, keyDatabase, 5, 3, null, numTasks);
+				for(int q=0; q<originals.size(); q++){
+					ArrayList<KeyMatch> expected = KeyMatcher.findBestMatches(originals.get(q), keyDatabase, 5, 3);
+					assertSameMatches(expected, pooled.get(q));
+					assertSameMatches(expected, inline.get(q));
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+
+
+	/** Asking for more keys than are refined after the coarse screen must still rank k of them.
+	 */
+	@Test
+	public void findBestMatchesReturnsMoreThanNumCandidates(){
+		Random random = new Random(4);
+		ArrayList<MultiResolutionShapeContext> keyDatabase = new ArrayList<MultiResolutionShapeContext>();
+		for(int i=0; i<20; i++){
+			keyDatabase.add(new MultiResolutionShapeContext(createShapeContext(random, 5), createShapeContext(random, 15)));
+		}
+		MultiResolutionShapeContext original = new MultiResolutionShapeContext(createShapeContext(random, 5),
+				createShapeContext(random, 15));
+		ArrayList<MultiResolutionShapeContext> originals = new ArrayList<MultiResolutionShapeContext>();
+		originals.add(original);
+
+		assertEquals(12, KeyMatcher.findBestMatches(original, keyDatabase, 5, 12).size());
+		assertEquals(12, KeyMatcher.findBestMatches(originals, keyDatabase, 5, 12, null, 2).get(0).size());
+		assertEquals(20, KeyMatcher.findBestMatches(original, keyDatabase, 5, 30).size());
+	}
+
+
+
+	/** The original matching skips missing keys, rather than failing on them or returning one.
+	 */
+	@Test
+	public void matchKeySkipsMissingKeys(){
+		Random random = new Random(5);
+		int[][][] original = createShapeContext(random, 10);
+		ArrayList<int[][][]> keyDatabase = new ArrayList<int[][][]>();
+		keyDatabase.add(null);
+		keyDatabase.add(createShapeContext(random, 10));
+		keyDatabase.add(null);
+		keyDatabase.add(original);
+
+		assertEquals(3, KeyMatcher.matchKey(original, keyDatabase));
+		keyDatabase.remove(3);
+		assertEquals(1, KeyMatcher.matchKey(original, keyDatabase));
+		keyDatabase.remove(1);
+		assertEquals(-1, KeyMatcher.matchKey(original, keyDatabase));
+	}
+
+
+
+	/** Keys of 1 to 30 points, so that some have fewer points than the original and some more.
+	 */
+	private static ArrayList<int[][][]> createDatabase(Random random, int numKeys){
+		ArrayList<int[][][]> keyDatabase = new ArrayList<int[][][]>();
+		for(int i=0; i<numKeys; i++){
+			keyDatabase.add(createShapeContext(random, 1 + random.nextInt(30)));
+		}
+
+		return keyDatabase;
+	}
+
+
+
+	private static int[][][] createShapeContext(Random random, int numPoints){
+		int[][][] shapeContext = new int[numPoints][5][12];
+		for(int[][] histogram : shapeContext){
+			for(int[] bins : histogram){
+				for(int i=0; i<bins.length; i++){
+					bins[i] = random.nextInt(4);
+				}
+			}
+		}
+
+		return shapeContext;
+	}
+
+
+
+	/** The k lowest costs, ties going to the lower index.
+	 */
+	private static ArrayList<KeyMatch> findBest(ArrayList<KeyMatch> matches, int k){
+		ArrayList<KeyMatch> sorted = new ArrayList<KeyMatch>(matches);
+		Collections.sort(sorted, new Comparator<KeyMatch>(){
+			@Override
+			public int compare(KeyMatch a, KeyMatch b){
+				int byCost = Double.compare(a.getCost(), b.getCost());
+				return (byCost != 0) ? byCost : Integer.compare(a.getKeyIndex(), b.getKeyIndex());
+			}
+		});
+
+		return new ArrayList<KeyMatch>(sorted.subList(0, Math.min(k, sorted.size())));
+	}
+
+
+
+	private static void assertSameMatches(ArrayList<KeyMatch> expected, ArrayList<KeyMatch> actual){
+		assertEquals(expected.size(), actual.size());
+		for(int i=0; i<expected.size(); i++){
+			assertEquals(expected.get(i).getKeyIndex(), actual.get(i).getKeyIndex(), "match "+i);
+			assertEquals(expected.get(i).getCost(), actual.get(i).getCost(), TOLERANCE, "match "+i);
+		}
+	}
+
+
+}
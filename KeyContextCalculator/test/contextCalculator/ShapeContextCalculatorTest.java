@@ -0,0 +1,103 @@
+package contextCalculator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+/** Tests that the trig-free histograms are exactly those of the original calculation.
+ */
+public class ShapeContextCalculatorTest {
+
+
+	private static final ShapeContextCalculator[] CALCULATORS = {
+		ShapeContextCalculator.DEFAULT,
+		new ShapeContextCalculator(50, 8, 4, 5),
+		new ShapeContextCalculator(50, 7, 6, 20),
+		new ShapeContextCalculator(50, 1, 1, 10),
+	};
+
+
+
+	@Test
+	public void randomPointsMatchReference(){
+		Random random = new Random(1);
+		for(int trial=0; trial<20; trial++){
+			Point[] points = new Point[2 + random.nextInt(150)];
+			for(int i=0; i<points.length; i++){
+				points[i] = new Point(random.nextInt(2000) - 1000, random.nextInt(2000) - 1000);
+			}
+
+			for(ShapeContextCalculator calculator : CALCULATORS){
+				assertSameHistograms(calculator, points);
+			}
+		}
+	}
+
+
+
+	/** Points on a small grid put many pairs exactly on radial bin boundaries, on the axes and
+	 * diagonals, at equal distances, and on top of each other.
+	 */
+	@Test
+	public void gridPointsMatchReference(){
+		ArrayList<Point> grid = new ArrayList<Point>();
+		for(int x=-4; x<=4; x++){
+			for(int y=-4; y<=4; y++){
+				grid.add(new Point(x*3, y*3));
+			}
+		}
+		grid.add(new Point(0, 0));
+		grid.add(new Point(3, 3));
+		Point[] points = grid.toArray(new Point[0]);
+
+		for(ShapeContextCalculator calculator : CALCULATORS){
+			assertSameHistograms(calculator, points);
+		}
+		//Two points, and every point the same.
+		Point[] same = new Point[5];
+		Arrays.fill(same, new Point(7, -2));
+		for(ShapeContextCalculator calculator : CALCULATORS){
+			assertSameHistograms(calculator, new Point[]{new Point(0, 0), new Point(10, 10)});
+			assertSameHistograms(calculator, same);
+		}
+	}
+
+
+
+	/** Enough points to be split between tasks, which must not change any histogram.
+	 */
+	@Test
+	public void parallelCalculationMatchesReference(){
+		Random random = new Random(2);
+		int numPoints = 600;
+		ArrayList<Point> edges = new ArrayList<Point>();
+		for(int i=0; i<numPoints; i++){
+			edges.add(new Point(random.nextInt(400), random.nextInt(400)));
+		}
+		ShapeContextCalculator calculator = new ShapeContextCalculator(numPoints);
+
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			int[][][] expected = calculator.calculateLogPolarHistogramsReference(edges.toArray(new Point[0]));
+			assertArrayEquals(expected, calculator.calculate(edges, pool));
+			assertArrayEquals(expected, calculator.calculate(edges, null));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+
+
+	private static void assertSameHistograms(ShapeContextCalculator calculator, Point[] points){
+		assertArrayEquals(calculator.calculateLogPolarHistogramsReference(points), calculator.calculate(points),
+				points.length+" points, "+calculator.getNumRadialBins()+"x"+calculator.getNumLogBins()+" bins");
+	}
+
+
+}
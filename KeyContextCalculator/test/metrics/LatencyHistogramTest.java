@@ -0,0 +1,89 @@
+package metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/** Tests that every value falls in the bucket its bounds say, and that percentiles are within a
+ * bucket's width of the exact ones.
+ */
+public class LatencyHistogramTest {
+
+
+	private static final double[] PERCENTILES = {0, 1, 10, 50, 90, 99, 99.9, 100};
+
+
+
+	/** Each bucket's lowest and highest values fall in it, and the next value in the next bucket,
+	 * up to the top bucket, which ends at Long.MAX_VALUE.
+	 */
+	@Test
+	public void bucketBoundsRoundTrip(){
+		int topBucket = LatencyHistogram.findBucket(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.findHighestValue(topBucket));
+
+		long lowest = 0;
+		for(int bucket=0; bucket<=topBucket; bucket++){
+			long highest = LatencyHistogram.findHighestValue(bucket);
+			assertEquals(bucket, LatencyHistogram.findBucket(lowest), "lowest value of bucket "+bucket);
+			assertEquals(bucket, LatencyHistogram.findBucket(highest), "highest value of bucket "+bucket);
+			//A bucket is at most 1/32 of its lowest value wide, apart from the first 64 of width 1.
+			long width = highest - lowest + 1;
+			assertTrue(width == 1 || width*32 <= lowest, "width of bucket "+bucket);
+			if(bucket < topBucket){
+				assertEquals(bucket+1, LatencyHistogram.findBucket(highest+1), "value after bucket "+bucket);
+			}
+			lowest = highest + 1;
+		}
+	}
+
+
+
+	@Test
+	public void percentilesAreWithinABucketOfExact(){
+		Random random = new Random(1);
+		for(int trial=0; trial<10; trial++){
+			LatencyHistogram histogram = new LatencyHistogram();
+			long[] values = new long[1 + random.nextInt(5000)];
+			for(int i=0; i<values.length; i++){
+				//Spread over many powers of two, from nanoseconds to minutes.
+				values[i] = (long)Math.pow(2, random.nextDouble()*36);
+				histogram.record(values[i]);
+			}
+			Arrays.sort(values);
+
+			for(double percentile : PERCENTILES){
+				long exact = values[(int)Math.max(0, Math.ceil(percentile / 100 * values.length) - 1)];
+				long reported = histogram.getValueAtPercentile(percentile);
+				assertTrue(reported >= exact && reported <= exact + exact/32,
+						"percentile "+percentile+": "+reported+" for exactly "+exact);
+			}
+			assertEquals(values[values.length-1], histogram.getValueAtPercentile(100));
+			assertEquals(values.length, histogram.getCount());
+		}
+	}
+
+
+
+	@Test
+	public void extremeValuesAreRecorded(){
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(50));
+
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+		assertEquals(Long.MAX_VALUE, histogram.getMax());
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(100));
+	}
+
+
+}
@@ -0,0 +1,281 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.awt.Point;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import contextCalculator.KeyMatch;
+import contextCalculator.MultiResolutionShapeContext;
+
+/** Tests the disk tier's file formats, that a file which cannot be read is a miss, and that the disk
+ * tier is kept to its size and to the current versions.
+ */
+public class MatchCacheTest {
+
+
+	@TempDir
+	File directory;
+
+
+
+	@Test
+	public void descriptorRoundTrips(){
+		MultiResolutionShapeContext shapeContext = createShapeContext(new Random(1), 4, 7);
+		File file = new File(directory, "descriptor.bin");
+
+		MatchCache.writeDescriptor(file, shapeContext);
+		MultiResolutionShapeContext read = MatchCache.readDescriptor(file);
+
+		assertNotNull(read);
+		assertArrayEquals(shapeContext.getCoarse(), read.getCoarse());
+		assertArrayEquals(shapeContext.getFine(), read.getFine());
+		assertArrayEquals(shapeContext.getFinePoints(), read.getFinePoints());
+	}
+
+
+
+	@Test
+	public void descriptorWithoutCoarseLevelOrPointsRoundTrips(){
+		MultiResolutionShapeContext shapeContext = new MultiResolutionShapeContext(null, new int[0][0][0]);
+		File file = new File(directory, "descriptor.bin");
+
+		MatchCache.writeDescriptor(file, shapeContext);
+		MultiResolutionShapeContext read = MatchCache.readDescriptor(file);
+
+		assertNotNull(read);
+		assertNull(read.getCoarse());
+		assertEquals(0, read.getFine().length);
+		assertNull(read.getFinePoints());
+	}
+
+
+
+	@Test
+	public void truncatedDescriptorIsAMissAndIsDeleted() throws IOException {
+		File file = new File(directory, "descriptor.bin");
+		MatchCache.writeDescriptor(file, createShapeContext(new Random(2), 3, 5));
+		byte[] bytes = Files.readAllBytes(file.toPath());
+
+		for(int length=0; length<bytes.length; length++){
+			writeBytes(file, Arrays.copyOf(bytes, length));
+
+			assertNull(MatchCache.readDescriptor(file), "truncated to "+length+" bytes");
+			assertFalse(file.exists(), "truncated to "+length+" bytes");
+		}
+	}
+
+
+
+	@Test
+	public void oversizedDimensionsAreRejectedBeforeAllocating() throws IOException {
+		//A few bytes claiming Integer.MAX_VALUE cubed frequencies, or more points than there are bytes.
+		assertRejected(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		assertRejected(1000, 12, 5);
+		assertRejected(5, 0, 12);
+		assertRejected(5, -1, 12);
+	}
+
+
+
+	@Test
+	public void oversizedDescriptorFileIsAMissAndIsDeleted() throws IOException {
+		File file = new File(directory, "descriptor.bin");
+		writeBytes(file, createHeader(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+
+		assertNull(MatchCache.readDescriptor(file));
+		assertFalse(file.exists());
+	}
+
+
+
+	@Test
+	public void resultsRoundTrip(){
+		ArrayList<KeyMatch> matches = new ArrayList<KeyMatch>();
+		matches.add(new KeyMatch(3, 0.25));
+		matches.add(new KeyMatch(0, 1.5));
+		File file = new File(directory, "results.csv");
+
+		MatchCache.writeResults(file, matches);
+		ArrayList<KeyMatch> read = MatchCache.readResults(file);
+
+		assertNotNull(read);
+		assertEquals(matches.size(), read.size());
+		for(int i=0; i<matches.size(); i++){
+			assertEquals(matches.get(i).getKeyIndex(), read.get(i).getKeyIndex());
+			assertEquals(matches.get(i).getCost(), read.get(i).getCost());
+		}
+	}
+
+
+
+	@Test
+	public void corruptResultsAreAMissAndAreDeleted() throws IOException {
+		String[] contents = {"0,1.5\n1,2.5,3\n", "0,1.5\n1\n", "0,not a cost\n", "0,1.5\n\n", "0,1.5\n,2.5\n"};
+		File file = new File(directory, "results.csv");
+
+		for(String content : contents){
+			writeBytes(file, content.getBytes("UTF-8"));
+
+			assertNull(MatchCache.readResults(file), content);
+			assertFalse(file.exists(), content);
+		}
+	}
+
+
+
+	@Test
+	public void missingFilesAreAMiss(){
+		assertNull(MatchCache.readDescriptor(new File(directory, "missing.bin")));
+		assertNull(MatchCache.readResults(new File(directory, "missing.csv")));
+	}
+
+
+
+	@Test
+	public void diskTierServesAnotherCache(){
+		MultiResolutionShapeContext shapeContext = createShapeContext(new Random(3), 2, 6);
+		ArrayList<KeyMatch> matches = new ArrayList<KeyMatch>();
+		matches.add(new KeyMatch(1, 0.5));
+
+		MatchCache cache = new MatchCache(4, 4, directory);
+		cache.putDescriptor("image", "pipeline", shapeContext);
+		cache.putResults("descriptor", "database", "screened", 1, matches);
+		MatchCache restarted = new MatchCache(4, 4, directory);
+
+		assertArrayEquals(shapeContext.getFine(), restarted.getDescriptor("image", "pipeline").getFine());
+		assertNull(restarted.getDescriptor("image", "other pipeline"));
+		assertEquals(1, restarted.getResults("descriptor", "database", "screened", 1).get(0).getKeyIndex());
+		assertNull(restarted.getResults("descriptor", "other database", "screened", 1));
+		assertNull(restarted.getResults("descriptor", "database", "anytime", 1));
+		assertNull(cache.getResults("descriptor", "database", "anytime", 1));
+	}
+
+
+
+	@Test
+	public void diskTierKeepsAboutItsMaximum(){
+		ArrayList<KeyMatch> matches = new ArrayList<KeyMatch>();
+		matches.add(new KeyMatch(1, 0.5));
+
+		MatchCache cache = new MatchCache(0, 0, directory, 8, 8);
+		for(int i=0; i<20; i++){
+			cache.putResults("descriptor"+i, "database", "screened", 1, matches);
+		}
+
+		assertTrue(new File(directory, "results").list().length <= 8);
+		assertNotNull(cache.getResults("descriptor19", "database", "screened", 1));
+	}
+
+
+
+	@Test
+	public void retainDropsOtherVersions(){
+		MultiResolutionShapeContext shapeContext = createShapeContext(new Random(4), 2, 6);
+		ArrayList<KeyMatch> matches = new ArrayList<KeyMatch>();
+		matches.add(new KeyMatch(1, 0.5));
+
+		MatchCache cache = new MatchCache(4, 4, directory);
+		cache.putDescriptor("image", "old pipeline", shapeContext);
+		cache.putDescriptor("image", "pipeline", shapeContext);
+		cache.putResults("descriptor", "old database", "screened", 1, matches);
+		cache.putResults("descriptor", "database", "screened", 1, matches);
+		cache.retainDescriptors("pipeline");
+		cache.retainResults("database");
+		MatchCache restarted = new MatchCache(4, 4, directory);
+
+		assertNull(cache.getDescriptor("image", "old pipeline"));
+		assertNull(restarted.getDescriptor("image", "old pipeline"));
+		assertNotNull(restarted.getDescriptor("image", "pipeline"));
+		assertNull(cache.getResults("descriptor", "old database", "screened", 1));
+		assertNull(restarted.getResults("descriptor", "old database", "screened", 1));
+		assertNotNull(restarted.getResults("descriptor", "database", "screened", 1));
+	}
+
+
+
+	private static MultiResolutionShapeContext createShapeContext(Random random, int numCoarsePoints, int numFinePoints){
+		Point[] points = new Point[numFinePoints];
+		for(int i=0; i<numFinePoints; i++){
+			points[i] = new Point(random.nextInt(1000), random.nextInt(1000));
+		}
+
+		return new MultiResolutionShapeContext(createLevel(random, numCoarsePoints, 2, 6),
+				createLevel(random, numFinePoints, 5, 12), points);
+	}
+
+
+
+	private static int[][][] createLevel(Random random, int numPoints, int numRadialBins, int numAngularBins){
+		int[][][] level = new int[numPoints][numRadialBins][numAngularBins];
+		for(int[][] histogram : level){
+			for(int[] bins : histogram){
+				for(int i=0; i<bins.length; i++){
+					bins[i] = random.nextInt(10);
+				}
+			}
+		}
+
+		return level;
+	}
+
+
+
+	/** The dimensions of a coarse level, with no frequencies after them.
+	 */
+	private static byte[] createHeader(int numPoints, int numRadialBins, int numAngularBins) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(numPoints);
+		out.writeInt(numRadialBins);
+		out.writeInt(numAngularBins);
+		out.flush();
+
+		return bytes.toByteArray();
+	}
+
+
+
+	private static void assertRejected(int numPoints, int numRadialBins, int numAngularBins) throws IOException {
+		byte[] bytes = createHeader(numPoints, numRadialBins, numAngularBins);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		try {
+			MatchCache.readDescriptor(in, bytes.length);
+			fail("read "+numPoints+"x"+numRadialBins+"x"+numAngularBins+" from "+bytes.length+" bytes");
+		} catch (IOException e) {
+			//Rejected, as it should be.
+		}
+	}
+
+
+
+	private static void writeBytes(File file, byte[] bytes) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+
+}
@@ -0,0 +1,35 @@
+package benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs the benchmarks with JMH's GC profiler, so that the allocation rate of each benchmark
+ * (gc.alloc.rate and gc.alloc.rate.norm, the bytes allocated per operation) is reported next to its
+ * time. Takes the same arguments as JMH's own main class.
+ */
+public class BenchmarkMain {
+
+
+	public static void main(String[] args) throws RunnerException, IOException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		if(commandLine.shouldHelp() || commandLine.shouldList()){
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		Options options = new OptionsBuilder()
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+
+}
@@ -0,0 +1,266 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import contextCalculator.KeyMatch;
+import contextCalculator.KeyMatcher;
+import contextCalculator.MultiResolutionShapeContext;
+import data.DataManager;
+import data.SyntheticKeyGenerator;
+import metrics.LatencyHistogram;
+
+/** Load test of matching against a synthetic database, for sizes the checked in two key database
+ * cannot show. It generates numKeys keys with SyntheticKeyGenerator, saves them and reads them back
+ * with DataManager's loaders, then replays a mix of queries against KeyMatcher from numThreads
+ * threads, and reports for each phase its throughput, the p50 and p99 latency of each kind of query,
+ * and the heap it used.
+ *
+ * The query mix is photoPercent% photos of keys in the database, which are processed from the photo
+ * as the server does, unknownPercent% shape contexts of keys not in the database, whose matching
+ * cannot stop early, and the rest shape contexts of keys in the database, from other photos of them.
+ * Every query is made before the replay starts, so only the pipeline and the matching are timed. The
+ * pipeline's debug lines are printed among the report's.
+ *
+ * Arguments: numKeys numQueries [numThreads [photoPercent [unknownPercent [seed]]]]
+ * The databases are saved to DataManager's database directory under the working directory, as
+ * SyntheticKeyGenerator names them.
+ */
+public class LoadTestDriver {
+
+
+	public static final int DEFAULT_PHOTO_PERCENT = 20;
+	public static final int DEFAULT_UNKNOWN_PERCENT = 10;
+	public static final int NUM_RESULTS = 5;
+
+	//Fraction of the queries run first, untimed, so that the replay measures compiled code.
+	private static final double WARM_UP_FRACTION = 0.2;
+
+	private enum QueryType {
+		PHOTO("photo"), KNOWN("known"), UNKNOWN("unknown");
+
+		private final String displayName;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final AtomicLong numCorrect = new AtomicLong();
+
+		QueryType(String displayName){
+			this.displayName = displayName;
+		}
+	}
+
+
+
+	/** A query of the mix, and the key it is of.
+	 */
+	private static class Query {
+		private final QueryType type;
+		private final int keyIndex;
+		private final BufferedImage photo;
+		private final MultiResolutionShapeContext shapeContext;
+
+		Query(QueryType type, int keyIndex, BufferedImage photo, MultiResolutionShapeContext shapeContext){
+			this.type = type;
+			this.keyIndex = keyIndex;
+			this.photo = photo;
+			this.shapeContext = shapeContext;
+		}
+	}
+
+
+
+	public static void main(String[] args) throws InterruptedException, ExecutionException {
+		if(args.length < 2 || Integer.parseInt(args[0]) < 1){
+			System.out.println("Arguments: numKeys numQueries [numThreads [photoPercent [unknownPercent [seed]]]]");
+			return;
+		}
+		int numKeys = Integer.parseInt(args[0]);
+		int numQueries = Integer.parseInt(args[1]);
+		int numThreads = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+		int photoPercent = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_PHOTO_PERCENT;
+		int unknownPercent = (args.length > 4) ? Integer.parseInt(args[4]) : DEFAULT_UNKNOWN_PERCENT;
+		long seed = (args.length > 5) ? Long.parseLong(args[5]) : SyntheticKeyGenerator.DEFAULT_SEED;
+		SyntheticKeyGenerator generator = new SyntheticKeyGenerator(seed);
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+
+		//1. Generate the database in memory.
+		long heapBefore = usedHeapAfterGc();
+		resetPeakHeap();
+		long start = System.nanoTime();
+		ArrayList<MultiResolutionShapeContext> generated = generator.generateDatabase(numKeys, pool);
+		report("generate", numKeys, "keys", System.nanoTime() - start, heapBefore);
+		long heapPerKey = (usedHeapAfterGc() - heapBefore)/Math.max(1, numKeys);
+		System.out.println(String.format("  database heap: %d KB per key", heapPerKey/1024));
+
+		//2. Save it, and read it back as the servers do.
+		SyntheticKeyGenerator.saveDatabase(generated);
+		File fineDatabase = new File(DataManager.rawDatabasePath
+				+SyntheticKeyGenerator.databaseName(DataManager.shapeContextDatabaseName));
+		System.out.println(String.format("  fine database file: %.1f MB", fineDatabase.length()/1e6));
+		generated = null;
+
+		heapBefore = usedHeapAfterGc();
+		resetPeakHeap();
+		start = System.nanoTime();
+		ArrayList<MultiResolutionShapeContext> keyDatabase = DataManager.getKeyMultiResolutionShapeContexts(
+				SyntheticKeyGenerator.databaseName(DataManager.shapeContextDatabaseName),
+				SyntheticKeyGenerator.databaseName(DataManager.coarseShapeContextDatabaseName),
+				SyntheticKeyGenerator.databaseName(DataManager.pointDatabaseName));
+		report("load", keyDatabase.size(), "keys", System.nanoTime() - start, heapBefore);
+
+		//3. Make the queries: photos of known keys, and the shape contexts of other photos of known
+		//and of unknown keys. Unknown keys are those after the database's.
+		Random random = new Random(seed);
+		final ArrayList<Query> queries = new ArrayList<Query>();
+		int warmUp = (int)(numQueries*WARM_UP_FRACTION);
+		ArrayList<Future<Query>> made = new ArrayList<Future<Query>>();
+		for(int i=0; i<warmUp + numQueries; i++){
+			int percent = random.nextInt(100);
+			final QueryType type = (percent < photoPercent) ? QueryType.PHOTO
+					: (percent < photoPercent + unknownPercent) ? QueryType.UNKNOWN : QueryType.KNOWN;
+			final int keyIndex = (type == QueryType.UNKNOWN) ? numKeys + i : random.nextInt(numKeys);
+			final int variant = i;
+			made.add(pool.submit(new Callable<Query>(){
+				public Query call(){
+					BufferedImage photo = generator.renderPhoto(keyIndex, variant);
+					MultiResolutionShapeContext shapeContext = (type == QueryType.PHOTO) ? null
+							: SyntheticKeyGenerator.calculateShapeContext(photo);
+					return new Query(type, keyIndex, (type == QueryType.PHOTO) ? photo : null, shapeContext);
+				}
+			}));
+		}
+		for(Future<Query> query : made){
+			queries.add(query.get());
+		}
+		pool.shutdown();
+
+		//4. Replay them, the warm up first.
+		ExecutorService clients = Executors.newFixedThreadPool(numThreads);
+		replay(clients, queries.subList(0, warmUp), keyDatabase);
+		for(QueryType type : QueryType.values()){
+			type.latency.reset();
+			type.numCorrect.set(0);
+		}
+
+		heapBefore = usedHeapAfterGc();
+		resetPeakHeap();
+		long[] gcBefore = gcTotals();
+		start = System.nanoTime();
+		replay(clients, queries.subList(warmUp, queries.size()), keyDatabase);
+		long elapsed = System.nanoTime() - start;
+		long[] gcAfter = gcTotals();
+		clients.shutdown();
+
+		report("match", numQueries, "queries", elapsed, heapBefore);
+		System.out.println(String.format("  gc: %d collections, %d ms", gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]));
+		System.out.println(String.format("  %-10s %8s %10s %10s %10s %9s", "query", "count", "p50_ms", "p99_ms",
+				"max_ms", "top1"));
+		for(QueryType type : QueryType.values()){
+			long count = type.latency.getCount();
+			System.out.println(String.format("  %-10s %8d %10.2f %10.2f %10.2f %9s", type.displayName, count,
+					type.latency.getValueAtPercentile(50)/1e6, type.latency.getValueAtPercentile(99)/1e6,
+					type.latency.getMax()/1e6, (type == QueryType.UNKNOWN || count == 0) ? "-"
+							: String.format("%.1f%%", 100.0*type.numCorrect.get()/count)));
+		}
+	}
+
+
+
+	/** Matches every query on the clients' threads, recording each one's latency by its type.
+	 */
+	private static void replay(ExecutorService clients, List<Query> queries,
+			final ArrayList<MultiResolutionShapeContext> keyDatabase) throws InterruptedException, ExecutionException {
+		ArrayList<Future<?>> done = new ArrayList<Future<?>>();
+		for(final Query query : queries){
+			done.add(clients.submit(new Runnable(){
+				public void run(){
+					long start = System.nanoTime();
+					MultiResolutionShapeContext shapeContext = (query.photo != null)
+							? SyntheticKeyGenerator.calculateShapeContext(query.photo) : query.shapeContext;
+					ArrayList<KeyMatch> matches = KeyMatcher.findBestMatches(shapeContext, keyDatabase,
+							KeyMatcher.DEFAULT_NUM_CANDIDATES, NUM_RESULTS);
+					query.type.latency.record(System.nanoTime() - start);
+
+					if(!matches.isEmpty() && matches.get(0).getKeyIndex() == query.keyIndex){
+						query.type.numCorrect.incrementAndGet();
+					}
+				}
+			}));
+		}
+		for(Future<?> query : done){
+			query.get();
+		}
+	}
+
+
+
+	/** Prints the phase's throughput, and how much the heap grew and peaked during it.
+	 */
+	private static void report(String phase, long count, String unit, long elapsedNanos, long heapBefore){
+		System.out.println(String.format("%s: %d %s in %.2f s, %.1f %s/s; heap %d MB before, peak %d MB, %d MB after gc",
+				phase, count, unit, elapsedNanos/1e9, count/(elapsedNanos/1e9), unit, heapBefore >> 20,
+				peakHeap() >> 20, usedHeapAfterGc() >> 20));
+	}
+
+
+
+	private static long usedHeapAfterGc(){
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+
+
+	private static void resetPeakHeap(){
+		for(MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()){
+			if(memoryPool.getType() == MemoryType.HEAP){
+				memoryPool.resetPeakUsage();
+			}
+		}
+	}
+
+
+
+	/** Sum of the heap pools' peaks since they were reset. The pools peak at different times, so this
+	 * is an upper bound on the heap's peak.
+	 */
+	private static long peakHeap(){
+		long peak = 0;
+		for(MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()){
+			if(memoryPool.getType() == MemoryType.HEAP){
+				peak += memoryPool.getPeakUsage().getUsed();
+			}
+		}
+
+		return peak;
+	}
+
+
+
+	/** Number of collections and milliseconds spent collecting, over every collector.
+	 */
+	private static long[] gcTotals(){
+		long[] totals = new long[2];
+		for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+			totals[0] += Math.max(0, collector.getCollectionCount());
+			totals[1] += Math.max(0, collector.getCollectionTime());
+		}
+
+		return totals;
+	}
+
+
+}
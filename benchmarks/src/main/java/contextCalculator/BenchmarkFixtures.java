@@ -0,0 +1,81 @@
+package contextCalculator;
+
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/** Inputs shared by the benchmarks: the checked in key photo, scaled to the size being measured,
+ * its edge, and synthetic keys made by moving the edge's points by a little noise.
+ */
+public class BenchmarkFixtures {
+
+
+	public static final String KEY_PHOTO = "/rawTeethLeft.jpg";
+	public static final long SEED = 42;
+
+
+
+	/** The key photo, scaled by the factor.
+	 */
+	public static BufferedImage loadKeyPhoto(double scale) throws IOException {
+		InputStream in = BenchmarkFixtures.class.getResourceAsStream(KEY_PHOTO);
+		if(in == null){
+			throw new IOException(KEY_PHOTO+" is not on the classpath");
+		}
+		BufferedImage photo = ImageIO.read(in);
+		in.close();
+		if(scale == 1){
+			return photo;
+		}
+
+		int width = Math.max(1, (int)Math.round(photo.getWidth()*scale));
+		int height = Math.max(1, (int)Math.round(photo.getHeight()*scale));
+		BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = scaled.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(photo, 0, 0, width, height, null);
+		g.dispose();
+
+		return scaled;
+	}
+
+
+
+	/** The edge of the key in the full size photo, as ImageProcessor.getKeyEdges finds it.
+	 */
+	public static ArrayList<Point> loadKeyEdge() throws IOException {
+		return ImageProcessor.getKeyEdges(loadKeyPhoto(1));
+	}
+
+
+
+	/** numPoints points selected from the edge as the original shape context selects them.
+	 */
+	public static Point[] selectPoints(ArrayList<Point> edge, int numPoints){
+		return new ShapeContextCalculator(numPoints).selectPoints(edge);
+	}
+
+
+
+	/** The points, each moved by up to maxOffset pixels in x and y, as a different photo of a
+	 * similar key would be.
+	 */
+	public static Point[] jitter(Point[] points, int maxOffset, Random random){
+		Point[] jittered = new Point[points.length];
+		for(int i=0; i<points.length; i++){
+			jittered[i] = new Point(points[i].x + random.nextInt(2*maxOffset+1) - maxOffset,
+					points[i].y + random.nextInt(2*maxOffset+1) - maxOffset);
+		}
+
+		return jittered;
+	}
+
+
+}
@@ -0,0 +1,112 @@
+package contextCalculator;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Each stage of ImageProcessor.getKeyEdges on the key photo, scaled by imageScale. Each stage is
+ * given the previous stage's output, calculated once in setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageProcessorBenchmark {
+
+
+	@Param({"0.25", "0.5", "1"})
+	public double imageScale;
+
+	private BufferedImage image;
+	private int[] grayscalePixels;
+	private int[] histogram;
+	private int[] binaryPixels;
+	private int[] cleanedPixels;
+	private ArrayList<Point> edges;
+	private ArrayList<Point> rightEdge;
+	private double keyAngleOffset;
+
+
+
+	@Setup
+	public void setUp() throws IOException {
+		image = BenchmarkFixtures.loadKeyPhoto(imageScale);
+		grayscalePixels = ImageProcessor.convertToGrayscale(image);
+		histogram = ImageProcessor.newHistogram();
+		ImageProcessor.fillHistogram(grayscalePixels, 0, grayscalePixels.length, histogram);
+		binaryPixels = ImageProcessor.convertToBinary(grayscalePixels);
+		cleanedPixels = ImageProcessor.cleanBinaryPixels(image.getWidth(), image.getHeight(), binaryPixels);
+		edges = ImageProcessor.findEdges(image.getWidth(), cleanedPixels);
+		rightEdge = ImageProcessor.selectRightEdge(edges);
+		keyAngleOffset = ImageProcessor.findKeyAngleOffset(rightEdge);
+	}
+
+
+
+	@Benchmark
+	public int[] convertToGrayscale(){
+		return ImageProcessor.convertToGrayscale(image);
+	}
+
+
+
+	/** Histogram, Otsu's Method and thresholding.
+	 */
+	@Benchmark
+	public int[] convertToBinary(){
+		return ImageProcessor.convertToBinary(grayscalePixels);
+	}
+
+
+
+	@Benchmark
+	public int otsusMethod(){
+		return ImageProcessor.otsusMethod(histogram);
+	}
+
+
+
+	@Benchmark
+	public int[] cleanBinaryPixels(){
+		return ImageProcessor.cleanBinaryPixels(image.getWidth(), image.getHeight(), binaryPixels);
+	}
+
+
+
+	@Benchmark
+	public ArrayList<Point> findEdges(){
+		return ImageProcessor.findEdges(image.getWidth(), cleanedPixels);
+	}
+
+
+
+	@Benchmark
+	public ArrayList<Point> selectRightEdge(){
+		return ImageProcessor.selectRightEdge(edges);
+	}
+
+
+
+	@Benchmark
+	public Point findBladeBeginning(){
+		return ImageProcessor.findBladeBeginning(rightEdge, keyAngleOffset);
+	}
+
+
+}
@@ -0,0 +1,68 @@
+package contextCalculator;
+
+import java.awt.Point;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Matching the key photo's shape context against a synthetic similar key, with numPoints points
+ * each: the whole of calculateMinCostMatrix, and the Hungarian algorithm alone on their cost matrix.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchingBenchmark {
+
+
+	@Param({"50", "100", "200", "400"})
+	public int numPoints;
+
+	private int[][][] original;
+	private int[][][] test;
+	private double[][] costMatrix;
+
+
+
+	@Setup
+	public void setUp() throws IOException {
+		ShapeContextCalculator calculator = new ShapeContextCalculator(numPoints);
+		Point[] points = BenchmarkFixtures.selectPoints(BenchmarkFixtures.loadKeyEdge(), numPoints);
+		original = calculator.calculate(points);
+		test = calculator.calculate(BenchmarkFixtures.jitter(points, 3, new Random(BenchmarkFixtures.SEED)));
+		costMatrix = KeyMatcher.calculateCostMatrices(original, test);
+	}
+
+
+
+	@Benchmark
+	public double calculateMinCostMatrix(){
+		return KeyMatcher.calculateMinCostMatrix(original, test);
+	}
+
+
+
+	/** Includes the constructor, which copies and reduces the cost matrix, as an instance can only
+	 * be executed once.
+	 */
+	@Benchmark
+	public int[] hungarianExecute(){
+		return new HungarianAlgorithm(costMatrix).execute();
+	}
+
+
+}
@@ -0,0 +1,54 @@
+package contextCalculator;
+
+import java.awt.Point;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The log-polar histograms of numPoints points of the key photo's edge, through
+ * ShapeContextCalculator.calculate(Point[]), which calls calculateLogPolarHistograms on the
+ * calling thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShapeContextBenchmark {
+
+
+	@Param({"50", "100", "200", "400"})
+	public int numPoints;
+
+	private ShapeContextCalculator calculator;
+	private Point[] points;
+
+
+
+	@Setup
+	public void setUp() throws IOException {
+		calculator = new ShapeContextCalculator(numPoints);
+		points = BenchmarkFixtures.selectPoints(BenchmarkFixtures.loadKeyEdge(), numPoints);
+	}
+
+
+
+	@Benchmark
+	public int[][][] calculateLogPolarHistograms(){
+		return calculator.calculate(points);
+	}
+
+
+}
@@ -0,0 +1,92 @@
+package data;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import contextCalculator.BenchmarkFixtures;
+import contextCalculator.ShapeContextCalculator;
+
+/** Reading a synthetic shape context database of numKeys keys, with the coarse level's number of
+ * points and the original bins. The database is written in setup to DataManager's database path,
+ * relative to the working directory, and deleted in tear down.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataManagerBenchmark {
+
+
+	public static final String DATABASE_NAME = "benchmarkShapeContextDatabase.csv";
+
+	@Param({"10", "100", "1000"})
+	public int numKeys;
+
+	private File database;
+
+
+
+	@Setup
+	public void setUp() throws IOException {
+		database = new File(DataManager.rawDatabasePath+DATABASE_NAME);
+		if(database.getParentFile() != null){
+			database.getParentFile().mkdirs();
+		}
+		database.delete();
+
+		int numPoints = ShapeContextCalculator.DEFAULT_COARSE_NUM_POINTS;
+		int numRadialBins = ShapeContextCalculator.DEFAULT_NUM_RADIAL_BINS;
+		int numLogBins = ShapeContextCalculator.DEFAULT_NUM_LOG_BINS;
+		//Header line has form: "numKeys, pointsPerKey, numRadialBins, numLogBins" .
+		FileWriter header = new FileWriter(database);
+		header.write(""+numKeys+","+numPoints+","+numRadialBins+","+numLogBins+"\n");
+		header.close();
+
+		//Random histograms, each point's spread over its bins as a real key's are.
+		Random random = new Random(BenchmarkFixtures.SEED);
+		for(int key=0; key<numKeys; key++){
+			int[][][] shapeContext = new int[numPoints][numRadialBins][numLogBins];
+			for(int[][] histogram : shapeContext){
+				for(int i=0; i<numPoints-1; i++){
+					histogram[random.nextInt(numRadialBins)][random.nextInt(numLogBins)]++;
+				}
+			}
+			DataManager.saveShapeContextToFile(DATABASE_NAME, key, shapeContext);
+		}
+	}
+
+
+
+	@TearDown
+	public void tearDown(){
+		database.delete();
+	}
+
+
+
+	@Benchmark
+	public ArrayList<int[][][]> getKeyShapeContexts(){
+		return DataManager.getKeyShapeContexts(DATABASE_NAME);
+	}
+
+
+}